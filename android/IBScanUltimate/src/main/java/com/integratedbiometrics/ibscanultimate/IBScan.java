@@ -21,8 +21,6 @@
 
 package com.integratedbiometrics.ibscanultimate;
 
-import java.util.HashMap;
-import java.util.Iterator;
 
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
@@ -274,8 +272,7 @@ public class IBScan
     	final UsbDevice device = findDevice(deviceId);
     	if (device != null)
     	{  	
-	    	final UsbManager manager = (UsbManager)this.m_context.getSystemService(Context.USB_SERVICE);	    	
-	    	hasPermission = manager.hasPermission(device);
+	    	hasPermission = LibUsbManager.hasPermission(device);
     	}
     	
     	return (hasPermission);
@@ -591,14 +588,18 @@ public class IBScan
      * @param context  the context for the reciever and USB accesses.
      * @return         single instance of <code>IBScan</code>.
      */
-    public static IBScan getInstance(final Context context)
+    public static synchronized IBScan getInstance(final Context context)
     {
         if (IBScan.m_instance == null)
         {
             IBScan.m_instance = new IBScan();
         }
         
-        IBScan.m_instance.setContext(context);
+        /* Re-registering the same context would only churn the USB receiver. */
+        if (IBScan.m_instance.m_context != context)
+        {
+            IBScan.m_instance.setContext(context);
+        }
 
         return (IBScan.m_instance);
     }
@@ -670,22 +671,8 @@ public class IBScan
     	
         if (this.m_context != null)
         {
-            final UsbManager                 manager    = (UsbManager)this.m_context.getSystemService(Context.USB_SERVICE);
-            final HashMap<String, UsbDevice> deviceList = manager.getDeviceList();
-
-            /* Iterate through list to find device. */
-            final Iterator<UsbDevice> deviceIterator = deviceList.values().iterator();
-            while (deviceIterator.hasNext())
-            {
-                final UsbDevice deviceTemp   = deviceIterator.next();
-                final int       deviceIdTemp = deviceTemp.getDeviceId();
-		    
-                if (deviceIdTemp == deviceId)
-                {
-                    device = deviceTemp;
-                    break;
-                }
-            }
+            /* Served from the device index kept by LibUsbManager. */
+            device = LibUsbManager.getDevice(deviceId);
         }
 
     	return (device);
@@ -787,6 +774,7 @@ public class IBScan
     			UsbDevice device = (UsbDevice)intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);    		
     			if (device != null)
     			{
+    				LibUsbManager.deviceAttached(device);
     				final boolean isScanDevice = isScanDevice(device);
     				if (isScanDevice)
     				{
@@ -801,6 +789,7 @@ public class IBScan
     			UsbDevice device = (UsbDevice)intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
        			if (device != null)
     			{
+       				LibUsbManager.deviceDetached(device);
        				final boolean isScanDevice = isScanDevice(device);
     				if (isScanDevice)
     				{
@@ -821,6 +810,7 @@ public class IBScan
 					final UsbDevice device  = (UsbDevice)intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
 					if (device != null)
 					{
+						LibUsbManager.permissionChanged(device.getDeviceId(), granted);
 	    				boolean isScanDevice = isScanDevice(device);
 	    				if (isScanDevice)
 	    				{
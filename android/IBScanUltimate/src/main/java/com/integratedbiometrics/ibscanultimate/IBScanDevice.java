@@ -100,6 +100,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.graphics.Bitmap;
 import android.graphics.Color;
@@ -861,6 +863,13 @@ public class IBScanDevice
         private static final int QUALITY_ARROW_LENGTH = 40;
         private static final int QUALITY_ARROW_HEIGHT = 10;
         
+        /*
+         * Scaled pixels of the last preview, lent to one render at a time and returned after it. 
+         * Only a buffer of exactly the requested size is reused, so the slot holds at most one 
+         * preview and never a larger frame.
+         */
+        private static final AtomicReference<int[]> SCALED_PIXELS = new AtomicReference<int[]>();
+        
         /**
          * Byte-array holding image data.
          */
@@ -943,18 +952,21 @@ public class IBScanDevice
     		{
             	final byte[] imageBuffer = new byte[this.width * this.height * 4];
             	/* 
-            	 * The image in the buffer is flipped vertically from what the Bitmap class expects; 
-            	 * we will flip it to compensate while moving it into the buffer. 
+            	 * The image in the buffer is usually flipped vertically from what the Bitmap class 
+            	 * expects, and its rows may be padded; rowOffset() follows the pitch to compensate 
+            	 * while moving it into the buffer. 
             	 */
         		for (int y = 0; y < this.height; y++) 
         		{
+        			final int srcRow = rowOffset(y);
+        			int dst = y * this.width * 4;
         			for (int x = 0; x < this.width; x++) 
         			{
-        				imageBuffer[(y * this.width + x) * 4] = 
-        						imageBuffer[(y * this.width + x) * 4 + 1] = 
-        								imageBuffer[(y * this.width + x) * 4 + 2] = 
-        										this.buffer[(this.height - y - 1) * this.width + x];
-        				imageBuffer[(y * this.width + x) * 4 + 3] = (byte)255;
+        				final byte gray = this.buffer[srcRow + x];
+        				imageBuffer[dst++] = gray;
+        				imageBuffer[dst++] = gray;
+        				imageBuffer[dst++] = gray;
+        				imageBuffer[dst++] = (byte)255;
         			}
         		}        	
         		bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(imageBuffer));
@@ -970,21 +982,28 @@ public class IBScanDevice
          * @return           image if successful; otherwise <code>null</code>
          */
         public Bitmap toBitmapScaled(int dstWidth, int dstHeight)
+        {
+        	return (this.toBitmapScaled(null, dstWidth, dstHeight));
+        }
+        
+        /**
+         * Create scaled image from the image data, drawing into a bitmap from an earlier frame 
+         * when it can be reused.
+         * 
+         * @param reuse      bitmap to draw into if it is mutable, ARGB_8888 and of the requested 
+         *                   size; may be <code>null</code>
+         * @param dstWidth   width of scaled image
+         * @param dstHeight  height of scaled image
+         * @return           image if successful; otherwise <code>null</code>
+         */
+        public Bitmap toBitmapScaled(Bitmap reuse, int dstWidth, int dstHeight)
         {
         	if ((dstWidth <= 0) || (dstHeight <= 0))
         	{
         		throw (new IllegalArgumentException());
         	}
         	
-        	Bitmap bitmapScaled = null;
-        	
-        	final Bitmap bitmap = this.toBitmap();        	
-        	if (bitmap != null)
-        	{
-        		bitmapScaled = Bitmap.createScaledBitmap(bitmap, dstWidth, dstHeight, false);
-        	}
-        	
-        	return (bitmapScaled);
+        	return (renderScaled(reuse, dstWidth, dstHeight, null, -1, TARGET_LINE_WIDTH, false, false, false));
         }
         
         /**
@@ -1007,14 +1026,7 @@ public class IBScanDevice
         		throw (new IllegalArgumentException());
         	}
         	
-        	Bitmap bitmapScaled = this.toBitmapScaled(dstWidth, dstHeight);
-        	
-        	if (bitmapScaled != null)
-        	{
-        		drawRollingLine(bitmapScaled, dstWidth, dstHeight, rollingState, rollingLineX, TARGET_LINE_WIDTH);        		
-        	}
-        	
-        	return (bitmapScaled);
+        	return (renderScaled(null, dstWidth, dstHeight, rollingState, rollingLineX, TARGET_LINE_WIDTH, false, false, false));
         }
         
         /**
@@ -1035,14 +1047,7 @@ public class IBScanDevice
         		throw (new IllegalArgumentException());
         	}
         	
-        	Bitmap bitmapScaled = this.toBitmapScaled(dstWidth, dstHeight);
-        	
-        	if (bitmapScaled != null)
-        	{
-        		drawQualityArrow(bitmapScaled, dstWidth, dstHeight, top, left, right);
-         	}
-        	
-        	return (bitmapScaled);
+        	return (renderScaled(null, dstWidth, dstHeight, null, -1, TARGET_LINE_WIDTH, top, left, right));
         }
         
         /**
@@ -1069,15 +1074,7 @@ public class IBScanDevice
         		throw (new IllegalArgumentException());
         	}
         	
-        	Bitmap bitmapScaled = this.toBitmapScaled(dstWidth, dstHeight);
-        	
-        	if (bitmapScaled != null)
-        	{
-        		drawRollingLine(bitmapScaled, dstWidth, dstHeight, rollingState, rollingLineX, TARGET_LINE_WIDTH);  
-        		drawQualityArrow(bitmapScaled, dstWidth, dstHeight, top, left, right);
-        	}
-        	
-        	return (bitmapScaled);
+        	return (renderScaled(null, dstWidth, dstHeight, rollingState, rollingLineX, TARGET_LINE_WIDTH, top, left, right));
         }
         
         /**
@@ -1096,11 +1093,34 @@ public class IBScanDevice
         public Bitmap toBitmapScaled(int dstWidth, int dstHeight, RollingState rollingState, int rollingLineX, 
         		int rollingLineWidth, boolean top, boolean left, boolean right)
         {
-        	if ((dstWidth <= 0) || (dstHeight <= 0))
+        	if (rollingState == null)
         	{
         		throw (new IllegalArgumentException());
         	}
-        	if (rollingState == null)
+        	
+        	return (this.toBitmapScaled(null, dstWidth, dstHeight, rollingState, rollingLineX, rollingLineWidth, top, left, right));
+        }
+        
+        /**
+         * Create scaled image from the image data with rolling line and finger quality state 
+         * indicator, drawing into a bitmap from an earlier frame when it can be reused.
+         * 
+         * @param reuse             bitmap to draw into if it is mutable, ARGB_8888 and of the 
+         *                          requested size; may be <code>null</code>
+         * @param dstWidth          width of scaled image
+         * @param dstHeight         height of scaled image
+         * @param rollingState      state of the rolling acquisition; <code>null</code> for no line
+         * @param rollingLineX      x-coordinate of rolling line
+         * @param rollingLineWidth  thickness of rolling line
+         * @param top               indicates whether invalid arrow should be drawn on top edge
+         * @param left              indicates whether invalid arrow should be drawn on left edge
+         * @param right             indicates whether invalid arrow should be drawn on right edge
+         * @return                  image if successful; otherwise <code>null</code>
+         */
+        public Bitmap toBitmapScaled(Bitmap reuse, int dstWidth, int dstHeight, RollingState rollingState, 
+        		int rollingLineX, int rollingLineWidth, boolean top, boolean left, boolean right)
+        {
+        	if ((dstWidth <= 0) || (dstHeight <= 0))
         	{
         		throw (new IllegalArgumentException());
         	}
@@ -1109,15 +1129,76 @@ public class IBScanDevice
         		throw (new IllegalArgumentException());
         	}
         	
-        	Bitmap bitmapScaled = this.toBitmapScaled(dstWidth, dstHeight);
+        	return (renderScaled(reuse, dstWidth, dstHeight, rollingState, rollingLineX, rollingLineWidth, top, left, right));
+        }
+        
+        /*
+         * Offset in the buffer of row y, counted from the top. A positive pitch means top-down rows 
+         * and a negative one bottom-up rows; 0 is taken as bottom-up rows of width bytes, which is 
+         * how frames have always been laid out.
+         */
+        private int rowOffset(int y)
+        {
+        	if (this.pitch > 0)
+        	{
+        		return (y * this.pitch);
+        	}
+        	final int rowStep = (this.pitch == 0) ? this.width : -this.pitch;
+        	return ((this.height - y - 1) * rowStep);
+        }
+        
+        /*
+         * Sample, flip and expand the gray buffer into ARGB at the target size in one pass, 
+         * composite the overlays into the same pixels, then copy them into the bitmap once. 
+         * Sampling is nearest-neighbour, as createScaledBitmap() without filtering.
+         */
+        private Bitmap renderScaled(Bitmap reuse, int dstWidth, int dstHeight, RollingState rollingState, 
+        		int rollingLineX, int rollingLineWidth, boolean top, boolean left, boolean right)
+        {
+        	Bitmap bitmap = reuse;
+        	if ((bitmap == null) || bitmap.isRecycled() || !bitmap.isMutable() || 
+        			(bitmap.getConfig() != Bitmap.Config.ARGB_8888) || 
+        			(bitmap.getWidth() != dstWidth) || (bitmap.getHeight() != dstHeight))
+        	{
+        		bitmap = Bitmap.createBitmap(dstWidth, dstHeight, Bitmap.Config.ARGB_8888);
+        	}
+        	if (bitmap == null)
+        	{
+        		return (null);
+        	}
+        	
+        	int[] pixels = SCALED_PIXELS.getAndSet(null);
+        	if ((pixels == null) || (pixels.length != dstWidth * dstHeight))
+        	{
+        		pixels = new int[dstWidth * dstHeight];
+        	}
+        	
+        	final int[] srcColumns = new int[dstWidth];
+        	for (int x = 0; x < dstWidth; x++)
+        	{
+        		srcColumns[x] = (int) (((2L * x + 1) * this.width) / (2L * dstWidth));
+        	}
+        	for (int y = 0; y < dstHeight; y++)
+        	{
+        		final int srcY   = (int) (((2L * y + 1) * this.height) / (2L * dstHeight));
+        		final int srcRow = rowOffset(srcY);
+        		final int dstRow = y * dstWidth;
+        		for (int x = 0; x < dstWidth; x++)
+        		{
+        			final int gray = this.buffer[srcRow + srcColumns[x]] & 0xff;
+        			pixels[dstRow + x] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+        		}
+        	}
         	
-        	if (bitmapScaled != null)
+        	if (rollingState != null)
         	{
-        		drawRollingLine(bitmapScaled, dstWidth, dstHeight, rollingState, rollingLineX, rollingLineWidth);  
-        		drawQualityArrow(bitmapScaled, dstWidth, dstHeight, top, left, right);
+        		drawRollingLine(pixels, dstWidth, dstHeight, rollingState, rollingLineX, rollingLineWidth);
         	}
+        	drawQualityArrow(pixels, dstWidth, dstHeight, top, left, right);
         	
-        	return (bitmapScaled);
+        	bitmap.setPixels(pixels, 0, dstWidth, 0, 0, dstWidth, dstHeight);
+        	SCALED_PIXELS.set(pixels);
+        	return (bitmap);
         }
         
        /**
@@ -1148,8 +1229,14 @@ public class IBScanDevice
             	if (bitmap != null)
             	{
         			FileOutputStream stream = new FileOutputStream(output);
-
-                	ok = bitmap.compress(compressFormat, 100, stream);
+        			try
+        			{
+        				ok = bitmap.compress(compressFormat, 100, stream);
+        			}
+        			finally
+        			{
+        				stream.close();
+        			}
             	}
             }
 
@@ -1157,26 +1244,18 @@ public class IBScanDevice
         }
         
         /*
-         * Draw rolling line on bitmap.
+         * Draw rolling line into scaled pixels.
          */
-    	private void drawRollingLine(Bitmap bitmapScaled, int dstWidth, int dstHeight, 
+    	private void drawRollingLine(int[] pixels, int dstWidth, int dstHeight, 
     			RollingState rollingState, int rollingLineX, int rollingLineWidth)
     	{
     		if ((rollingState.equals(RollingState.TAKE_ACQUISITION) || rollingState.equals(RollingState.COMPLETE_ACQUISITION)) && (rollingLineX >= 0))
     		{
 				int targetLineX     = (rollingLineX * dstWidth) / this.width;
 				int targetLineColor = (rollingState.equals(RollingState.TAKE_ACQUISITION)) ? TAKE_ACQUISITION_COLOR : COMPLETE_ACQUISITION_COLOR;
+				int lineLeft        = targetLineX - (rollingLineWidth / 2);
 				
-				for (int y = 0; y < dstHeight; y++) 
-				{
-					for (int x = targetLineX - (rollingLineWidth / 2); x < targetLineX - (rollingLineWidth / 2) + rollingLineWidth; x++) 
-					{
-						if ((x >= 0) && (x < dstWidth))
-						{
-							bitmapScaled.setPixel(x, y, targetLineColor);
-						}
-					}
-				}
+				fillRect(pixels, dstWidth, dstHeight, lineLeft, 0, lineLeft + rollingLineWidth, dstHeight, targetLineColor);
     		}
     	}
     	
@@ -1186,48 +1265,65 @@ public class IBScanDevice
         public void drawQualityArrow(Bitmap bitmapScaled, int dstWidth, int dstHeight, 
         		boolean top, boolean left, boolean right)
         {
+        	if (!top && !left && !right)
+        	{
+        		return;
+        	}
+        	
+        	final int[] pixels = new int[dstWidth * dstHeight];
+        	bitmapScaled.getPixels(pixels, 0, dstWidth, 0, 0, dstWidth, dstHeight);
+        	drawQualityArrow(pixels, dstWidth, dstHeight, top, left, right);
+        	bitmapScaled.setPixels(pixels, 0, dstWidth, 0, 0, dstWidth, dstHeight);
+        }
+        
+        /*
+         * Draw quality arrow into scaled pixels.
+         */
+        private static void drawQualityArrow(int[] pixels, int dstWidth, int dstHeight, 
+        		boolean top, boolean left, boolean right)
+        {
+        	/* The arrows have always left the first row and column untouched. */
+        	final int arrowTop  = Math.max(1, (dstHeight / 2) - (QUALITY_ARROW_HEIGHT / 2));
+        	final int arrowLeft = Math.max(1, (dstWidth / 2) - (QUALITY_ARROW_HEIGHT / 2));
+        	
        		if (left)
        		{
-				for (int x = 0; x < QUALITY_ARROW_LENGTH; x++)
-				{
-					for (int y = (dstHeight / 2) - (QUALITY_ARROW_HEIGHT / 2); y < (dstHeight / 2) + (QUALITY_ARROW_HEIGHT / 2); y++)
-					{
-						if ((y > 0) && (y < dstHeight))
-						{
-							bitmapScaled.setPixel(x,  y, QUALITY_ARROW_COLOR);
-						}
-					}
-				}
+       			fillRect(pixels, dstWidth, dstHeight, 0, arrowTop, QUALITY_ARROW_LENGTH, 
+       					(dstHeight / 2) + (QUALITY_ARROW_HEIGHT / 2), QUALITY_ARROW_COLOR);
        		}
        		
        		if (right)
        		{
-				for (int x = dstWidth - QUALITY_ARROW_LENGTH - 1; x < dstWidth; x++)
-				{
-					for (int y = (dstHeight / 2) - (QUALITY_ARROW_HEIGHT / 2); y < (dstHeight / 2) + (QUALITY_ARROW_HEIGHT / 2); y++)
-					{
-						if ((y > 0) && (y < dstHeight))
-						{
-							bitmapScaled.setPixel(x,  y, QUALITY_ARROW_COLOR);
-						}
-					}
-				}
+       			fillRect(pixels, dstWidth, dstHeight, dstWidth - QUALITY_ARROW_LENGTH - 1, arrowTop, dstWidth, 
+       					(dstHeight / 2) + (QUALITY_ARROW_HEIGHT / 2), QUALITY_ARROW_COLOR);
        		}
        		
        		if (top)
        		{
-				for (int y = 0; y < QUALITY_ARROW_LENGTH; y++)
-				{
-					for (int x = (dstWidth / 2) - (QUALITY_ARROW_HEIGHT / 2); x < (dstWidth / 2) + (QUALITY_ARROW_HEIGHT / 2); x++)
-					{
-						if ((x > 0) && (x < dstWidth))
-						{
-							bitmapScaled.setPixel(x,  y, QUALITY_ARROW_COLOR);
-						}
-					}
-				}
+       			fillRect(pixels, dstWidth, dstHeight, arrowLeft, 0, (dstWidth / 2) + (QUALITY_ARROW_HEIGHT / 2), 
+       					QUALITY_ARROW_LENGTH, QUALITY_ARROW_COLOR);
     		}      	
-        }        
+        }
+        
+        /*
+         * Fill the rectangle [x0, x1) x [y0, y1), clipped to the image, one row span at a time.
+         */
+        private static void fillRect(int[] pixels, int dstWidth, int dstHeight, int x0, int y0, 
+        		int x1, int y1, int color)
+        {
+        	x0 = Math.max(0, x0);
+        	y0 = Math.max(0, y0);
+        	x1 = Math.min(dstWidth, x1);
+        	y1 = Math.min(dstHeight, y1);
+        	if (x0 >= x1)
+        	{
+        		return;
+        	}
+        	for (int y = y0; y < y1; y++)
+        	{
+        		Arrays.fill(pixels, y * dstWidth + x0, y * dstWidth + x1, color);
+        	}
+        }
     }
 
     /**
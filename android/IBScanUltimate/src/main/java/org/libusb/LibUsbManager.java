@@ -21,10 +21,12 @@
 
 package org.libusb;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Vector;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
 import android.hardware.usb.UsbDevice;
@@ -33,6 +35,8 @@ import android.hardware.usb.UsbManager;
 import android.util.SparseArray;
 import android.util.Log;
 
+import com.integratedbiometrics.ibscanultimate.IBScan;
+
 /**
  * Manager for devices accessed through libusb.
  */
@@ -70,6 +74,117 @@ public class LibUsbManager
     public static void setContext(Context context)
     {  	
         m_context = context;
+
+        /* The index belongs to the previous context's USB manager. */
+        synchronized (LibUsbManager.class)
+        {
+            m_deviceIndex.clear();
+            m_descriptorCache.clear();
+            m_permitted.clear();
+            m_indexBuilt = false;
+        }
+    }
+
+    /**
+     * Find a scan device by the ID that Android assigned to it.  Lookups are served from an index
+     * that is built from the <code>UsbManager</code> once and then kept current by 
+     * <code>deviceAttached()</code> and <code>deviceDetached()</code>.
+     * 
+     * @param deviceId  ID of the device, as returned by <code>UsbDevice.getDeviceId()</code>
+     * @return          device, if found; <code>null</code> otherwise
+     */
+    public static UsbDevice getDevice(int deviceId)
+    {
+        ensureIndex();
+        return (m_deviceIndex.get(deviceId));
+    }
+
+    /**
+     * Get the scan devices currently attached.
+     * 
+     * @return  snapshot of the attached scan devices
+     */
+    public static Collection<UsbDevice> getScanDevices()
+    {
+        ensureIndex();
+        return (new ArrayList<UsbDevice>(m_deviceIndex.values()));
+    }
+
+    /**
+     * Determine whether the app may open the device.  A grant lasts until the device detaches, so 
+     * it is remembered and later checks make no call to the <code>UsbManager</code>.  A refusal is 
+     * asked again every time, because a grant can arrive without a broadcast to this process (for 
+     * example when the user picks the app in the attach dialog).
+     * 
+     * @param device  device to check
+     * @return        <code>true</code> if the app has permission; <code>false</code> otherwise
+     */
+    public static boolean hasPermission(UsbDevice device)
+    {
+        final int deviceId = device.getDeviceId();
+        if (m_permitted.containsKey(deviceId))
+        {
+            return (true);
+        }
+        final Context context = m_context;
+        if (context == null)
+        {
+            return (false);
+        }
+        final UsbManager manager = (UsbManager)context.getSystemService(Context.USB_SERVICE);
+        if (!manager.hasPermission(device))
+        {
+            return (false);
+        }
+        m_permitted.put(deviceId, Boolean.TRUE);
+        return (true);
+    }
+
+    /**
+     * Record the outcome of a permission request.  Called on the permission broadcast.
+     * 
+     * @param deviceId  ID of the device
+     * @param granted   whether permission was granted
+     */
+    public static void permissionChanged(int deviceId, boolean granted)
+    {
+        if (granted)
+        {
+            m_permitted.put(deviceId, Boolean.TRUE);
+        }
+        else
+        {
+            m_permitted.remove(deviceId);
+        }
+    }
+
+    /**
+     * Add a device to the index.  Called on <code>ACTION_USB_DEVICE_ATTACHED</code>; devices that
+     * are not scan devices are ignored.
+     * 
+     * @param device  attached device
+     */
+    public static void deviceAttached(UsbDevice device)
+    {
+        if (IBScan.isScanDevice(device))
+        {
+            m_descriptorCache.remove(device.getDeviceId());
+            m_permitted.remove(device.getDeviceId());
+            m_deviceIndex.put(device.getDeviceId(), device);
+        }
+    }
+
+    /**
+     * Remove a device and its cached descriptors from the index.  Called on 
+     * <code>ACTION_USB_DEVICE_DETACHED</code>.
+     * 
+     * @param device  detached device
+     */
+    public static void deviceDetached(UsbDevice device)
+    {
+        m_deviceIndex.remove(device.getDeviceId());
+        m_descriptorCache.remove(device.getDeviceId());
+        m_permitted.remove(device.getDeviceId());
     }
 
     /* *********************************************************************************************
@@ -102,33 +217,27 @@ public class LibUsbManager
      ******************************************************************************************** */
 
     /*
-     * Find device for a certain device ID.
-     * 
-     * @param deviceId  device ID to search for
-     * @return          device, if found; <code>null</code> otherwise
+     * Build the device index from the USB manager, if that has not been done for the current
+     * context.
      */
-    private static UsbDevice findDevice(int deviceId)
+    private static synchronized void ensureIndex()
     {
-    	UsbDevice device = null;
-    	
-    	final UsbManager                 manager    = (UsbManager)m_context.getSystemService(Context.USB_SERVICE);
-    	final HashMap<String, UsbDevice> deviceList = manager.getDeviceList();
+        if (m_indexBuilt || m_context == null)
+        {
+            return;
+        }
+
+        final UsbManager                 manager    = (UsbManager)m_context.getSystemService(Context.USB_SERVICE);
+        final HashMap<String, UsbDevice> deviceList = manager.getDeviceList();
 
-		/* Iterate through list to find device. */
-		final Iterator<UsbDevice> deviceIterator = deviceList.values().iterator();
-		while (deviceIterator.hasNext())
-		{
-		    final UsbDevice deviceTemp   = deviceIterator.next();
-		    final int       deviceIdTemp = deviceTemp.getDeviceId();
-		    
-		    if (deviceIdTemp == deviceId)
-		    {
-		    	device = deviceTemp;
-		    	break;
-		    }
-		}
-		    	
-    	return (device);
+        for (UsbDevice device : deviceList.values())
+        {
+            if (IBScan.isScanDevice(device))
+            {
+                m_deviceIndex.put(device.getDeviceId(), device);
+            }
+        }
+        m_indexBuilt = true;
     }
     
     /*
@@ -147,10 +256,26 @@ public class LibUsbManager
     /*
      * Scan context.
      */
-    private static Context m_context = null;
+    private static volatile Context m_context = null;
+
+    /*
+     * Attached scan devices by device ID.
+     */
+    private static final ConcurrentHashMap<Integer, UsbDevice> m_deviceIndex = new ConcurrentHashMap<Integer, UsbDevice>();
+
+    /*
+     * Raw descriptors read from each device, by device ID.  Dropped when the device detaches.
+     */
+    private static final ConcurrentHashMap<Integer, byte[]> m_descriptorCache = new ConcurrentHashMap<Integer, byte[]>();
+
+    /*
+     * IDs of devices the app is known to have permission for.  Dropped when the device detaches.
+     */
+    private static final ConcurrentHashMap<Integer, Boolean> m_permitted = new ConcurrentHashMap<Integer, Boolean>();
+
+    private static boolean m_indexBuilt = false;
             
-	private static Vector<DeviceDesc>         m_descVector = new Vector<DeviceDesc>();
-	private static int m_hasPermitUsbDevice=0;
+	private static volatile Vector<DeviceDesc> m_descVector = new Vector<DeviceDesc>();
     	
     /* *********************************************************************************************
      * CALLBACKS FROM libusb
@@ -161,59 +286,41 @@ public class LibUsbManager
      */
     protected static DeviceDesc[] getDeviceArray()
     {
-//    	DeviceDesc[] descArray = new DeviceDesc[0];
-    	
     	if (m_context != null)
     	{
-	    	final UsbManager                 manager    = (UsbManager)m_context.getSystemService(Context.USB_SERVICE);
-	    	final HashMap<String, UsbDevice> deviceList = manager.getDeviceList();
-	    	final Vector<DeviceDesc>         descVector = new Vector<DeviceDesc>();
-	    	int                              hasPermitUsbDevice=0;
-	
-			/* Iterate through list to count devices. */
-			Iterator<UsbDevice> deviceIterator = deviceList.values().iterator();
-			while (deviceIterator.hasNext())
-			{
-			    final UsbDevice device        = deviceIterator.next();
-			    final boolean   hasPermission = manager.hasPermission(device);
-	
-			    if (hasPermission)
+	    	final UsbManager         manager    = (UsbManager)m_context.getSystemService(Context.USB_SERVICE);
+	    	final Vector<DeviceDesc> descVector = new Vector<DeviceDesc>();
+
+	    	for (UsbDevice device : getScanDevices())
+	    	{
+			    if (!hasPermission(device))
 			    {
-			    	hasPermitUsbDevice++;
+			    	continue;
 			    }
-			}
-			
-			if (hasPermitUsbDevice != m_hasPermitUsbDevice)
-			{
-//				logPrintWarning(">>>>>>>>>>>>>>> USB device was changed " + hasPermitUsbDevice);        		
-				m_hasPermitUsbDevice = hasPermitUsbDevice;
-				m_descVector.clear();
-				/* Iterate through list to count devices. */
-				deviceIterator = deviceList.values().iterator();
-				while (deviceIterator.hasNext())
-				{
-				    final UsbDevice device        = deviceIterator.next();
-				    final boolean   hasPermission = manager.hasPermission(device);
-		
-				    if (hasPermission)
+
+			    /* Read descriptors once per attach; later calls reuse them. */
+			    byte[] descriptors = m_descriptorCache.get(device.getDeviceId());
+			    if (descriptors == null)
+			    {
+				    final UsbDeviceConnection connection = manager.openDevice(device);
+				    if (connection != null)
 				    {
-				    	if (device.getVendorId() == 0x113f || device.getVendorId() == 0x1fba )
+				    	descriptors = connection.getRawDescriptors();
+				    	connection.close();
+				    	if (descriptors != null)
 				    	{
-					    	/* Get device descriptors then close connection. */
-						    final UsbDeviceConnection connection = manager.openDevice(device);
-						    if (connection != null)
-						    {
-						    	byte[] descriptors = connection.getRawDescriptors();
-						    	connection.close();
-						    	m_descVector.add(new DeviceDesc(device.getDeviceId(), descriptors));
-//								logPrintWarning(">>>>>>>>>>>>>>> ADDED VECTOR m_descVector size = " + m_descVector.size() + ", USB device lists vid = " + device.getVendorId() + ", pid = " + device.getProductId());
-						    }
-						}
+				    		m_descriptorCache.put(device.getDeviceId(), descriptors);
+				    	}
 				    }
-				}
-			}
-			
-//			descArray = m_descVector.toArray(descArray);
+			    }
+
+			    if (descriptors != null)
+			    {
+			    	descVector.add(new DeviceDesc(device.getDeviceId(), descriptors));
+			    }
+	    	}
+
+	    	m_descVector = descVector;
    		}
     	
 		DeviceDesc[] descArray = m_descVector.toArray(new DeviceDesc[m_descVector.size()]);
@@ -231,14 +338,14 @@ public class LibUsbManager
     	if (m_context != null)
     	{
 			/* Find the description for the device. */
-    		final UsbDevice device = findDevice(deviceId);    		
+    		final UsbDevice device = getDevice(deviceId);
     		
     		if (device != null)
     		{
     	    	final UsbManager manager = (UsbManager)m_context.getSystemService(Context.USB_SERVICE);
 
     	    	/* Check whether we have permission for the device. */
-    			if (manager.hasPermission(device))
+    			if (hasPermission(device))
     			{
     				final UsbDeviceConnection connection = manager.openDevice(device);
     				if (connection != null)
@@ -0,0 +1,256 @@
+package sa.redbullmobile.fpreader;
+
+import android.util.Log;
+
+import com.getcapacitor.JSObject;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the raw images of recent captures and the formats derived from them, so JS can ask for
+ * another format after the fact instead of capturing again.
+ *
+ * Entries are kept in least-recently-used order within a byte budget that counts the raw image
+ * and every derived artifact; whole captures are evicted from the cold end until the cache fits.
+ * A missing format is built on a worker thread by the encoder registered for it, and concurrent
+ * requests for the same capture and format share that one computation. Memory pressure drops the
+ * derived artifacts first and the raw images last.
+ */
+public class ArtifactCache implements MemoryGovernor.Listener {
+
+    public interface Encoder {
+        byte[] encode(IBScanDevice.ImageData image) throws Exception;
+    }
+
+    public interface Callback {
+        void onArtifact(byte[] data, boolean cached);
+
+        void onError(String message);
+    }
+
+    private static class Entry {
+        final IBScanDevice.ImageData image;
+        final Map<String, byte[]> derived = new HashMap<>();
+
+        Entry(IBScanDevice.ImageData image) {
+            this.image = image;
+        }
+
+        long bytes() {
+            long bytes = image.buffer.length;
+            for (byte[] artifact : derived.values())
+                bytes += artifact.length;
+            return bytes;
+        }
+    }
+
+    private static class Computation {
+        final List<Callback> callbacks = new ArrayList<>();
+    }
+
+    private static final String TAG = "RBM";
+
+    private final long maxBytes;
+    private long budget;
+    private long totalBytes = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Computation> inflight = new HashMap<>();
+    private final Map<String, Encoder> encoders = new HashMap<>();
+    private final ExecutorService workers = Executors.newFixedThreadPool(2);
+    private boolean shutdown = false;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long shared = 0;
+    private long evictions = 0;
+
+    public ArtifactCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.budget = maxBytes;
+    }
+
+    public synchronized void registerFormat(String format, Encoder encoder) {
+        encoders.put(format, encoder);
+    }
+
+    /**
+     * Adds a capture's raw image, making it the most recently used entry.
+     */
+    public synchronized void put(String id, IBScanDevice.ImageData image) {
+        Entry old = entries.put(id, new Entry(image));
+        if (old != null)
+            totalBytes -= old.bytes();
+        totalBytes += image.buffer.length;
+        evict();
+    }
+
+    /**
+     * Stores an artifact that was already produced, e.g. the formats returned with the capture.
+     */
+    public synchronized void putDerived(String id, String format, byte[] data) {
+        Entry entry = entries.get(id);
+        if (entry == null)
+            return;
+        byte[] old = entry.derived.put(format, data);
+        totalBytes += data.length - ((old != null) ? old.length : 0);
+        evict();
+    }
+
+    /**
+     * Delivers the artifact to the callback, from the cache or once it has been built. The callback
+     * may run on the calling thread or on a worker thread.
+     */
+    public void request(final String id, final String format, Callback callback) {
+        byte[] cached = null;
+        String error = null;
+        synchronized (this) {
+            Entry entry = entries.get(id);
+            final Encoder encoder = encoders.get(format);
+            if (shutdown) {
+                error = "The artifact cache is shut down";
+            } else if (entry == null) {
+                error = "Capture " + id + " is no longer cached";
+            } else if ((cached = entry.derived.get(format)) != null) {
+                hits++;
+            } else if ("raw".equals(format)) {
+                hits++;
+                cached = entry.image.buffer;
+            } else if (encoder == null) {
+                error = "Unsupported format " + format;
+            } else {
+                final String key = id + "/" + format;
+                Computation running = inflight.get(key);
+                if (running != null) {
+                    shared++;
+                    running.callbacks.add(callback);
+                    return;
+                }
+                misses++;
+                final Computation computation = new Computation();
+                computation.callbacks.add(callback);
+                inflight.put(key, computation);
+                final IBScanDevice.ImageData image = entry.image;
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        compute(id, format, key, encoder, image, computation);
+                    }
+                });
+                return;
+            }
+        }
+        if (error != null)
+            callback.onError(error);
+        else
+            callback.onArtifact(cached, true);
+    }
+
+    public synchronized JSObject toJSObject() {
+        long requests = hits + misses + shared;
+        JSObject ret = new JSObject();
+        ret.put("entries", entries.size());
+        ret.put("bytes", totalBytes);
+        ret.put("budget", budget);
+        ret.put("hits", hits);
+        ret.put("misses", misses);
+        ret.put("shared", shared);
+        ret.put("evictions", evictions);
+        ret.put("hitRate", (requests > 0) ? (double) hits / requests : 0);
+        return ret;
+    }
+
+    @Override
+    public synchronized void onPressureChanged(MemoryGovernor.Pressure pressure) {
+        switch (pressure) {
+            case NORMAL:
+                budget = maxBytes;
+                break;
+            case MODERATE:
+                budget = maxBytes / 2;
+                dropDerived();
+                break;
+            case HIGH:
+                budget = maxBytes / 4;
+                dropDerived();
+                break;
+            default:
+                budget = 0;
+                break;
+        }
+        evict();
+    }
+
+    /**
+     * Stops the workers and fails every request still waiting for a build, so no call is left
+     * unsettled.
+     */
+    public void shutdown() {
+        List<Callback> waiting = new ArrayList<>();
+        synchronized (this) {
+            shutdown = true;
+            for (Computation computation : inflight.values())
+                waiting.addAll(computation.callbacks);
+            inflight.clear();
+            entries.clear();
+            totalBytes = 0;
+        }
+        workers.shutdownNow();
+        for (Callback callback : waiting)
+            callback.onError("The artifact cache is shut down");
+    }
+
+    private void compute(String id, String format, String key, Encoder encoder, IBScanDevice.ImageData image, Computation computation) {
+        byte[] data = null;
+        String error = null;
+        try {
+            data = encoder.encode(image);
+        } catch (Exception e) {
+            Log.w(TAG, "Building " + key + " failed", e);
+            error = "Building " + format + " failed: " + e.getMessage();
+        }
+
+        List<Callback> callbacks;
+        synchronized (this) {
+            // After shutdown() the waiters have already been failed.
+            if (inflight.get(key) != computation)
+                return;
+            inflight.remove(key);
+            callbacks = new ArrayList<>(computation.callbacks);
+            if (data != null)
+                putDerived(id, format, data);
+        }
+        for (Callback callback : callbacks) {
+            if (data != null)
+                callback.onArtifact(data, false);
+            else
+                callback.onError(error);
+        }
+    }
+
+    private void dropDerived() {
+        for (Entry entry : entries.values()) {
+            for (byte[] artifact : entry.derived.values())
+                totalBytes -= artifact.length;
+            entry.derived.clear();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > budget && it.hasNext()) {
+            Entry entry = it.next();
+            totalBytes -= entry.bytes();
+            it.remove();
+            evictions++;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package sa.redbullmobile.fpreader;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Writes capture artifacts into a directory under the app cache, for resultMode 'file'.
+ *
+ * Files are written to a temporary name through a FileChannel and renamed into place, so a path
+ * handed to JS always points at a complete file. After every write the directory is pruned:
+ * files older than maxAgeMs go first, then the oldest files until the directory fits in maxBytes.
+ */
+public class ArtifactStore {
+
+    private static final String TAG = "RBM";
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+
+    private final File dir;
+    private final long maxBytes;
+    private final long maxAgeMs;
+    /* Capture IDs restart with the process; this keeps names from an earlier run apart. */
+    private final String run = Long.toString(System.currentTimeMillis(), 36);
+
+    public ArtifactStore(File cacheDir, long maxBytes, long maxAgeMs) {
+        this.dir = new File(cacheDir, "fpreader-captures");
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Writes the bytes to a file named after the capture and artifact.
+     *
+     * @return the absolute path of the written file
+     */
+    public synchronized String write(String captureId, String name, byte[] buf, int off, int len) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+
+        String prefix = run + "-" + captureId + "-";
+        File target = new File(dir, prefix + name);
+        File tmp = new File(dir, target.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer src = ByteBuffer.wrap(buf, off, len);
+            while (src.hasRemaining())
+                channel.write(src);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + target);
+        }
+
+        prune(prefix);
+        return target.getAbsolutePath();
+    }
+
+    /**
+     * Applies the age and size limits, never deleting files whose name starts with keepPrefix.
+     */
+    public synchronized void prune(String keepPrefix) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (File file : files)
+            total += file.length();
+        for (File file : files) {
+            if (keepPrefix != null && file.getName().startsWith(keepPrefix))
+                continue;
+            boolean expired = now - file.lastModified() > maxAgeMs;
+            if (!expired && total <= maxBytes)
+                break;
+            long length = file.length();
+            if (file.delete())
+                total -= length;
+            else
+                Log.w(TAG, "Cannot delete " + file);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package sa.redbullmobile.fpreader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recycles the large byte arrays used to encode capture results.
+ *
+ * Arrays are bucketed by power-of-two size, starting at 4 KB, and the pool never holds more than
+ * its byte limit. Arrays released beyond the limit are left to the garbage collector.
+ */
+public class BufferPool {
+
+    public static final BufferPool SHARED = new BufferPool(8 * 1024 * 1024);
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 30;
+
+    private final List<ArrayDeque<byte[]>> buckets;
+    private long maxPooledBytes;
+    private long pooledBytes = 0;
+
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.buckets = new ArrayList<>(MAX_SHIFT - MIN_SHIFT + 1);
+        for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++)
+            buckets.add(new ArrayDeque<byte[]>());
+    }
+
+    /**
+     * Returns an array of at least minSize bytes; its content is undefined.
+     */
+    public synchronized byte[] acquire(int minSize) {
+        int bucket = bucketFor(minSize);
+        byte[] buf = buckets.get(bucket).pollFirst();
+        if (buf != null) {
+            pooledBytes -= buf.length;
+            return buf;
+        }
+        return new byte[1 << (bucket + MIN_SHIFT)];
+    }
+
+    public synchronized void release(byte[] buf) {
+        if (buf == null || Integer.bitCount(buf.length) != 1 || buf.length < (1 << MIN_SHIFT))
+            return;
+        if (pooledBytes + buf.length > maxPooledBytes)
+            return;
+        buckets.get(bucketFor(buf.length)).addFirst(buf);
+        pooledBytes += buf.length;
+    }
+
+    /**
+     * Lowers the byte limit and drops pooled arrays, largest first, until the pool fits in it.
+     */
+    public synchronized void trim(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = buckets.size() - 1; i >= 0 && pooledBytes > maxPooledBytes; i--) {
+            ArrayDeque<byte[]> bucket = buckets.get(i);
+            while (pooledBytes > maxPooledBytes && !bucket.isEmpty())
+                pooledBytes -= bucket.pollFirst().length;
+        }
+    }
+
+    /**
+     * Drops every pooled array and keeps the byte limit.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<byte[]> bucket : buckets)
+            bucket.clear();
+        pooledBytes = 0;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    private static int bucketFor(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        if (shift > MAX_SHIFT)
+            throw new IllegalArgumentException("Buffer too large: " + size);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,170 @@
+package sa.redbullmobile.fpreader;
+
+import android.os.SystemClock;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * FIFO of capture requests waiting for the device.
+ *
+ * Every capture() call gets its own request ID and PluginCall, so a second call no longer replaces
+ * the first one. Only one request is active on the device at a time; the next one is started when
+ * the active request finishes.
+ */
+public class CaptureQueue {
+
+    public static class CaptureRequest {
+        public final String id;
+        public final PluginCall call;
+        final long enqueuedAt;
+        private volatile boolean cancelled = false;
+
+        CaptureRequest(String id, PluginCall call) {
+            this.id = id;
+            this.call = call;
+            this.enqueuedAt = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * True once the request was cancelled before it reached the device; the task that would
+         * start it must not.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final ArrayDeque<CaptureRequest> pending = new ArrayDeque<>();
+    private CaptureRequest active = null;
+    private boolean paused = false;
+    private long nextId = 1;
+
+    private long started = 0;
+    private long totalWaitMs = 0;
+    private long maxWaitMs = 0;
+
+    public synchronized CaptureRequest enqueue(PluginCall call) {
+        CaptureRequest request = new CaptureRequest("cap-" + (nextId++), call);
+        pending.addLast(request);
+        return request;
+    }
+
+    /**
+     * Makes the oldest pending request active if the device is idle.
+     *
+     * @return the request to start, or <code>null</code> if a request is active or none is pending
+     */
+    public synchronized CaptureRequest pollNextIfIdle() {
+        if (paused || active != null || pending.isEmpty())
+            return null;
+        active = pending.pollFirst();
+        long waitMs = SystemClock.elapsedRealtime() - active.enqueuedAt;
+        started++;
+        totalWaitMs += waitMs;
+        maxWaitMs = Math.max(maxWaitMs, waitMs);
+        return active;
+    }
+
+    /**
+     * Marks the active request as finished.
+     *
+     * @return <code>true</code> if the ID was the active request
+     */
+    public synchronized boolean finish(String id) {
+        if (active == null || !active.id.equals(id))
+            return false;
+        active = null;
+        return true;
+    }
+
+    /**
+     * While paused no request is started; requests keep queueing.
+     */
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Puts the active request back at the head of the queue, so it is started again first.
+     *
+     * @return <code>true</code> if the ID was the active request
+     */
+    public synchronized boolean requeueActive(String id) {
+        if (active == null || !active.id.equals(id))
+            return false;
+        pending.addFirst(active);
+        active = null;
+        return true;
+    }
+
+    /**
+     * Removes every request that has not started yet.
+     */
+    public synchronized List<CaptureRequest> drainPending() {
+        List<CaptureRequest> drained = new ArrayList<>(pending);
+        pending.clear();
+        return drained;
+    }
+
+    /**
+     * Cancels the active request while it has no capture on the device yet: still on its way to the
+     * device thread, or waiting for the device to open. The request is finished here.
+     *
+     * @param id the request to cancel, or <code>null</code> for whichever is active
+     * @return the cancelled request, or <code>null</code> if the ID is not the active request
+     */
+    public synchronized CaptureRequest cancelActive(String id) {
+        if (active == null || (id != null && !active.id.equals(id)))
+            return null;
+        CaptureRequest cancelled = active;
+        cancelled.cancelled = true;
+        active = null;
+        return cancelled;
+    }
+
+    public synchronized String getActiveId() {
+        return (active != null) ? active.id : null;
+    }
+
+    /**
+     * Removes a request that has not started yet.
+     *
+     * @return the removed request, or <code>null</code> if no pending request has that ID
+     */
+    public synchronized CaptureRequest removePending(String id) {
+        Iterator<CaptureRequest> it = pending.iterator();
+        while (it.hasNext()) {
+            CaptureRequest request = it.next();
+            if (request.id.equals(id)) {
+                it.remove();
+                return request;
+            }
+        }
+        return null;
+    }
+
+    public synchronized JSObject toJSObject() {
+        long now = SystemClock.elapsedRealtime();
+        CaptureRequest oldest = pending.peekFirst();
+
+        JSObject ret = new JSObject();
+        ret.put("length", pending.size());
+        ret.put("active", (active != null) ? active.id : null);
+        ret.put("paused", paused);
+        ret.put("started", started);
+        ret.put("avgWaitMs", (started > 0) ? totalWaitMs / started : 0);
+        ret.put("maxWaitMs", maxWaitMs);
+        ret.put("oldestWaitMs", (oldest != null) ? now - oldest.enqueuedAt : 0);
+        return ret;
+    }
+}
@@ -0,0 +1,158 @@
+package sa.redbullmobile.fpreader;
+
+import android.os.SystemClock;
+
+import com.getcapacitor.PluginCall;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+import com.integratedbiometrics.ibscanultimate.IBScanDevice.FingerQualityState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * State of one capture request across its attempts: the retry budget in use, the number of
+ * attempts made, and the best image seen so far among results that were not good enough, with the
+ * segment positions to crop it to.
+ *
+ * The session also owns everything that must go away when the request ends, whichever way it
+ * ends: the pending retry and deadline timers and the pooled buffers leased for encoding.
+ */
+public class CaptureSession {
+
+    private final String id;
+    private final PluginCall call;
+    private final RetryPolicy policy;
+    private final long startedAt;
+    private int attempts = 0;
+    private IBScanDevice.ImageData bestImage = null;
+    private FingerQualityState bestQuality = null;
+    private IBScanDevice.SegmentPosition[] bestPositions = null;
+    private ScheduledFuture<?> pendingRetry = null;
+    private ScheduledFuture<?> deadline = null;
+    private final List<PooledOutputStream> leases = new ArrayList<>();
+    private boolean released = false;
+
+    public CaptureSession(String id, PluginCall call, RetryPolicy policy) {
+        this.id = id;
+        this.call = call;
+        this.policy = policy;
+        this.startedAt = SystemClock.elapsedRealtime();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public PluginCall getCall() {
+        return call;
+    }
+
+    public RetryPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int beginAttempt() {
+        return ++attempts;
+    }
+
+    public long getElapsedMs() {
+        return SystemClock.elapsedRealtime() - startedAt;
+    }
+
+    /**
+     * Delay before the next attempt, or -1 when the retry budget is spent.
+     */
+    public long nextDelay() {
+        return policy.nextDelay(attempts, getElapsedMs());
+    }
+
+    /**
+     * Keeps the image if it ranks better than the best one so far. Results without a finger are
+     * never kept.
+     *
+     * @param positions the segments to crop the image to if it is returned, or null
+     */
+    public void offer(IBScanDevice.ImageData image, FingerQualityState quality, IBScanDevice.SegmentPosition[] positions) {
+        if (image == null || quality == FingerQualityState.FINGER_NOT_PRESENT)
+            return;
+        if (bestQuality == null || rank(quality) > rank(bestQuality)) {
+            bestImage = image;
+            bestQuality = quality;
+            bestPositions = positions;
+        }
+    }
+
+    public IBScanDevice.ImageData getBestImage() {
+        return bestImage;
+    }
+
+    public FingerQualityState getBestQuality() {
+        return bestQuality;
+    }
+
+    public IBScanDevice.SegmentPosition[] getBestPositions() {
+        return bestPositions;
+    }
+
+    public void setPendingRetry(ScheduledFuture<?> pendingRetry) {
+        this.pendingRetry = pendingRetry;
+    }
+
+    public void setDeadline(ScheduledFuture<?> deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Leases an output stream from the shared pool; it is returned when the session is released.
+     */
+    public PooledOutputStream lease(int sizeHint) {
+        PooledOutputStream stream = new PooledOutputStream(BufferPool.SHARED, sizeHint);
+        synchronized (leases) {
+            leases.add(stream);
+        }
+        return stream;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    public void release() {
+        released = true;
+        if (pendingRetry != null)
+            pendingRetry.cancel(false);
+        if (deadline != null)
+            deadline.cancel(false);
+        pendingRetry = null;
+        deadline = null;
+        bestImage = null;
+        bestQuality = null;
+        bestPositions = null;
+        synchronized (leases) {
+            for (PooledOutputStream stream : leases)
+                stream.release();
+            leases.clear();
+        }
+    }
+
+    private static int rank(FingerQualityState quality) {
+        switch (quality) {
+            case GOOD:
+                return 4;
+            case FAIR:
+                return 3;
+            case POOR:
+                return 2;
+            case FINGER_NOT_PRESENT:
+                return 0;
+            default:
+                return 1;
+        }
+    }
+}
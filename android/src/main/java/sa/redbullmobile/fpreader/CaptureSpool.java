@@ -0,0 +1,514 @@
+package sa.redbullmobile.fpreader;
+
+import android.util.Log;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of captured frames, so a capture survives a WebView reload or the app being
+ * killed before JS has stored the result.
+ *
+ * The journal file is memory-mapped. Each record is
+ * <code>[magic:int][type:byte][length:int][body:length][crc32:int]</code>, where the CRC covers
+ * the type and body. The magic is written last, so a record torn by a crash is never read back.
+ * A capture record holds the capture ID, the time, its metadata as JSON and the raw frame; a
+ * consumed record holds a capture ID. A capture stays pending until its result has been
+ * delivered (acknowledge()) or JS has recovered it with consumeCapture(); its frame is then zeroed
+ * in place, so no fingerprint stays on disk until the next compaction.
+ *
+ * Appends only copy into the mapping; flushing to disk and compaction (rewriting the pending
+ * records into a fresh file) run on a background thread. Compaction is checked on open, after
+ * every append or consume and hourly, and also drops captures older than MAX_PENDING_AGE_MS and
+ * the oldest ones once the pending frames exceed MAX_PENDING_BYTES.
+ */
+public class CaptureSpool {
+
+    public static class PendingCapture {
+        public final String id;
+        public final long createdAt;
+        public final JSObject metadata;
+        public final byte[] frame;
+
+        PendingCapture(String id, long createdAt, JSObject metadata, byte[] frame) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.metadata = metadata;
+            this.frame = frame;
+        }
+    }
+
+    private static class Entry {
+        final String id;
+        final long createdAt;
+        final JSObject metadata;
+        final int offset;
+        final int length;
+        final int frameOffset;
+        final int frameLength;
+
+        Entry(String id, long createdAt, JSObject metadata, int offset, int length, int frameOffset, int frameLength) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.metadata = metadata;
+            this.offset = offset;
+            this.length = length;
+            this.frameOffset = frameOffset;
+            this.frameLength = frameLength;
+        }
+    }
+
+    private static final String TAG = "RBM";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int FILE_MAGIC = 0x46505350;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER = 8;
+    private static final int RECORD_MAGIC = 0x52454331;
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4 + 4;
+    private static final byte TYPE_CAPTURE = 1;
+    private static final byte TYPE_CONSUMED = 2;
+
+    private static final int INITIAL_CAPACITY = 16 * 1024 * 1024;
+    private static final int COMPACT_MIN_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_PENDING_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+    private static final long COMPACT_CHECK_INTERVAL_MS = 60L * 60 * 1000;
+
+    private final File file;
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+    private final AtomicBoolean compactQueued = new AtomicBoolean(false);
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+    private int position;
+    private int deadBytes = 0;
+    private final LinkedHashMap<String, Entry> pending = new LinkedHashMap<>();
+    private boolean closed = false;
+
+    private long appends = 0;
+    private long totalAppendNs = 0;
+    private long maxAppendNs = 0;
+    private long compactions = 0;
+
+    public CaptureSpool(File file) throws IOException {
+        this.file = file;
+        open();
+        background.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkCompaction();
+            }
+        }, 0, COMPACT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Journals a frame. Only copies into the mapping; the flush to disk happens in the background.
+     *
+     * @return the spool ID of the capture, unique across process restarts
+     */
+    public synchronized String append(String captureId, byte[] frame, JSObject metadata) throws IOException {
+        if (closed)
+            throw new IOException("Spool is closed");
+        long start = System.nanoTime();
+        long createdAt = System.currentTimeMillis();
+        String id = Long.toString(createdAt, 36) + "-" + captureId;
+
+        byte[] idBytes = id.getBytes(UTF8);
+        byte[] metaBytes = metadata.toString().getBytes(UTF8);
+        int bodyLength = 2 + idBytes.length + 8 + 4 + metaBytes.length + 4 + frame.length;
+        int offset = position;
+        ensureCapacity(offset + RECORD_OVERHEAD + bodyLength);
+
+        CRC32 crc = new CRC32();
+        ByteBuffer out = map.duplicate();
+        out.position(offset + 4);
+        out.put(TYPE_CAPTURE);
+        out.putInt(bodyLength);
+        out.putShort((short) idBytes.length);
+        out.put(idBytes);
+        out.putLong(createdAt);
+        out.putInt(metaBytes.length);
+        out.put(metaBytes);
+        out.putInt(frame.length);
+        int frameOffset = out.position();
+        out.put(frame);
+        crc.update(checksumBytes(offset + 4, 1 + 4 + bodyLength - frame.length), 0, 1 + 4 + bodyLength - frame.length);
+        crc.update(frame, 0, frame.length);
+        out.putInt((int) crc.getValue());
+        map.putInt(offset, RECORD_MAGIC);
+
+        position = out.position();
+        pending.put(id, new Entry(id, createdAt, metadata, offset, position - offset, frameOffset, frame.length));
+
+        long elapsed = System.nanoTime() - start;
+        appends++;
+        totalAppendNs += elapsed;
+        maxAppendNs = Math.max(maxAppendNs, elapsed);
+        scheduleFlush();
+        checkCompaction();
+        return id;
+    }
+
+    public synchronized List<PendingCapture> listPending() {
+        List<PendingCapture> ret = new ArrayList<>();
+        for (Entry entry : pending.values())
+            ret.add(new PendingCapture(entry.id, entry.createdAt, entry.metadata, null));
+        return ret;
+    }
+
+    /**
+     * Returns a pending capture with its frame and marks it consumed.
+     *
+     * @return the capture, or <code>null</code> if no capture with that ID is pending
+     */
+    public synchronized PendingCapture consume(String id) throws IOException {
+        Entry entry = pending.get(id);
+        if (entry == null || closed)
+            return null;
+        byte[] frame = new byte[entry.frameLength];
+        ByteBuffer in = map.duplicate();
+        in.position(entry.frameOffset);
+        in.get(frame);
+        markConsumed(entry);
+        return new PendingCapture(entry.id, entry.createdAt, entry.metadata, frame);
+    }
+
+    /**
+     * Marks a capture consumed once its result has reached JS, so it no longer needs recovering.
+     *
+     * @return false if no capture with that ID is pending
+     */
+    public synchronized boolean acknowledge(String id) throws IOException {
+        Entry entry = pending.get(id);
+        if (entry == null || closed)
+            return false;
+        markConsumed(entry);
+        return true;
+    }
+
+    private void markConsumed(Entry entry) throws IOException {
+        String id = entry.id;
+        byte[] idBytes = id.getBytes(UTF8);
+        int bodyLength = 2 + idBytes.length;
+        int offset = position;
+        ensureCapacity(offset + RECORD_OVERHEAD + bodyLength);
+        ByteBuffer out = map.duplicate();
+        out.position(offset + 4);
+        out.put(TYPE_CONSUMED);
+        out.putInt(bodyLength);
+        out.putShort((short) idBytes.length);
+        out.put(idBytes);
+        CRC32 crc = new CRC32();
+        crc.update(checksumBytes(offset + 4, 1 + 4 + bodyLength), 0, 1 + 4 + bodyLength);
+        out.putInt((int) crc.getValue());
+        map.putInt(offset, RECORD_MAGIC);
+        position = out.position();
+
+        pending.remove(id);
+        deadBytes += entry.length + (position - offset);
+        scrub(entry);
+        scheduleFlush();
+        checkCompaction();
+    }
+
+    /*
+     * Zeroes the frame of a consumed capture and re-seals its record. Runs after the consumed
+     * record is written, so a kill between the two leaves a record scan() skips as dead.
+     */
+    private void scrub(Entry entry) {
+        ByteBuffer out = map.duplicate();
+        out.position(entry.frameOffset);
+        byte[] zeros = new byte[Math.min(entry.frameLength, 64 * 1024)];
+        for (int left = entry.frameLength; left > 0; left -= zeros.length)
+            out.put(zeros, 0, Math.min(left, zeros.length));
+        int sealed = 1 + 4 + entry.length - RECORD_OVERHEAD;
+        CRC32 crc = new CRC32();
+        crc.update(checksumBytes(entry.offset + 4, sealed), 0, sealed);
+        map.putInt(entry.offset + entry.length - 4, (int) crc.getValue());
+    }
+
+    public synchronized JSObject toJSObject() {
+        JSObject ret = new JSObject();
+        ret.put("pending", pending.size());
+        ret.put("usedBytes", position);
+        ret.put("deadBytes", deadBytes);
+        ret.put("capacity", (map != null) ? map.capacity() : 0);
+        ret.put("appends", appends);
+        ret.put("avgAppendMs", (appends > 0) ? totalAppendNs / appends / 1e6 : 0);
+        ret.put("maxAppendMs", maxAppendNs / 1e6);
+        ret.put("compactions", compactions);
+        return ret;
+    }
+
+    public static JSArray toJSArray(List<PendingCapture> captures) {
+        JSArray ret = new JSArray();
+        for (PendingCapture capture : captures) {
+            JSObject item = new JSObject();
+            item.put("id", capture.id);
+            item.put("createdAt", capture.createdAt);
+            item.put("metadata", capture.metadata);
+            ret.put(item);
+        }
+        return ret;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        background.shutdown();
+        synchronized (this) {
+            try {
+                map.force();
+                raf.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Closing the capture spool failed", e);
+            }
+            map = null;
+        }
+    }
+
+    private void open() throws IOException {
+        boolean fresh = !file.exists() || file.length() < FILE_HEADER;
+        raf = new RandomAccessFile(file, "rw");
+        int capacity = (int) Math.max(raf.length(), INITIAL_CAPACITY);
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (fresh || map.getInt(0) != FILE_MAGIC || map.getInt(4) != FILE_VERSION) {
+            map.putInt(0, FILE_MAGIC);
+            map.putInt(4, FILE_VERSION);
+            map.putInt(FILE_HEADER, 0);
+        }
+        pending.clear();
+        deadBytes = 0;
+        position = scan(true);
+    }
+
+    /*
+     * Replays the journal into the pending index and returns the end of the last valid record.
+     */
+    private int scan(boolean verify) {
+        int pos = FILE_HEADER;
+        int limit = map.capacity();
+        while (pos + RECORD_OVERHEAD <= limit && map.getInt(pos) == RECORD_MAGIC) {
+            byte type = map.get(pos + 4);
+            int bodyLength = map.getInt(pos + 5);
+            int end = pos + RECORD_OVERHEAD + bodyLength;
+            if (bodyLength < 0 || end > limit)
+                break;
+            if (verify) {
+                CRC32 crc = new CRC32();
+                crc.update(checksumBytes(pos + 4, 1 + 4 + bodyLength), 0, 1 + 4 + bodyLength);
+                if ((int) crc.getValue() != map.getInt(end - 4)) {
+                    if (type != TYPE_CAPTURE)
+                        break;
+                    // A capture caught half scrubbed, by a kill or a concurrent compaction copy,
+                    // has already been consumed; its length is intact, so step over it.
+                    deadBytes += end - pos;
+                    pos = end;
+                    continue;
+                }
+            }
+
+            ByteBuffer in = map.duplicate();
+            in.position(pos + 9);
+            String id = readId(in);
+            if (type == TYPE_CAPTURE) {
+                long createdAt = in.getLong();
+                byte[] metaBytes = new byte[in.getInt()];
+                in.get(metaBytes);
+                int frameLength = in.getInt();
+                JSObject metadata;
+                try {
+                    metadata = new JSObject(new String(metaBytes, UTF8));
+                } catch (JSONException e) {
+                    metadata = new JSObject();
+                }
+                pending.put(id, new Entry(id, createdAt, metadata, pos, end - pos, in.position(), frameLength));
+            } else if (type == TYPE_CONSUMED) {
+                Entry consumed = pending.remove(id);
+                deadBytes += end - pos + ((consumed != null) ? consumed.length : 0);
+            }
+            pos = end;
+        }
+        return pos;
+    }
+
+    /*
+     * True when dead records take half the journal, or a pending capture has aged out, or the
+     * pending frames are over their budget.
+     */
+    private boolean needsCompaction() {
+        if (deadBytes >= COMPACT_MIN_BYTES && deadBytes * 2 >= position)
+            return true;
+        long cutoff = System.currentTimeMillis() - MAX_PENDING_AGE_MS;
+        long live = 0;
+        for (Entry entry : pending.values()) {
+            if (entry.createdAt < cutoff)
+                return true;
+            live += entry.length;
+        }
+        return live > MAX_PENDING_BYTES;
+    }
+
+    private synchronized void checkCompaction() {
+        if (!closed && needsCompaction())
+            scheduleCompaction();
+    }
+
+    /*
+     * Rewrites the pending records into a fresh journal, leaving out aged captures and, newest
+     * first, whatever does not fit MAX_PENDING_BYTES. The bulk copy runs without the lock; records
+     * appended meanwhile are copied under the lock just before the files are swapped. The pending
+     * index is only rebuilt from the new file, so a failed compaction drops nothing.
+     */
+    private void compact() {
+        List<Entry> snapshot = new ArrayList<>();
+        int snapshotEnd;
+        MappedByteBuffer source;
+        synchronized (this) {
+            if (closed)
+                return;
+            long cutoff = System.currentTimeMillis() - MAX_PENDING_AGE_MS;
+            long kept = 0;
+            List<Entry> entries = new ArrayList<>(pending.values());
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                Entry entry = entries.get(i);
+                if (entry.createdAt < cutoff)
+                    continue;
+                if (kept + entry.length > MAX_PENDING_BYTES)
+                    break;
+                kept += entry.length;
+                snapshot.add(0, entry);
+            }
+            snapshotEnd = position;
+            source = map;
+        }
+
+        File tmp = new File(file.getPath() + ".compact");
+        try {
+            RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+            try {
+                out.setLength(0);
+                FileChannel channel = out.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+                header.putInt(FILE_MAGIC).putInt(FILE_VERSION).flip();
+                channel.write(header);
+                for (Entry entry : snapshot)
+                    channel.write(slice(source, entry.offset, entry.length));
+
+                synchronized (this) {
+                    if (closed)
+                        return;
+                    channel.write(slice(map, snapshotEnd, position - snapshotEnd));
+                    channel.force(false);
+                    out.close();
+                    raf.close();
+                    if (!tmp.renameTo(file))
+                        throw new IOException("Cannot replace " + file);
+                    open();
+                    compactions++;
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Compacting the capture spool failed", e);
+            tmp.delete();
+            synchronized (this) {
+                if (!closed && !raf.getChannel().isOpen()) {
+                    try {
+                        open();
+                    } catch (IOException reopen) {
+                        Log.e(TAG, "Reopening the capture spool failed", reopen);
+                        closed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void ensureCapacity(int needed) throws IOException {
+        if (needed <= map.capacity())
+            return;
+        long capacity = map.capacity();
+        while (capacity < needed)
+            capacity *= 2;
+        if (capacity > Integer.MAX_VALUE)
+            throw new IOException("Spool is full");
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private byte[] checksumBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer in = map.duplicate();
+        in.position(offset);
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer slice(ByteBuffer source, int offset, int length) {
+        ByteBuffer slice = source.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice;
+    }
+
+    private static String readId(ByteBuffer in) {
+        byte[] idBytes = new byte[in.getShort()];
+        in.get(idBytes);
+        return new String(idBytes, UTF8);
+    }
+
+    private void scheduleFlush() {
+        if (!flushQueued.compareAndSet(false, true))
+            return;
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushQueued.set(false);
+                MappedByteBuffer current;
+                synchronized (CaptureSpool.this) {
+                    if (closed)
+                        return;
+                    current = map;
+                }
+                // msync outside the lock, so appends never wait for the disk.
+                current.force();
+            }
+        });
+    }
+
+    private void scheduleCompaction() {
+        if (!compactQueued.compareAndSet(false, true))
+            return;
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                compactQueued.set(false);
+                compact();
+            }
+        });
+    }
+}
@@ -0,0 +1,94 @@
+package sa.redbullmobile.fpreader;
+
+import android.util.Log;
+
+import com.getcapacitor.JSObject;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single thread that owns all device state.
+ *
+ * Plugin commands, native device callbacks, USB events and timers are all posted here as messages
+ * and run one at a time, so the state they touch needs no locking. The mailbox latency (time from
+ * post, or from the due time for delayed messages, until the message starts running) is tracked
+ * with atomics and can be read from any thread.
+ */
+public class DeviceActor {
+
+    private static final String TAG = "RBM";
+
+    private final ScheduledThreadPoolExecutor executor;
+    private volatile Thread thread = null;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong totalLatencyNs = new AtomicLong();
+    private final AtomicLong maxLatencyNs = new AtomicLong();
+
+    public DeviceActor(final String name) {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                thread = t;
+                return t;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    public void post(Runnable message) {
+        executor.execute(wrap(message, System.nanoTime()));
+    }
+
+    public ScheduledFuture<?> postDelayed(Runnable message, long delayMs) {
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        return executor.schedule(wrap(message, due), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isActorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public JSObject getMetrics() {
+        long count = processed.get();
+        JSObject ret = new JSObject();
+        ret.put("processed", count);
+        ret.put("pending", executor.getQueue().size());
+        ret.put("avgLatencyMs", (count > 0) ? totalLatencyNs.get() / count / 1e6 : 0);
+        ret.put("maxLatencyMs", maxLatencyNs.get() / 1e6);
+        return ret;
+    }
+
+    private Runnable wrap(final Runnable message, final long due) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                record(System.nanoTime() - due);
+                try {
+                    message.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Device actor message failed", e);
+                }
+            }
+        };
+    }
+
+    private void record(long latencyNs) {
+        latencyNs = Math.max(latencyNs, 0);
+        processed.incrementAndGet();
+        totalLatencyNs.addAndGet(latencyNs);
+        long max;
+        do {
+            max = maxLatencyNs.get();
+        } while (latencyNs > max && !maxLatencyNs.compareAndSet(max, latencyNs));
+    }
+}
@@ -0,0 +1,81 @@
+package sa.redbullmobile.fpreader;
+
+import android.util.Log;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+import com.integratedbiometrics.ibscanultimate.IBScanException;
+
+/**
+ * Capture modes supported by an opened device.
+ *
+ * Every ImageType x ImageResolution combination is probed through isCaptureAvailable once, when the
+ * device is opened, and kept as a bitset so captures and retries never need the JNI round trip.
+ */
+public class DeviceCapabilities {
+
+    private static final String TAG = "RBM";
+
+    private static final IBScanDevice.ImageType[] IMAGE_TYPES = IBScanDevice.ImageType.values();
+    private static final IBScanDevice.ImageResolution[] RESOLUTIONS = IBScanDevice.ImageResolution.values();
+
+    private final long mask;
+
+    private DeviceCapabilities(long mask) {
+        this.mask = mask;
+    }
+
+    public static DeviceCapabilities probe(IBScanDevice device) {
+        long mask = 0;
+        for (IBScanDevice.ImageType imageType : IMAGE_TYPES) {
+            if (imageType == IBScanDevice.ImageType.TYPE_NONE)
+                continue;
+            for (IBScanDevice.ImageResolution imgRes : RESOLUTIONS) {
+                try {
+                    if (device.isCaptureAvailable(imageType, imgRes))
+                        mask |= bit(imageType, imgRes);
+                } catch (IBScanException e) {
+                    Log.d(TAG, "isCaptureAvailable(" + imageType + ", " + imgRes + ") failed: " + e.getMessage());
+                }
+            }
+        }
+        Log.d(TAG, "Capabilities: 0x" + Long.toHexString(mask));
+        return new DeviceCapabilities(mask);
+    }
+
+    public boolean isAvailable(IBScanDevice.ImageType imageType, IBScanDevice.ImageResolution imgRes) {
+        return (mask & bit(imageType, imgRes)) != 0;
+    }
+
+    public long getMask() {
+        return mask;
+    }
+
+    public JSObject toJSObject() {
+        JSObject modes = new JSObject();
+        for (IBScanDevice.ImageType imageType : IMAGE_TYPES) {
+            JSArray resolutions = new JSArray();
+            for (IBScanDevice.ImageResolution imgRes : RESOLUTIONS) {
+                if (isAvailable(imageType, imgRes))
+                    resolutions.put(toPpi(imgRes));
+            }
+            if (resolutions.length() > 0)
+                modes.put(imageType.name(), resolutions);
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("mask", mask);
+        ret.put("modes", modes);
+        return ret;
+    }
+
+    private static long bit(IBScanDevice.ImageType imageType, IBScanDevice.ImageResolution imgRes) {
+        return 1L << (imageType.ordinal() * RESOLUTIONS.length + imgRes.ordinal());
+    }
+
+    private static int toPpi(IBScanDevice.ImageResolution imgRes) {
+        return (imgRes == IBScanDevice.ImageResolution.RESOLUTION_1000) ? 1000 : 500;
+    }
+}
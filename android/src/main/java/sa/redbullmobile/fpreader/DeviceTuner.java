@@ -0,0 +1,152 @@
+package sa.redbullmobile.fpreader;
+
+import android.util.Log;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+import com.integratedbiometrics.ibscanultimate.IBScanDevice.PropertyId;
+import com.integratedbiometrics.ibscanultimate.IBScanException;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes device properties for one opened IBScanDevice.
+ *
+ * The last value written (or read) for every property is cached, so re-applying a profile only
+ * crosses JNI for values that actually changed. A profile is applied all-or-nothing: if one write
+ * fails, the properties already written are restored before the exception is rethrown. Properties
+ * the device reports as unsupported are remembered and skipped from then on.
+ */
+public class DeviceTuner {
+
+    private static final String TAG = "RBM";
+
+    private final IBScanDevice device;
+    private final Map<PropertyId, String> applied = new EnumMap<>(PropertyId.class);
+    private final Set<PropertyId> unsupported = EnumSet.noneOf(PropertyId.class);
+    private TuningProfile profile = null;
+
+    public DeviceTuner(IBScanDevice device) {
+        this.device = device;
+    }
+
+    public TuningProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Applies every property of the profile, skipping values that are already set. Must be called
+     * between captures, never while an acquisition is running.
+     */
+    public void apply(TuningProfile profile) throws IBScanException {
+        if (profile == this.profile)
+            return;
+        if (device.isCaptureActive())
+            throw new IllegalStateException("Cannot change tuning profile while a capture is active");
+
+        apply(profile.getProperties());
+        Log.d(TAG, "Tuning profile: " + this.profile + " -> " + profile);
+        this.profile = profile;
+    }
+
+    /**
+     * Sets a single property, skipping the write when the cached value already matches. A write
+     * marks the current profile as modified, so the next apply restores its values.
+     */
+    public void set(PropertyId propertyId, String value) throws IBScanException {
+        Map<PropertyId, String> one = new EnumMap<>(PropertyId.class);
+        one.put(propertyId, value);
+        if (apply(one))
+            profile = null;
+    }
+
+    public String get(PropertyId propertyId) throws IBScanException {
+        String value = applied.get(propertyId);
+        if (value == null) {
+            value = device.getProperty(propertyId);
+            applied.put(propertyId, value);
+        }
+        return value;
+    }
+
+    /**
+     * Forgets the cached values, for instance after the device has been closed and reopened.
+     */
+    public void invalidate() {
+        applied.clear();
+        profile = null;
+    }
+
+    private boolean apply(Map<PropertyId, String> properties) throws IBScanException {
+        List<PropertyId> written = new ArrayList<>();
+        Map<PropertyId, String> previous = new EnumMap<>(PropertyId.class);
+        try {
+            for (Map.Entry<PropertyId, String> entry : properties.entrySet()) {
+                PropertyId propertyId = entry.getKey();
+                String value = entry.getValue();
+                if (unsupported.contains(propertyId))
+                    continue;
+
+                String current = applied.get(propertyId);
+                if (current == null) {
+                    // First touch: read the device value so it can be skipped or restored.
+                    current = readQuietly(propertyId);
+                    if (current != null)
+                        applied.put(propertyId, current);
+                }
+                if (value.equalsIgnoreCase(current))
+                    continue;
+
+                previous.put(propertyId, current);
+                try {
+                    device.setProperty(propertyId, value);
+                } catch (IBScanException e) {
+                    if (!isUnsupported(e))
+                        throw e;
+                    Log.d(TAG, "Property " + propertyId + " is not supported by this device");
+                    unsupported.add(propertyId);
+                    continue;
+                }
+                applied.put(propertyId, value);
+                written.add(propertyId);
+            }
+        } catch (IBScanException e) {
+            rollback(written, previous);
+            throw e;
+        }
+        return !written.isEmpty();
+    }
+
+    private void rollback(List<PropertyId> written, Map<PropertyId, String> previous) {
+        for (int i = written.size() - 1; i >= 0; i--) {
+            PropertyId propertyId = written.get(i);
+            String value = previous.get(propertyId);
+            applied.remove(propertyId);
+            if (value == null)
+                continue;
+            try {
+                device.setProperty(propertyId, value);
+                applied.put(propertyId, value);
+            } catch (IBScanException e) {
+                Log.d(TAG, "Failed to restore " + propertyId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private String readQuietly(PropertyId propertyId) {
+        try {
+            return device.getProperty(propertyId);
+        } catch (IBScanException e) {
+            return null;
+        }
+    }
+
+    private static boolean isUnsupported(IBScanException e) {
+        return e.getType() == IBScanException.Type.NOT_SUPPORTED
+                || e.getType() == IBScanException.Type.DEVICE_NOT_SUPPORTED_FEATURE;
+    }
+}
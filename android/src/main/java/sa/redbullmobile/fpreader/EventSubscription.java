@@ -0,0 +1,120 @@
+package sa.redbullmobile.fpreader;
+
+import android.util.Log;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+import com.integratedbiometrics.ibscanultimate.IBScanDevice.EventType;
+import com.integratedbiometrics.ibscanultimate.IBScanException;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Keeps only the native events the plugin consumes enabled on a device.
+ *
+ * The SDK enables every event when a device is opened, so preview frames, platen and rolling
+ * notifications cross JNI even when nothing listens. The needed set is derived from the capture
+ * mode and whether a preview listener is registered, and only the differences are pushed to the
+ * device with enableEvent.
+ *
+ * Subscription tuning is only an optimisation. If the device rejects a change, every event is
+ * enabled again and left that way for the life of the subscription; a capture only fails when a
+ * REQUIRED event cannot be enabled.
+ */
+public class EventSubscription {
+
+    private static final String TAG = "RBM";
+
+    /* Events FPReader always reacts to. */
+    private static final Set<EventType> REQUIRED = EnumSet.of(
+            EventType.COMMUNICATION_BROKEN,
+            EventType.FINGER_COUNT_CHANGED,
+            EventType.FINGER_QUALITY_CHANGED,
+            EventType.RESULT_IMAGE_EXTENDED_AVAILABLE);
+
+    private final IBScanDevice device;
+    private final DeviceTuner tuner;
+    private final Set<EventType> enabled = EnumSet.allOf(EventType.class);
+    private boolean fallback = false;
+
+    public EventSubscription(IBScanDevice device, DeviceTuner tuner) {
+        this.device = device;
+        this.tuner = tuner;
+    }
+
+    public static Set<EventType> required(IBScanDevice.ImageType imageType, boolean wantsPreview) {
+        Set<EventType> events = EnumSet.copyOf(REQUIRED);
+        if (wantsPreview)
+            events.add(EventType.PREVIEW_IMAGE_AVAILABLE);
+        if (imageType == IBScanDevice.ImageType.ROLL_SINGLE_FINGER) {
+            events.add(EventType.ACQUISITION_BEGUN);
+            events.add(EventType.ACQUISITION_COMPLETED);
+        }
+        return events;
+    }
+
+    /**
+     * Enables or disables events so that exactly the ones needed for the next capture are active,
+     * and turns preview image generation off when nobody consumes it.
+     *
+     * @throws IBScanException if a REQUIRED event cannot be enabled
+     */
+    public void update(IBScanDevice.ImageType imageType, boolean wantsPreview) throws IBScanException {
+        Set<EventType> wanted = fallback ? EnumSet.allOf(EventType.class) : required(imageType, wantsPreview);
+        boolean changed = false;
+        for (EventType event : EventType.values()) {
+            boolean enable = wanted.contains(event);
+            if (enable == enabled.contains(event))
+                continue;
+            try {
+                device.enableEvent(event, enable);
+            } catch (IBScanException e) {
+                Log.w(TAG, "Cannot " + (enable ? "enable " : "disable ") + event + ": " + e.getType() + "; enabling all events");
+                enableAll();
+                return;
+            }
+            if (enable)
+                enabled.add(event);
+            else
+                enabled.remove(event);
+            changed = true;
+        }
+        if (tuner != null) {
+            try {
+                tuner.set(IBScanDevice.PropertyId.NO_PREVIEW_IMAGE, (wantsPreview || fallback) ? "FALSE" : "TRUE");
+            } catch (IBScanException e) {
+                Log.w(TAG, "Cannot set NO_PREVIEW_IMAGE: " + e.getType());
+            }
+        }
+        if (changed)
+            Log.d(TAG, "Enabled events: " + enabled);
+    }
+
+    /*
+     * Falls back to the SDK's default of every event enabled. Only a REQUIRED event that stays
+     * disabled is an error.
+     */
+    private void enableAll() throws IBScanException {
+        fallback = true;
+        for (EventType event : EventType.values()) {
+            if (enabled.contains(event))
+                continue;
+            try {
+                device.enableEvent(event, true);
+                enabled.add(event);
+            } catch (IBScanException e) {
+                if (REQUIRED.contains(event))
+                    throw e;
+                Log.w(TAG, "Cannot enable " + event + ": " + e.getType());
+            }
+        }
+        if (tuner != null) {
+            try {
+                tuner.set(IBScanDevice.PropertyId.NO_PREVIEW_IMAGE, "FALSE");
+            } catch (IBScanException e) {
+                Log.w(TAG, "Cannot set NO_PREVIEW_IMAGE: " + e.getType());
+            }
+        }
+        Log.d(TAG, "Enabled events: " + enabled);
+    }
+}
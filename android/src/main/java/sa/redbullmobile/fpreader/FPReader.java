@@ -1,7 +1,8 @@
 package sa.redbullmobile.fpreader;
 
+import android.os.SystemClock;
 import android.util.Log;
-import android.graphics.Bitmap;
+import android.hardware.usb.UsbDevice;
 import android.util.Base64;
 import android.util.Log;
 
@@ -15,21 +16,99 @@ import com.integratedbiometrics.ibscanultimate.IBScanListener;
 
 import com.getcapacitor.PluginCall;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
+import org.libusb.LibUsbManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Device state for the plugin. Everything here is confined to the DeviceActor thread: the plugin
+ * reaches it through RunOnDeviceThread, and SDK callbacks are re-posted to that thread before they
+ * touch any field. Only the listener setters and GetActorMetrics may be called from other threads.
+ */
+public class FPReader implements IBScanListener, IBScanDeviceListener {
 
+    public interface PreviewListener {
+        void onPreviewImage(IBScanDevice.ImageData image);
+    }
 
-public class FPReader implements IBScanListener, IBScanDeviceListener {
+    public interface CaptureListener {
+        void onCaptureFinished(String captureId);
+    }
 
     private static final String TAG = "RBM";
 
+    public static final String CAPTURE_CANCELLED = "cancelled";
+    public static final String CAPTURE_TIMEOUT = "timeout";
+    public static final String CAPTURE_DESTROYED = "destroyed";
+
+    public static final String RESULT_MODE_BASE64 = "base64";
+    public static final String RESULT_MODE_FILE = "file";
+
+    public static final int DEFAULT_JPEG_QUALITY = 100;
+    public static final double WSQ_BIT_RATE = .75;
+
+    private static final String PERMISSION_ACCEPTED = "Permission to connect to the device was accepted!";
+
+    /* Range accepted by the CAPTURE_TIMEOUT property, in seconds. */
+    private static final int MIN_NATIVE_TIMEOUT_S = 10;
+    private static final int MAX_NATIVE_TIMEOUT_S = 3600;
+
     public IBScan IBActivityScan;
     public Boolean IsIBScan = null;
     public IBScanDevice IBActivityScanDevice = null;
-    private PluginCall callbackContext = null;
+    /* requestPermission() calls waiting for the user to answer the USB permission prompt. */
+    private final List<PluginCall> permissionCalls = new ArrayList<>();
     private String mDeviceSN = null;
     private int deviceId = 0;
+    private DeviceCapabilities capabilities = null;
+    private DeviceTuner tuner = null;
+    private EventSubscription events = null;
+    private volatile PreviewListener previewListener = null;
+    private volatile CaptureListener captureListener = null;
     private IBScanDevice.FingerQualityState fingerQualy = IBScanDevice.FingerQualityState.FINGER_NOT_PRESENT;
+    private CaptureSession session = null;
+    private final PermissionCache permissions = new PermissionCache();
+    private final WsqRateController wsqRates = new WsqRateController();
+    private MemoryGovernor governor = null;
+    private ArtifactStore artifactStore = null;
+    private volatile CaptureSpool spool = null;
+    private ArtifactCache artifactCache = null;
+    private boolean opening = false;
+    private final List<Runnable> openWaiters = new ArrayList<>();
+    private final DeviceActor actor = new DeviceActor("FPReader-device");
+    /* Result encoders that do not need the device; the WSQ encode stays on the actor. */
+    private final ExecutorService encoders = Executors.newFixedThreadPool(2);
+    private final IdlePowerManager idle = new IdlePowerManager(actor, new IdlePowerManager.Device() {
+        @Override
+        public boolean enterPowerSave() {
+            return setPowerSave(true);
+        }
+
+        @Override
+        public boolean exitPowerSave() {
+            return setPowerSave(false);
+        }
+
+        @Override
+        public boolean close() {
+            return closeIdleDevice();
+        }
+
+        @Override
+        public boolean reopen() {
+            return openInBackground();
+        }
+    });
 
     public String echo(String value) {
         Log.i(TAG, value);
@@ -39,9 +118,8 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
     public FPReader() {
     }
 
-    public FPReader(IBScan IBActivityScan, PluginCall call) throws IBScanException {
+    public FPReader(IBScan IBActivityScan) throws IBScanException {
         Log.d(TAG, "Initializing");
-        callbackContext = call;
         this.IBActivityScan = IBActivityScan;
         this.IBActivityScan.setScanListener(this);
     }
@@ -58,10 +136,6 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
         return serial;
     }
 
-    public void SetCallbackContext(PluginCall callbackContext)  {
-        this.callbackContext = callbackContext;
-    }
-
     public void SetDeviceScanListener() {
         if (IBActivityScanDevice != null)
             IBActivityScanDevice.setScanDeviceListener(this);
@@ -71,6 +145,150 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
         mDeviceSN = SN;
     }
 
+    public void ResetPermissionDecisions() {
+        permissions.reset();
+    }
+
+    /**
+     * Takes an opened device into use: probes its capabilities, applies the default tuning profile
+     * and registers for its events.
+     */
+    public void ConfigureOpenedDevice(IBScanDevice device) throws IBScanException {
+        IBActivityScanDevice = device;
+        SetCapabilities(DeviceCapabilities.probe(device));
+        SetTuner(new DeviceTuner(device));
+        ApplyProfile(TuningProfile.DEFAULT);
+        SetDeviceScanListener();
+    }
+
+    public boolean IsOpening() {
+        return opening;
+    }
+
+    /**
+     * Runs the task on the device thread once the asynchronous open started on attach completes.
+     *
+     * @return <code>false</code> if no open is in progress and the task was not queued
+     */
+    public boolean RunWhenOpened(Runnable task) {
+        if (!opening)
+            return false;
+        openWaiters.add(task);
+        return true;
+    }
+
+    public void SetCapabilities(DeviceCapabilities capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public DeviceCapabilities GetCapabilities() {
+        return capabilities;
+    }
+
+    public void SetTuner(DeviceTuner tuner) {
+        this.tuner = tuner;
+        this.events = null;
+    }
+
+    public void ApplyProfile(TuningProfile profile) throws IBScanException {
+        if (tuner == null && IBActivityScanDevice != null)
+            tuner = new DeviceTuner(IBActivityScanDevice);
+        if (tuner != null)
+            tuner.apply(profile);
+    }
+
+    public void SetPreviewListener(PreviewListener previewListener) {
+        this.previewListener = previewListener;
+    }
+
+    public void SetCaptureListener(CaptureListener captureListener) {
+        this.captureListener = captureListener;
+    }
+
+    public void RunOnDeviceThread(Runnable task) {
+        actor.post(task);
+    }
+
+    public JSObject GetActorMetrics() {
+        return actor.getMetrics();
+    }
+
+    /**
+     * Keeps each result's raw image and encoded formats in the cache, and registers the WSQ encoder,
+     * which needs the opened device and therefore runs on the device thread.
+     */
+    public void SetArtifactCache(ArtifactCache artifactCache) {
+        this.artifactCache = artifactCache;
+        artifactCache.registerFormat("wsq", new ArtifactCache.Encoder() {
+            @Override
+            public byte[] encode(final IBScanDevice.ImageData image) throws Exception {
+                FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        // Without an open device (closed while idle, or unplugged) fall back to the Java codec.
+                        if (IBActivityScanDevice == null)
+                            return WsqCodec.encode(image, WsqCodec.DEFAULT_BIT_RATE, null);
+                        return (byte[]) IBActivityScanDevice.wsqEncodeToMem(image.buffer, image.width, image.height, image.pitch, image.bitsPerPixel, (int) image.resolutionX, WSQ_BIT_RATE, "")[0];
+                    }
+                });
+                actor.post(task);
+                return task.get();
+            }
+        });
+    }
+
+    public void SetCaptureSpool(CaptureSpool spool) {
+        this.spool = spool;
+    }
+
+    public void SetArtifactStore(ArtifactStore artifactStore) {
+        this.artifactStore = artifactStore;
+    }
+
+    public void SetMemoryGovernor(MemoryGovernor governor) {
+        this.governor = governor;
+    }
+
+    public void SetIdlePolicy(Long powerSaveAfterMs, Long closeAfterMs, Long wakeLeadMs, Boolean predictive) {
+        idle.configure(powerSaveAfterMs, closeAfterMs, wakeLeadMs, predictive);
+    }
+
+    public JSObject GetIdleMetrics() {
+        return idle.toJSObject();
+    }
+
+    /**
+     * Tells the idle manager a capture request is about to use the device. Runs on the device
+     * thread, before the request opens or tunes the device.
+     */
+    public void NoteCaptureRequested() {
+        idle.onCaptureRequested();
+    }
+
+    /**
+     * Settles a requestPermission() call: at once when the device is open, when a background open
+     * in progress completes, and otherwise with the outcome of the next USB permission prompt.
+     * Runs on the device thread.
+     */
+    public void SettlePermission(final PluginCall call) {
+        if (IBActivityScanDevice != null) {
+            returnResult(call, "0", PERMISSION_ACCEPTED, true);
+            return;
+        }
+        if (RunWhenOpened(() -> {
+            if (IBActivityScanDevice != null)
+                returnResult(call, "0", PERMISSION_ACCEPTED, true);
+            else
+                call.reject("Failed to open the device");
+        }))
+            return;
+        permissionCalls.add(call);
+    }
+
+    /*
+     * Settles every requestPermission() call waiting for the prompt. A prompt raised on attach,
+     * with no call waiting, only records the outcome.
+     */
     public void OnPermissionGranted(boolean granted) {
         String message;
         String code;
@@ -79,7 +297,7 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
             IsIBScan = true;
             code = "0";
             status = true;
-            message = "Permission to connect to the device was accepted!";
+            message = PERMISSION_ACCEPTED;
         }
         else {
             IsIBScan = null;
@@ -87,48 +305,249 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
             status = false;
             message = "Permission to connect to the device was denied!";
         }
-        callbackContext.setKeepAlive(true);
-        returnResult(code, message, status);
+        List<PluginCall> calls = new ArrayList<>(permissionCalls);
+        permissionCalls.clear();
+        for (PluginCall call : calls)
+            returnResult(call, code, message, status);
+    }
+
+    public void StartCapture(IBScanDevice device, String captureId, PluginCall call, RetryPolicy policy, Long timeoutMs) throws Exception {
+        if (session != null)
+            throw new IllegalStateException("Capture " + session.getId() + " is still in progress");
+        final CaptureSession current = new CaptureSession(captureId, call, policy);
+        session = current;
+
+        if (timeoutMs != null && timeoutMs > 0) {
+            // The native timeout is only a backstop for a stalled plugin; the scheduled deadline fires first.
+            if (tuner != null) {
+                long seconds = Math.min(Math.max((timeoutMs + 999) / 1000, MIN_NATIVE_TIMEOUT_S), MAX_NATIVE_TIMEOUT_S);
+                tuner.set(IBScanDevice.PropertyId.CAPTURE_TIMEOUT, String.valueOf(seconds));
+            }
+            current.setDeadline(actor.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (session == current) {
+                        Log.d(TAG, "Capture deadline reached");
+                        CancelCapture(CAPTURE_TIMEOUT);
+                    }
+                }
+            }, timeoutMs));
+        }
+
+        try {
+            ScanFingerprint(device);
+        } catch (Exception e) {
+            // The caller rejects the call; just make the device available again.
+            session = null;
+            current.release();
+            idle.onCaptureFinished();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the capture in progress without settling its call, so it can be started again later.
+     * The session's timers and buffers are released.
+     *
+     * @return the ID of the suspended capture, or <code>null</code> if none was in progress
+     */
+    public String SuspendCapture() {
+        CaptureSession suspended = session;
+        if (suspended == null)
+            return null;
+
+        IBScanDevice device = IBActivityScanDevice;
+        try {
+            if (device != null && device.isCaptureActive())
+                device.cancelCaptureImage();
+        } catch (IBScanException e) {
+            debugMessage("cancelCaptureImage failed: " + e.getMessage());
+        }
+        session = null;
+        suspended.release();
+        idle.onCaptureFinished();
+        return suspended.getId();
+    }
+
+    /**
+     * Starts opening the device in the background if it is not open, e.g. when the app returns to
+     * the foreground.
+     */
+    public void Prewarm() {
+        if (IBActivityScanDevice == null)
+            openInBackground();
+    }
+
+    /**
+     * Releases everything the reader holds: rejects the capture in progress, closes the device,
+     * unregisters the USB receiver and stops the device thread. Runs on the device thread as its
+     * last message.
+     */
+    public void Release(boolean unloadLibrary) {
+        previewListener = null;
+        captureListener = null;
+        CancelCapture(CAPTURE_DESTROYED);
+        idle.onDeviceLost();
+        openWaiters.clear();
+        for (PluginCall call : permissionCalls)
+            call.reject("The reader was released");
+        permissionCalls.clear();
+        if (IBActivityScanDevice != null) {
+            try {
+                IBActivityScanDevice.close();
+            } catch (IBScanException e) {
+                debugMessage("Closing the device failed: " + e.getType());
+            }
+        }
+        IBActivityScanDevice = null;
+        capabilities = null;
+        tuner = null;
+        events = null;
+
+        IBActivityScan.setScanListener(null);
+        IBActivityScan.setContext(null);
+        if (unloadLibrary) {
+            try {
+                IBActivityScan.unloadLibrary();
+            } catch (IBScanException e) {
+                debugMessage("unloadLibrary failed: " + e.getType());
+            }
+        }
+        actor.shutdown();
+        encoders.shutdownNow();
+    }
+
+    /**
+     * Aborts the capture in progress, if any, and rejects its call with the given reason. The
+     * device and every pooled buffer held by the capture are released before this returns.
+     *
+     * @return <code>true</code> if a capture was cancelled
+     */
+    public boolean CancelCapture(String reason) {
+        if (session == null)
+            return false;
+
+        IBScanDevice device = IBActivityScanDevice;
+        try {
+            if (device != null && device.isCaptureActive())
+                device.cancelCaptureImage();
+        } catch (IBScanException e) {
+            debugMessage("cancelCaptureImage failed: " + e.getMessage());
+        }
+
+        JSObject json = new JSObject();
+        json.put("errorCode", reason);
+        json.put("device", mDeviceSN);
+        json.put("deviceModel", android.os.Build.MODEL);
+        json.put("attempts", session.getAttempts());
+        json.put("captureId", session.getId());
+        session.getCall().reject(json.toString(), reason);
+        endSession();
+        return true;
     }
 
     public void ScanFingerprint(IBScanDevice device) throws Exception {
         IBScanDevice.ImageResolution imgRes = IBScanDevice.ImageResolution.RESOLUTION_500;
-        boolean bAvailable = device.isCaptureAvailable(IBScanDevice.ImageType.FLAT_SINGLE_FINGER, imgRes);
+        if (capabilities == null)
+            capabilities = DeviceCapabilities.probe(device);
+        boolean bAvailable = capabilities.isAvailable(IBScanDevice.ImageType.FLAT_SINGLE_FINGER, imgRes);
         if (!bAvailable)
             throw new Exception(TAG+"The capture mode (" + IBScanDevice.ImageType.FLAT_SINGLE_FINGER + ") is not available");
 
+        if (events == null)
+            events = new EventSubscription(device, tuner);
+        events.update(IBScanDevice.ImageType.FLAT_SINGLE_FINGER, previewListener != null);
+
         int captureOptions = 0;
         captureOptions |= IBScanDevice.OPTION_AUTO_CONTRAST;
         captureOptions |= IBScanDevice.OPTION_AUTO_CAPTURE;
         captureOptions |= IBScanDevice.OPTION_IGNORE_FINGER_COUNT;
 
+        if (session == null)
+            throw new IllegalStateException("No capture in progress");
+        int attempt = session.beginAttempt();
+        Log.d(TAG, "Capture attempt " + attempt + "/" + session.getPolicy().getMaxAttempts());
+
         device.beginCaptureImage(IBScanDevice.ImageType.FLAT_SINGLE_FINGER, imgRes, captureOptions);
+    }
 
-        Thread.sleep(2000);
+    /*
+     * Re-captures on the device thread after the policy's backoff instead of recursing on the callback
+     * thread. When the budget is spent the best image seen so far is returned, if there is one.
+     */
+    private void retryCapture(final IBScanDevice device) {
+        final CaptureSession current = session;
+        long delay = current.nextDelay();
+        if (delay < 0) {
+            Log.d(TAG, "Retry budget exhausted after " + current.getAttempts() + " attempts");
+            IBScanDevice.ImageData best = current.getBestImage();
+            if (best != null)
+                resolveImage(best, cropToSegments(best, current.getBestPositions()), current.getBestQuality(), true);
+            else
+                sendError(57);
+            return;
+        }
+
+        current.setPendingRetry(actor.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (session != current)
+                    return;
+                try {
+                    RetryPolicy.Escalation escalation = current.getPolicy().getEscalation();
+                    if (escalation != null)
+                        escalation.apply(tuner, current.getAttempts() + 1);
+                    ScanFingerprint(device);
+                } catch (Exception e) {
+                    Log.d(TAG, "" + e.getMessage());
+                    Log.d(TAG, "Error 57");
+                    sendError(57);
+                }
+            }
+        }, delay));
     }
 
-    private void returnResult(String code, String message, boolean isSuccess){
+    private void endSession() {
+        CaptureSession ended = session;
+        if (ended == null)
+            return;
+        session = null;
+        ended.release();
+        idle.onCaptureFinished();
+        if (captureListener != null)
+            captureListener.onCaptureFinished(ended.getId());
+    }
+
+    private void returnResult(PluginCall call, String code, String message, boolean isSuccess){
         JSObject ret = new JSObject();
         ret.put("code", code);
         ret.put("message",message);
         if(isSuccess)
-            callbackContext.resolve(ret);
+            call.resolve(ret);
         else
-            callbackContext.reject(message, code);
+            call.reject(message, code);
     }
 
     private void sendError(long result) {
+        if (session == null) {
+            Log.d(TAG, "No capture in progress for error " + result);
+            return;
+        }
+        PluginCall call = session.getCall();
         JSObject json = new JSObject();
         try {
             json.put("errorCode", result);
             json.put("device", mDeviceSN);
             json.put("deviceModel", android.os.Build.MODEL);
+            json.put("attempts", session.getAttempts());
+            json.put("captureId", session.getId());
 
-            callbackContext.reject(json.toString());
+            call.reject(json.toString());
         } catch (Exception e) {
             e.printStackTrace();
-            callbackContext.reject("" + result);
+            call.reject("" + result);
         }
+        endSession();
     }
 
 
@@ -144,11 +563,17 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
 
     @Override
     public void deviceImagePreviewAvailable(IBScanDevice ibScanDevice, IBScanDevice.ImageData imageData) {
-        Log.d(TAG, "Device Image Preview Available");
+        PreviewListener listener = previewListener;
+        if (listener != null)
+            listener.onPreviewImage(imageData);
     }
 
     @Override
-    public void deviceFingerCountChanged(IBScanDevice device, IBScanDevice.FingerCountState fingerState) {
+    public void deviceFingerCountChanged(final IBScanDevice device, final IBScanDevice.FingerCountState fingerState) {
+        actor.post(() -> onFingerCountChanged(device, fingerState));
+    }
+
+    private void onFingerCountChanged(IBScanDevice device, IBScanDevice.FingerCountState fingerState) {
         Log.d(TAG, "Device Finger Count Changed");
         if (fingerState == IBScanDevice.FingerCountState.NON_FINGER) {
             Log.d(TAG, "NON_FINGER");
@@ -164,7 +589,11 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
     }
 
     @Override
-    public void deviceFingerQualityChanged(IBScanDevice device, IBScanDevice.FingerQualityState[] fingerQualities) {
+    public void deviceFingerQualityChanged(final IBScanDevice device, final IBScanDevice.FingerQualityState[] fingerQualities) {
+        actor.post(() -> onFingerQualityChanged(device, fingerQualities));
+    }
+
+    private void onFingerQualityChanged(IBScanDevice device, IBScanDevice.FingerQualityState[] fingerQualities) {
         fingerQualy = IBScanDevice.FingerQualityState.FINGER_NOT_PRESENT;
         for (IBScanDevice.FingerQualityState state : fingerQualities) {
             if (state != IBScanDevice.FingerQualityState.FINGER_NOT_PRESENT) {
@@ -191,77 +620,328 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
     }
 
     @Override
-    public void deviceImageResultExtendedAvailable(IBScanDevice device, IBScanException imageStatus, IBScanDevice.ImageData image, IBScanDevice.ImageType imageType, int detectedFingerCount, IBScanDevice.ImageData[] segmentImageArray, IBScanDevice.SegmentPosition[] segmentPositionArray) {
+    public void deviceImageResultExtendedAvailable(final IBScanDevice device, final IBScanException imageStatus, final IBScanDevice.ImageData image, final IBScanDevice.ImageType imageType, final int detectedFingerCount, final IBScanDevice.ImageData[] segmentImageArray, final IBScanDevice.SegmentPosition[] segmentPositionArray) {
+        actor.post(() -> onImageResultExtendedAvailable(device, imageStatus, image, imageType, detectedFingerCount, segmentImageArray, segmentPositionArray));
+    }
+
+    private void onImageResultExtendedAvailable(IBScanDevice device, IBScanException imageStatus, IBScanDevice.ImageData image, IBScanDevice.ImageType imageType, int detectedFingerCount, IBScanDevice.ImageData[] segmentImageArray, IBScanDevice.SegmentPosition[] segmentPositionArray) {
         Log.d(TAG, "Device Image Result Extended Available");
+        if (session == null) {
+            Log.d(TAG, "No capture in progress, ignoring result");
+            return;
+        }
+        if (imageStatus != null && imageStatus.getType() == IBScanException.Type.CAPTURE_TIMEOUT) {
+            Log.d(TAG, "Native capture timeout");
+            CancelCapture(CAPTURE_TIMEOUT);
+            return;
+        }
         if (imageStatus != null &&  imageStatus.getType().compareTo(IBScanException.Type.INVALID_PARAM_VALUE) <= 0) {
             Log.d(TAG, "Error 57");
             sendError(57);
             return;
         }
 
+        // A segment crop is taken from the whole frame; otherwise a lone segment replaces it.
+        IBScanDevice.SegmentPosition[] positions = segmentsToCrop(segmentPositionArray);
+        if (positions == null && segmentImageArray != null && segmentImageArray.length == 1)
+            image = segmentImageArray[0];
+
         if (fingerQualy == IBScanDevice.FingerQualityState.FINGER_NOT_PRESENT) {
             Log.d(TAG, "FINGER_NOT_PRESENT");
-            try {
-                ScanFingerprint(device);
-            } catch (Exception e) {
-                Log.d(TAG, e.getMessage());
-                Log.d(TAG, "Error 57");
-                sendError(57);
-            }
-
+            retryCapture(device);
             return;
         }
 
         if (fingerQualy != IBScanDevice.FingerQualityState.GOOD && fingerQualy != IBScanDevice.FingerQualityState.FAIR) {
             Log.d(TAG, "Finger Quality State Is Bad");
-            try {
-                ScanFingerprint(device);
-            } catch (Exception e) {
-                Log.d(TAG, e.getMessage());
-                Log.d(TAG, "Error 57");
-                sendError(57);
-            }
+            session.offer(image, fingerQualy, positions);
+            retryCapture(device);
+            return;
+        }
+
+        resolveImage(image, cropToSegments(image, positions), fingerQualy, false);
+    }
+
+    /*
+     * The segment positions when the call asked for cropToSegments, or null.
+     */
+    private IBScanDevice.SegmentPosition[] segmentsToCrop(IBScanDevice.SegmentPosition[] positions) {
+        if (!session.getCall().getBoolean("cropToSegments", false) || positions == null || positions.length == 0)
+            return null;
+        return positions;
+    }
+
+    /*
+     * Crops a frame that passed the quality gate, or returns null for the whole frame. Frames
+     * that are retried only keep their positions, so they are never cropped for nothing.
+     */
+    private SegmentCrop cropToSegments(IBScanDevice.ImageData image, IBScanDevice.SegmentPosition[] positions) {
+        if (positions == null)
+            return null;
+        PluginCall call = session.getCall();
+        int padding = Math.max(0, call.getInt("segmentPadding", SegmentCrop.DEFAULT_PADDING));
+        SegmentCrop crop = SegmentCrop.of(ImageView.of(image), positions, padding, call.getBoolean("deskewSegments", false));
+        if (crop != null)
+            debugMessage("Cropped " + image.width + "x" + image.height + " to " + crop.region.width + "x" + crop.region.height + " at " + crop.angle + " degrees");
+        return crop;
+    }
 
+    /*
+     * Journals the raw frame before anything is encoded, so the capture can be recovered with
+     * consumeCapture() if the result never reaches JS. Only done when the capture asked for it.
+     */
+    private String spool(IBScanDevice.ImageData image, IBScanDevice.FingerQualityState qualityState) {
+        if (spool == null || !session.getCall().getBoolean("spool", false))
+            return null;
+        JSObject meta = new JSObject();
+        meta.put("captureId", session.getId());
+        meta.put("width", image.width);
+        meta.put("height", image.height);
+        meta.put("pitch", image.pitch);
+        meta.put("bitsPerPixel", image.bitsPerPixel);
+        meta.put("resolution", image.resolutionX);
+        meta.put("quality", qualityState.name());
+        meta.put("attempts", session.getAttempts());
+        meta.put("device", mDeviceSN);
+        meta.put("deviceModel", android.os.Build.MODEL);
+        try {
+            return spool.append(session.getId(), image.buffer, meta);
+        } catch (IOException e) {
+            debugMessage("Spooling the capture failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * The result has been delivered, so the journaled frame is no longer needed for recovery.
+     */
+    private void acknowledge(String spoolId) {
+        if (spool == null || spoolId == null)
             return;
+        try {
+            spool.acknowledge(spoolId);
+        } catch (IOException e) {
+            debugMessage("Acknowledging the spooled capture failed: " + e.getMessage());
         }
+    }
 
-        if (segmentImageArray.length == 1)
-            image = segmentImageArray[0];
+    /*
+     * Native WSQ of the whole frame, or of a packed region. The native call takes no offset, so a
+     * region has to start at the beginning of its buffer.
+     */
+    private byte[] encodeWsq(IBScanDevice.ImageData image, ImageView region, double bitRate) throws IBScanException {
+        if (region == null)
+            return (byte[]) IBActivityScanDevice.wsqEncodeToMem(image.buffer, image.width, image.height, image.pitch, image.bitsPerPixel, (int) image.resolutionX, bitRate, "")[0];
+        return (byte[]) IBActivityScanDevice.wsqEncodeToMem(region.buffer, region.width, region.height, region.stride, 8, (int) image.resolutionX, bitRate, "")[0];
+    }
+
+    /*
+     * Size-targeted WSQ when the capture asked for wsqMaxBytes; null otherwise.
+     */
+    private WsqRateController.Result encodeWsqToSize(final IBScanDevice.ImageData image, final ImageView region) throws Exception {
+        PluginCall call = session.getCall();
+        Long maxBytes = call.getLong("wsqMaxBytes");
+        if (maxBytes == null || maxBytes <= 0)
+            return null;
+        Long minBytes = call.getLong("wsqMinBytes");
+        if (minBytes == null || minBytes > maxBytes)
+            minBytes = (long) (maxBytes * WsqRateController.DEFAULT_MIN_FRACTION);
+        Long budgetMs = call.getLong("wsqBudgetMs");
+        if (budgetMs == null)
+            budgetMs = WsqRateController.DEFAULT_BUDGET_MS;
+
+        int pixels = (region != null) ? region.width * region.height : image.width * image.height;
+        WsqRateController.Result result = wsqRates.search(mDeviceSN, pixels, minBytes, maxBytes, budgetMs, WSQ_BIT_RATE, new WsqRateController.Encoder() {
+            @Override
+            public byte[] encode(double bitRate) throws Exception {
+                return encodeWsq(image, region, bitRate);
+            }
+        });
+        debugMessage("WSQ " + result.wsq.length + " bytes at bit rate " + result.bitRate + " after " + result.passes + " passes in " + result.elapsedMs + " ms");
+        return result;
+    }
+
+    private static class JpegOutput {
+        PooledOutputStream stream;
+        String base64;
+        String path;
+        long encodeMs;
+        long outputMs;
+    }
 
+    /*
+     * Encodes the result JPEG and turns it into Base64, or into a file when captureId is set. Runs
+     * on an encoder thread, so it only touches the image, its stream and the artifact store.
+     */
+    private class JpegTask implements Callable<JpegOutput> {
+        private final ImageView image;
+        private final int quality;
+        private final PooledOutputStream stream;
+        private final String fileCaptureId;
+
+        JpegTask(ImageView image, int quality, PooledOutputStream stream, String fileCaptureId) {
+            this.image = image;
+            this.quality = quality;
+            this.stream = stream;
+            this.fileCaptureId = fileCaptureId;
+        }
+
+        @Override
+        public JpegOutput call() throws Exception {
+            JpegOutput output = new JpegOutput();
+            output.stream = stream;
+            long startedAt = SystemClock.elapsedRealtime();
+            GrayJpegEncoder.encode(image, quality, stream);
+            long encodedAt = SystemClock.elapsedRealtime();
+            if (fileCaptureId != null)
+                output.path = artifactStore.write(fileCaptureId, "img.jpg", stream.buffer(), 0, stream.size());
+            else
+                output.base64 = Base64.encodeToString(stream.buffer(), 0, stream.size(), Base64.DEFAULT);
+            output.encodeMs = encodedAt - startedAt;
+            output.outputMs = SystemClock.elapsedRealtime() - encodedAt;
+            return output;
+        }
+    }
+
+    /*
+     * Encodes and returns the result. With a crop only its region is encoded; the spool and the
+     * artifact cache keep the whole frame.
+     */
+    private void resolveImage(IBScanDevice.ImageData image, SegmentCrop crop, IBScanDevice.FingerQualityState qualityState, boolean retryExhausted) {
         Log.d(TAG, "image.isFinal = " + image.isFinal);
 
         try {
             Log.d(TAG, "image.buffer.length" + image.buffer.length);
+            long startedAt = SystemClock.elapsedRealtime();
+            String spoolId = spool(image, qualityState);
+            long spoolMs = SystemClock.elapsedRealtime() - startedAt;
+            MemoryGovernor.Pressure pressure = (governor != null) ? governor.sample() : MemoryGovernor.Pressure.NORMAL;
+            boolean wsqOnly = governor != null && governor.isWsqOnly();
+            // In file mode the bytes go to the cache dir and only their paths cross the bridge.
+            boolean toFile = RESULT_MODE_FILE.equals(session.getCall().getString("resultMode")) && artifactStore != null;
+            // The native WSQ call needs the region packed; the JPEG branch then reads the same copy.
+            ImageView region = null;
+            if (crop != null)
+                region = crop.region.isPacked() ? crop.region : ImageView.packed(crop.region.pack(), crop.region.width, crop.region.height);
+            int encodedWidth = (region != null) ? region.width : image.width;
+            int encodedHeight = (region != null) ? region.height : image.height;
+
+            // The JPEG branch needs nothing from the device, so it runs on a worker while this
+            // thread does the WSQ encode; the result waits for both.
+            Future<JpegOutput> jpeg = null;
+            if (!wsqOnly) {
+                int jpegQuality = session.getCall().getInt("jpegQuality", DEFAULT_JPEG_QUALITY);
+                jpeg = encoders.submit(new JpegTask((region != null) ? region : ImageView.of(image), jpegQuality, session.lease(encodedWidth * encodedHeight), toFile ? session.getId() : null));
+            }
 
             Log.d(TAG, "wsqEncodeToMem");
-            Object[] obj = IBActivityScanDevice.wsqEncodeToMem(image.buffer, image.width, image.height, image.pitch, image.bitsPerPixel, (int)image.resolutionX, .75, "");
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(obj[0]);
-            oos.flush();
-            byte [] wsqBytes1 = bos.toByteArray();
-            byte [] wsqBytes = new byte[wsqBytes1.length - 27];
-            System.arraycopy(wsqBytes1, 27, wsqBytes, 0, wsqBytes1.length - 27);
-            String source = Base64.encodeToString(wsqBytes, Base64.DEFAULT);
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            image.toBitmap().compress(Bitmap.CompressFormat.JPEG, 100, baos);
-            byte[] pngBytes = baos.toByteArray();
-            String base64 = Base64.encodeToString(pngBytes, Base64.DEFAULT);
-
-            int quality = (fingerQualy == IBScanDevice.FingerQualityState.GOOD) ? 80 : 60;
+            long wsqStartedAt = SystemClock.elapsedRealtime();
+            WsqRateController.Result sized;
+            byte[] wsq;
+            String source = null;
+            String sourcePath = null;
+            long wsqMs;
+            long wsqOutputMs;
+            try {
+                sized = encodeWsqToSize(image, region);
+                wsq = (sized != null) ? sized.wsq : encodeWsq(image, region, WSQ_BIT_RATE);
+                wsqMs = SystemClock.elapsedRealtime() - wsqStartedAt;
+
+                long wsqOutputStartedAt = SystemClock.elapsedRealtime();
+                if (toFile)
+                    sourcePath = artifactStore.write(session.getId(), "source.wsq", wsq, 0, wsq.length);
+                else
+                    source = Base64.encodeToString(wsq, Base64.DEFAULT);
+                wsqOutputMs = SystemClock.elapsedRealtime() - wsqOutputStartedAt;
+            } catch (Exception e) {
+                // The JPEG branch writes into a leased buffer; let it finish before the session
+                // returns that buffer to the pool.
+                if (jpeg != null) {
+                    try {
+                        jpeg.get();
+                    } catch (Exception ignored) {
+                    }
+                }
+                throw e;
+            }
+
+            long joinStartedAt = SystemClock.elapsedRealtime();
+            JpegOutput jpegOutput = null;
+            if (jpeg != null) {
+                try {
+                    jpegOutput = jpeg.get();
+                } catch (ExecutionException e) {
+                    throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                }
+            }
+            long joinMs = SystemClock.elapsedRealtime() - joinStartedAt;
+            String base64 = (jpegOutput != null) ? jpegOutput.base64 : null;
+            String imgPath = (jpegOutput != null) ? jpegOutput.path : null;
+
+            if (artifactCache != null) {
+                artifactCache.put(session.getId(), image);
+                // Derived formats describe the whole frame, so cropped encodes are not cached.
+                if (crop == null)
+                    artifactCache.putDerived(session.getId(), "wsq", wsq);
+                if (jpegOutput != null && crop == null)
+                    artifactCache.putDerived(session.getId(), "jpeg", Arrays.copyOf(jpegOutput.stream.buffer(), jpegOutput.stream.size()));
+            }
+
+            JSObject timings = new JSObject();
+            timings.put("spoolMs", spoolMs);
+            timings.put("wsqMs", wsqMs);
+            timings.put("wsqOutputMs", wsqOutputMs);
+            if (jpegOutput != null) {
+                timings.put("jpegMs", jpegOutput.encodeMs);
+                timings.put("jpegOutputMs", jpegOutput.outputMs);
+            }
+            timings.put("joinWaitMs", joinMs);
+            timings.put("totalMs", SystemClock.elapsedRealtime() - startedAt);
+            debugMessage("Result stages: " + timings);
+
+            int quality;
+            if (qualityState == IBScanDevice.FingerQualityState.GOOD)
+                quality = 80;
+            else if (qualityState == IBScanDevice.FingerQualityState.FAIR)
+                quality = 60;
+            else
+                quality = 40;
 
             JSObject json = new JSObject();
             try {
-                json.put("img", base64);
+                if (base64 != null)
+                    json.put("img", base64);
+                if (imgPath != null)
+                    json.put("imgPath", imgPath);
                 json.put("qlty", quality);
-                json.put("source", source);
-                json.put("width", image.width);
-                json.put("height", image.height);
+                if (source != null)
+                    json.put("source", source);
+                if (sourcePath != null)
+                    json.put("sourcePath", sourcePath);
+                json.put("resultMode", toFile ? RESULT_MODE_FILE : RESULT_MODE_BASE64);
+                json.put("width", encodedWidth);
+                json.put("height", encodedHeight);
+                if (crop != null)
+                    json.put("crop", crop.toJSObject());
                 json.put("device", mDeviceSN);
                 json.put("deviceModel", android.os.Build.MODEL);
-                callbackContext.setKeepAlive(true);
-                callbackContext.resolve(json);
+                json.put("attempts", session.getAttempts());
+                json.put("retryExhausted", retryExhausted);
+                json.put("captureId", session.getId());
+                json.put("wsqOnly", wsqOnly);
+                json.put("wsqBitRate", (sized != null) ? sized.bitRate : WSQ_BIT_RATE);
+                if (sized != null) {
+                    json.put("wsqPasses", sized.passes);
+                    json.put("wsqTargetMet", sized.targetMet);
+                }
+                if (spoolId != null)
+                    json.put("spoolId", spoolId);
+                json.put("memoryPressure", pressure.name().toLowerCase());
+                json.put("timings", timings);
+                session.getCall().setKeepAlive(true);
+                session.getCall().resolve(json);
+                acknowledge(spoolId);
+                endSession();
             } catch (Exception e) {
                 e.printStackTrace();
                 sendError(101);
@@ -288,16 +968,94 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
     }
 
     @Override
-    public void scanDeviceAttached(int deviceId) {
+    public void scanDeviceAttached(final int deviceId) {
+        actor.post(() -> onScanDeviceAttached(deviceId));
+    }
+
+    /*
+     * Attach pipeline: check permission (prompting at most once per scanner), then open and
+     * configure the device in the background so it is ready before the first capture.
+     */
+    private void onScanDeviceAttached(int deviceId) {
         IsIBScan = true;
-        if (!IBActivityScan.hasPermission(deviceId))
-            IBActivityScan.requestPermission(deviceId);
+        if (IBActivityScan.hasPermission(deviceId)) {
+            permissions.record(deviceId, keyOf(deviceId), true);
+            openInBackground();
+            return;
+        }
+        String key = keyOf(deviceId);
+        if (key != null && !permissions.shouldRequest(deviceId, key)) {
+            debugMessage("Skipping permission prompt for " + key);
+            return;
+        }
+        permissions.markRequested(deviceId, key);
+        IBActivityScan.requestPermission(deviceId);
     }
 
+    private boolean setPowerSave(boolean enabled) {
+        if (tuner == null || session != null)
+            return false;
+        try {
+            tuner.set(IBScanDevice.PropertyId.ENABLE_POWER_SAVE_MODE, enabled ? "TRUE" : "FALSE");
+            debugMessage("Power save mode " + (enabled ? "on" : "off"));
+            return true;
+        } catch (IBScanException e) {
+            debugMessage("Power save mode not changed: " + e.getType());
+            return false;
+        }
+    }
+
+    private boolean closeIdleDevice() {
+        if (IBActivityScanDevice == null || session != null || opening)
+            return false;
+        try {
+            IBActivityScanDevice.close();
+        } catch (IBScanException e) {
+            debugMessage("Closing the idle device failed: " + e.getType());
+        }
+        debugMessage("Idle device closed");
+        IBActivityScanDevice = null;
+        capabilities = null;
+        tuner = null;
+        events = null;
+        return true;
+    }
+
+    private String keyOf(int deviceId) {
+        UsbDevice device = LibUsbManager.getDevice(deviceId);
+        return (device != null) ? PermissionCache.keyOf(device) : null;
+    }
+
+    /*
+     * Starts an asynchronous open. Returns whether the device is open or being opened.
+     */
+    private boolean openInBackground() {
+        if (opening || (IBActivityScanDevice != null && IBActivityScanDevice.isOpened()))
+            return true;
+        try {
+            if (IBActivityScan.getDeviceCount() == 0)
+                return false;
+            opening = true;
+            IBActivityScan.openDeviceAsync(0);
+            debugMessage("Opening device in the background");
+            return true;
+        } catch (IBScanException e) {
+            opening = false;
+            debugMessage("Background open failed: " + e.getType());
+            return false;
+        }
+    }
+
+
     @Override
-    public void scanDeviceDetached(int deviceId) {
+    public void scanDeviceDetached(final int deviceId) {
+        actor.post(() -> onScanDeviceDetached(deviceId));
+    }
+
+    private void onScanDeviceDetached(int deviceId) {
         Log.d(TAG, "Device is detached");
         IsIBScan = null;
+        idle.onDeviceLost();
         if (IBActivityScanDevice != null) {
             try {
                 IBActivityScanDevice.close();
@@ -308,16 +1066,30 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
         }
 
         IBActivityScanDevice = null;
+        capabilities = null;
+        tuner = null;
+        events = null;
     }
 
     @Override
-    public void scanDevicePermissionGranted(int deviceid, boolean granted) {
+    public void scanDevicePermissionGranted(final int deviceid, final boolean granted) {
+        actor.post(() -> onScanDevicePermissionGranted(deviceid, granted));
+    }
+
+    private void onScanDevicePermissionGranted(int deviceid, boolean granted) {
         deviceId = deviceid;
+        permissions.record(deviceid, keyOf(deviceid), granted);
         OnPermissionGranted(granted);
+        if (granted)
+            openInBackground();
     }
 
     @Override
-    public void scanDeviceCountChanged(int deviceCount) {
+    public void scanDeviceCountChanged(final int deviceCount) {
+        actor.post(() -> onScanDeviceCountChanged(deviceCount));
+    }
+
+    private void onScanDeviceCountChanged(int deviceCount) {
         if (deviceCount > 0)
             IsIBScan = true;
         else
@@ -330,7 +1102,36 @@ public class FPReader implements IBScanListener, IBScanDeviceListener {
     }
 
     @Override
-    public void scanDeviceOpenComplete(int i, IBScanDevice ibScanDevice, IBScanException e) {
+    public void scanDeviceOpenComplete(final int deviceIndex, final IBScanDevice device, final IBScanException exception) {
+        actor.post(() -> onScanDeviceOpenComplete(deviceIndex, device, exception));
+    }
+
+    private void onScanDeviceOpenComplete(int deviceIndex, IBScanDevice device, IBScanException exception) {
+        opening = false;
+        boolean failed = device == null || (exception != null && exception.getType() != null);
+        if (failed) {
+            debugMessage("Background open failed: " + ((exception != null) ? exception.getType() : null));
+        } else if (IBActivityScanDevice == null || !IBActivityScanDevice.isOpened()) {
+            try {
+                SetDeviceSN(IBActivityScan.getDeviceDescription(deviceIndex).serialNumber);
+                ConfigureOpenedDevice(device);
+                debugMessage("Device opened and configured in the background");
+            } catch (IBScanException e) {
+                debugMessage("Configuring the opened device failed: " + e.getType());
+                try {
+                    device.close();
+                } catch (IBScanException ignored) {
+                }
+                IBActivityScanDevice = null;
+                capabilities = null;
+                tuner = null;
+                events = null;
+            }
+        }
 
+        List<Runnable> waiters = new ArrayList<>(openWaiters);
+        openWaiters.clear();
+        for (Runnable waiter : waiters)
+            waiter.run();
     }
 }
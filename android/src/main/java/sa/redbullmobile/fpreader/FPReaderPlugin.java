@@ -7,6 +7,7 @@ import android.content.Intent;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.nfc.Tag;
+import android.util.Base64;
 import android.util.Log;
 
 import com.getcapacitor.JSObject;
@@ -20,8 +21,17 @@ import com.integratedbiometrics.ibscanultimate.IBScan.SdkVersion;
 import com.integratedbiometrics.ibscanultimate.IBScanDevice;
 import com.integratedbiometrics.ibscanultimate.IBScanException;
 
-import java.util.HashMap;
+import org.libusb.LibUsbManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @CapacitorPlugin(name = "FPReader")
 public class FPReaderPlugin extends Plugin{
@@ -33,6 +43,12 @@ public class FPReaderPlugin extends Plugin{
     // actions
     private static final String ACTION_REQUEST_PERMISSION = "requestPermission";
     private static final String CAPTURE = "capture";
+    private static final String EVENT_PREVIEW_IMAGE = "previewImage";
+    private static final String EVENT_SDK_READY = "sdkReady";
+    private static final int PREVIEW_SCALE = 4;
+    private static final int PREVIEW_JPEG_QUALITY = 60;
+    private static final long ARTIFACT_CACHE_BYTES = 32 * 1024 * 1024;
+    private static final int THUMBNAIL_SCALE = 4;
     private byte[] mRegisterTemplate;
     private int[] mMaxTemplateSize;
     private int mImageWidth;
@@ -45,37 +61,437 @@ public class FPReaderPlugin extends Plugin{
 
     private UsbManager manager;
 
+    private final CaptureQueue captureQueue = new CaptureQueue();
+    private final SdkWarmup warmup = new SdkWarmup();
+    private final MemoryGovernor governor = new MemoryGovernor(BufferPool.SHARED);
+    private final AtomicBoolean destroyed = new AtomicBoolean(false);
+    private CaptureSpool spool = null;
+    private ArtifactStore artifactStore = null;
+    private final ArtifactCache artifacts = new ArtifactCache(ARTIFACT_CACHE_BYTES);
+    /* Row stripes of large PNG encodes; separate from the cache workers that wait on them. */
+    private final ExecutorService stripeWorkers = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    /* Scaled preview frame, reused across frames; previews arrive on one SDK thread. */
+    private byte[] previewPixels = null;
+    private final List<PluginCall> pendingDeviceInfo = new ArrayList<>();
+    private long deviceInfoRequests = 0;
+    private long deviceInfoCoalesced = 0;
+
 
     public void load() {
         context = this.getActivity();
+        getContext().registerComponentCallbacks(governor);
+        artifactStore = new ArtifactStore(getContext().getCacheDir(), ArtifactStore.DEFAULT_MAX_BYTES, ArtifactStore.DEFAULT_MAX_AGE_MS);
+        registerArtifactFormats();
+        governor.addListener(artifacts);
+        // Retained so a listener registered after the warm-up finished still receives it.
+        warmup.start(getContext(), result -> notifyListeners(EVENT_SDK_READY, result, true));
+    }
+
+    /*
+     * Parks the active capture: the device stops acquiring, and the request goes back to the head
+     * of the queue without its call being settled. Nothing starts until the app resumes.
+     */
+    @Override
+    protected void handleOnPause() {
+        super.handleOnPause();
+        captureQueue.setPaused(true);
+        final FPReader reader = ibActivityScanListener;
+        if (reader == null || destroyed.get())
+            return;
+        reader.RunOnDeviceThread(new Runnable() {
+            @Override
+            public void run() {
+                String parked = reader.SuspendCapture();
+                if (parked != null && captureQueue.requeueActive(parked))
+                    debugMessage("RBM: Capture " + parked + " parked");
+            }
+        });
+    }
+
+    @Override
+    protected void handleOnResume() {
+        super.handleOnResume();
+        if (destroyed.get())
+            return;
+        captureQueue.setPaused(false);
+        final FPReader reader = ibActivityScanListener;
+        if (reader != null)
+            reader.RunOnDeviceThread(reader::Prewarm);
+        startNextCapture();
+    }
+
+    /*
+     * Rejects every outstanding request and releases the reader. Runs once however often the
+     * bridge reports it.
+     */
+    @Override
+    protected void handleOnDestroy() {
+        super.handleOnDestroy();
+        if (!destroyed.compareAndSet(false, true))
+            return;
+        captureQueue.setPaused(true);
+        getContext().unregisterComponentCallbacks(governor);
+        governor.removeListener(artifacts);
+        artifacts.shutdown();
+        stripeWorkers.shutdownNow();
+        for (CaptureQueue.CaptureRequest request : captureQueue.drainPending()) {
+            JSObject json = new JSObject();
+            json.put("errorCode", FPReader.CAPTURE_DESTROYED);
+            json.put("captureId", request.id);
+            request.call.reject(json.toString(), FPReader.CAPTURE_DESTROYED);
+        }
+
+        final FPReader reader = ibActivityScanListener;
+        ibActivityScanListener = null;
+        Activity activity = getActivity();
+        // Only unload when the app is really going away; a recreated activity still needs the SDK.
+        final boolean unloadLibrary = activity != null && activity.isFinishing() && !activity.isChangingConfigurations();
+        if (reader != null) {
+            reader.RunOnDeviceThread(new Runnable() {
+                @Override
+                public void run() {
+                    reader.Release(unloadLibrary);
+                    BufferPool.SHARED.clear();
+                    closeSpool();
+                }
+            });
+        } else {
+            // The load-time warm-up still registered IBScan's USB receiver on this context.
+            try {
+                IBScan.getInstance(getContext()).setContext(null);
+            } catch (Throwable e) {
+                Log.w(TAG, "Releasing the SDK context failed", e);
+            }
+            BufferPool.SHARED.clear();
+            closeSpool();
+        }
+    }
+
+    private synchronized void closeSpool() {
+        if (spool != null)
+            spool.close();
+        spool = null;
     }
 
     @PluginMethod
     public void getDeviceInfo(PluginCall call) throws IBScanException {
         if(ibActivityScanListener == null) {
-            requestPermission(call);
+            // Opens the device as requestPermission() would; this call is only settled below.
+            final FPReader reader = getReader();
+            reader.RunOnDeviceThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        initDeviceSettings();
+                    } catch (Exception e) {
+                        debugMessage("" + e.getMessage());
+                    }
+                }
+            });
+        }
+
+        // Identical requests that arrive while one is in flight share its result.
+        synchronized (pendingDeviceInfo) {
+            deviceInfoRequests++;
+            pendingDeviceInfo.add(call);
+            if (pendingDeviceInfo.size() > 1) {
+                deviceInfoCoalesced++;
+                return;
+            }
         }
+
+        final FPReader reader = ibActivityScanListener;
+        reader.RunOnDeviceThread(new Runnable() {
+            @Override
+            public void run() {
+                String serial = reader.GetDeviceInfo();
+                debugMessage("Serial = "+serial);
+                List<PluginCall> calls;
+                synchronized (pendingDeviceInfo) {
+                    calls = new ArrayList<>(pendingDeviceInfo);
+                    pendingDeviceInfo.clear();
+                }
+                for (PluginCall pending : calls) {
+                    if((serial == null) || (serial.isEmpty())) {
+                        pending.reject("Failed to get data");
+                    } else {
+                        JSObject ret = new JSObject();
+                        ret.put("serial", serial);
+                        pending.resolve(ret);
+                    }
+                }
+            }
+        });
+    }
+
+    @PluginMethod
+    /*
+     * With an ID cancels that request wherever it is; without one cancels the active request and
+     * every queued one. An active request may be capturing, or still waiting for the device to
+     * open, in which case it has no session on the reader yet.
+     */
+    public void cancelCapture(final PluginCall call) {
+        final String id = call.getString("id");
+        boolean queued = false;
+        if (id == null) {
+            for (CaptureQueue.CaptureRequest request : captureQueue.drainPending()) {
+                rejectCancelled(request);
+                queued = true;
+            }
+        } else if (!id.equals(captureQueue.getActiveId())) {
+            CaptureQueue.CaptureRequest request = captureQueue.removePending(id);
+            if (request != null)
+                rejectCancelled(request);
+            resolveCancelled(call, request != null);
+            return;
+        }
+
+        final boolean cancelledQueued = queued;
+        final FPReader reader = ibActivityScanListener;
+        if (reader == null) {
+            resolveCancelled(call, cancelActive(id) || cancelledQueued);
+            return;
+        }
+        reader.RunOnDeviceThread(new Runnable() {
+            @Override
+            public void run() {
+                // A live capture finishes its request through the capture listener.
+                boolean live = id == null || id.equals(captureQueue.getActiveId());
+                boolean cancelled = (live && reader.CancelCapture(FPReader.CAPTURE_CANCELLED)) || cancelActive(id);
+                resolveCancelled(call, cancelled || cancelledQueued);
+            }
+        });
+    }
+
+    /*
+     * Cancels an active request that has not reached the device; the task that would start it
+     * sees the flag and returns.
+     */
+    private boolean cancelActive(String id) {
+        CaptureQueue.CaptureRequest request = captureQueue.cancelActive(id);
+        if (request == null)
+            return false;
+        rejectCancelled(request);
+        getBridge().execute(this::startNextCapture);
+        return true;
+    }
+
+    private void rejectCancelled(CaptureQueue.CaptureRequest request) {
+        JSObject json = new JSObject();
+        json.put("errorCode", FPReader.CAPTURE_CANCELLED);
+        json.put("captureId", request.id);
+        request.call.reject(json.toString(), FPReader.CAPTURE_CANCELLED);
+    }
+
+    private void resolveCancelled(PluginCall call, boolean cancelled) {
+        debugMessage("RBM: cancelCapture: " + cancelled);
         JSObject ret = new JSObject();
-        String serial = ibActivityScanListener.GetDeviceInfo();
-        ret.put("serial", serial);
-        debugMessage("Serial = "+serial);
-        if((serial == null) || (serial.isEmpty()))
-            call.reject("Failed to get data");
-        else
-            call.resolve(ret);
+        ret.put("cancelled", cancelled);
+        call.resolve(ret);
     }
 
     @PluginMethod
-    public void requestPermission(PluginCall call) throws IBScanException {
-        debugMessage("RBM:"+"requestPermission");
-        if(ibActivityScanListener == null) {
+    public void getMetrics(PluginCall call) {
+        JSObject deviceInfo = new JSObject();
+        synchronized (pendingDeviceInfo) {
+            deviceInfo.put("requests", deviceInfoRequests);
+            deviceInfo.put("coalesced", deviceInfoCoalesced);
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("queue", captureQueue.toJSObject());
+        ret.put("deviceInfo", deviceInfo);
+        ret.put("warmup", warmup.toJSObject());
+        ret.put("memory", governor.toJSObject());
+        ret.put("spool", (spool != null) ? spool.toJSObject() : null);
+        ret.put("artifacts", artifacts.toJSObject());
+        ret.put("idle", (ibActivityScanListener != null) ? ibActivityScanListener.GetIdleMetrics() : null);
+        ret.put("actor", (ibActivityScanListener != null) ? ibActivityScanListener.GetActorMetrics() : null);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void setIdlePolicy(PluginCall call) throws IBScanException {
+        FPReader reader = getReader();
+        reader.SetIdlePolicy(call.getLong("powerSaveAfterMs"), call.getLong("closeAfterMs"), call.getLong("wakeLeadMs"), call.getBoolean("predictive"));
+        call.resolve(reader.GetIdleMetrics());
+    }
+
+    @PluginMethod
+    public void getCapabilities(final PluginCall call) {
+        final FPReader reader = ibActivityScanListener;
+        if (reader == null) {
+            call.reject("Device is not opened");
+            return;
+        }
+        reader.RunOnDeviceThread(new Runnable() {
+            @Override
+            public void run() {
+                DeviceCapabilities capabilities = reader.GetCapabilities();
+                if (capabilities == null)
+                    call.reject("Device is not opened");
+                else
+                    call.resolve(capabilities.toJSObject());
+            }
+        });
+    }
+
+    /*
+     * Returns the single FPReader, creating it on first use. Its device state lives on the reader's
+     * device thread; this method only constructs it.
+     */
+    private FPReader getReader() throws IBScanException {
+        if (ibActivityScanListener == null) {
             IBScan ibScan = IBScan.getInstance(this.getContext());
-            debugMessage("RBM:"+"gotInstance: "+ibScan.getDeviceCount());
-            ibActivityScanListener = new FPReader(ibScan, call);
-            debugMessage("RBM:"+"FPReader Initiated: "+ibActivityScanListener.GetDeviceInfo());
-            initDeviceSettings(call);
+            ibActivityScanListener = new FPReader(ibScan);
+            ibActivityScanListener.SetCaptureListener(this::onCaptureFinished);
+            ibActivityScanListener.SetMemoryGovernor(governor);
+            ibActivityScanListener.SetArtifactStore(artifactStore);
+            ibActivityScanListener.SetArtifactCache(artifacts);
+        }
+        return ibActivityScanListener;
+    }
+
+    /*
+     * The spool is opened on first use: by the first capture that asks for it, or by JS recovering
+     * captures after a restart before it captures anything.
+     */
+    private synchronized CaptureSpool getSpool() {
+        if (spool == null) {
+            try {
+                spool = new CaptureSpool(new File(getContext().getFilesDir(), "fpreader-spool.journal"));
+            } catch (IOException e) {
+                debugMessage("RBM: Capture spool unavailable: " + e.getMessage());
+            }
+        }
+        return spool;
+    }
+
+    @PluginMethod
+    public void listPendingCaptures(PluginCall call) {
+        CaptureSpool spool = getSpool();
+        if (spool == null) {
+            call.reject("Capture spool unavailable");
+            return;
+        }
+        JSObject ret = new JSObject();
+        ret.put("captures", CaptureSpool.toJSArray(spool.listPending()));
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void consumeCapture(PluginCall call) {
+        CaptureSpool spool = getSpool();
+        String id = call.getString("id");
+        if (spool == null || id == null) {
+            call.reject((spool == null) ? "Capture spool unavailable" : "Missing id");
+            return;
+        }
+        try {
+            CaptureSpool.PendingCapture capture = spool.consume(id);
+            if (capture == null) {
+                call.reject("No pending capture " + id);
+                return;
+            }
+            JSObject ret = new JSObject();
+            ret.put("id", capture.id);
+            ret.put("createdAt", capture.createdAt);
+            ret.put("metadata", capture.metadata);
+            ret.put("raw", Base64.encodeToString(capture.frame, Base64.NO_WRAP));
+            call.resolve(ret);
+        } catch (IOException e) {
+            call.reject(e.getMessage());
         }
-        if(!hasRequiredPermissions()) {
+    }
+
+    @PluginMethod
+    public void getCaptureArtifact(final PluginCall call) {
+        final String id = call.getString("id");
+        final String format = call.getString("format");
+        if (id == null || format == null) {
+            call.reject("Missing id or format");
+            return;
+        }
+        final boolean toFile = FPReader.RESULT_MODE_FILE.equals(call.getString("resultMode"));
+        artifacts.request(id, format, new ArtifactCache.Callback() {
+            @Override
+            public void onArtifact(byte[] data, boolean cached) {
+                JSObject ret = new JSObject();
+                ret.put("id", id);
+                ret.put("format", format);
+                ret.put("bytes", data.length);
+                ret.put("cached", cached);
+                try {
+                    if (toFile)
+                        ret.put("path", artifactStore.write(id, "artifact." + format, data, 0, data.length));
+                    else
+                        ret.put("data", Base64.encodeToString(data, Base64.NO_WRAP));
+                } catch (IOException e) {
+                    call.reject(e.getMessage());
+                    return;
+                }
+                call.resolve(ret);
+            }
+
+            @Override
+            public void onError(String message) {
+                call.reject(message);
+            }
+        });
+    }
+
+    /*
+     * Formats that only need the raw image. WSQ needs the device and is registered by the reader.
+     */
+    private void registerArtifactFormats() {
+        artifacts.registerFormat("jpeg", image -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(image.width * image.height / 4);
+            GrayJpegEncoder.encode(image, FPReader.DEFAULT_JPEG_QUALITY, out);
+            return out.toByteArray();
+        });
+        artifacts.registerFormat("png", image -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(image.width * image.height / 2);
+            GrayPngEncoder.encode(ImageView.of(image), image.resolutionX, out, stripeWorkers);
+            return out.toByteArray();
+        });
+        artifacts.registerFormat("thumbnail", image -> {
+            int width = Math.max(1, image.width / THUMBNAIL_SCALE);
+            int height = Math.max(1, image.height / THUMBNAIL_SCALE);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            GrayJpegEncoder.encode(ImageView.packed(ImageKernels.scale(ImageView.of(image), null, width, height), width, height), PREVIEW_JPEG_QUALITY, out);
+            return out.toByteArray();
+        });
+    }
+
+    @PluginMethod
+    public void requestPermission(final PluginCall call) throws IBScanException {
+        debugMessage("RBM:"+"requestPermission");
+        final boolean created = ibActivityScanListener == null;
+        final FPReader reader = getReader();
+        // Without the runtime permissions, onPermsCallback settles the call instead.
+        final boolean settleHere = hasRequiredPermissions();
+        reader.RunOnDeviceThread(new Runnable() {
+            @Override
+            public void run() {
+                if (created)
+                    debugMessage("RBM:"+"FPReader Initiated: "+reader.GetDeviceInfo());
+                // An explicit request may prompt again for scanners the user refused on attach.
+                reader.ResetPermissionDecisions();
+                try {
+                    if (reader.IBActivityScanDevice == null && !reader.IsOpening())
+                        initDeviceSettings();
+                } catch (Exception e) {
+                    debugMessage(""+e.getMessage());
+                    e.printStackTrace();
+                    if (settleHere)
+                        call.reject("101");
+                    return;
+                }
+                if (settleHere)
+                    reader.SettlePermission(call);
+            }
+        });
+        if(!settleHere) {
             debugMessage("RBM:"+"Else");
             requestAllPermissions(call, "onPermsCallback");
         }
@@ -85,13 +501,18 @@ public class FPReaderPlugin extends Plugin{
     private void onPermsCallback(PluginCall call){
         debugMessage("RBM:"+"onPermsCallback: "+hasRequiredPermissions()+"\n");
         if (hasRequiredPermissions()) {
-            IBScan ibScan = ibActivityScanListener.IBActivityScan;
-            ibActivityScanListener.IsIBScan = true;
-            try {
-                SdkVersion sdkVersion = ibScan.getSdkVersion();
-            } catch (IBScanException e) {
-                e.printStackTrace();
-            }
+            final FPReader reader = ibActivityScanListener;
+            reader.RunOnDeviceThread(new Runnable() {
+                @Override
+                public void run() {
+                    reader.IsIBScan = true;
+                    try {
+                        SdkVersion sdkVersion = reader.IBActivityScan.getSdkVersion();
+                    } catch (IBScanException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
             call.resolve();
         } else {
             call.reject("Permission is required to take a picture");
@@ -118,93 +539,161 @@ public class FPReaderPlugin extends Plugin{
 
 
     @PluginMethod
-    public void capture(PluginCall callbackContext) throws IBScanException {
-        debugMessage("RBM: Capture x Pressed CAPTURE captureB64");
-        dwTimeStart = System.currentTimeMillis();
+    public void capture(PluginCall callbackContext) {
+        CaptureQueue.CaptureRequest request = captureQueue.enqueue(callbackContext);
+        debugMessage("RBM: Capture " + request.id + " queued");
+        startNextCapture();
+    }
 
-        long result = 0;
-        IBScanDevice ibScanDevice = ibActivityScanListener.IBActivityScanDevice;
-        ibActivityScanListener.SetCallbackContext(callbackContext);
+    private void startNextCapture() {
+        CaptureQueue.CaptureRequest request = captureQueue.pollNextIfIdle();
+        if (request != null)
+            startCapture(request);
+    }
 
-        if(ibScanDevice == null){
-            debugMessage("RBM: Re-inititing Device\n");
-            IBScan ibScan = IBScan.getInstance(context);
-            debugMessage("RBM: Initiated: "+ibScan.getDeviceCount()+"\n");
-            ibActivityScanListener = new FPReader(ibScan, callbackContext);
-            debugMessage("RBM: Created: "+ibActivityScanListener.GetDeviceInfo()+"\n");
-            initDeviceSettings(callbackContext);
-            ibScanDevice = ibActivityScanListener.IBActivityScanDevice;
-            ibActivityScanListener.SetCallbackContext(callbackContext);
-        }
+    private void onCaptureFinished(String captureId) {
+        if (captureQueue.finish(captureId))
+            getBridge().execute(this::startNextCapture);
+    }
 
+    /*
+     * Posts the capture to the device thread. If it cannot be started the call is rejected and the
+     * request is finished, which starts the next one.
+     */
+    private void startCapture(final CaptureQueue.CaptureRequest request) {
+        final PluginCall callbackContext = request.call;
+        final boolean wantsPreview = hasListeners(EVENT_PREVIEW_IMAGE);
+        final FPReader reader;
         try {
-            ibActivityScanListener.ScanFingerprint(ibScanDevice);
-        } catch (Exception e) {
+            reader = getReader();
+        } catch (IBScanException e) {
             debugMessage(e.getMessage());
-            sendError(result, callbackContext);
+            sendError(0, callbackContext);
+            onCaptureFinished(request.id);
             return;
         }
 
-        dwTimeEnd = System.currentTimeMillis();
-        dwTimeElapsed = dwTimeEnd - dwTimeStart;
+        // Journaling is opt-in per capture; without it the spool file is never opened.
+        if (callbackContext.getBoolean("spool", false))
+            reader.SetCaptureSpool(getSpool());
+        reader.RunOnDeviceThread(reader::NoteCaptureRequested);
+        reader.RunOnDeviceThread(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled())
+                    return;
+                if (captureQueue.isPaused()) {
+                    captureQueue.requeueActive(request.id);
+                    return;
+                }
+                debugMessage("RBM: Capture " + request.id + " started");
+                dwTimeStart = System.currentTimeMillis();
+
+                long result = 0;
+                try {
+                    if (reader.IBActivityScanDevice == null && reader.RunWhenOpened(this)) {
+                        debugMessage("RBM: Waiting for the device to finish opening\n");
+                        return;
+                    }
+                    if (reader.IBActivityScanDevice == null) {
+                        debugMessage("RBM: Re-opening Device\n");
+                        initDeviceSettings();
+                        if (reader.IBActivityScanDevice == null)
+                            throw new Exception("Device is not opened");
+                    }
+
+                    reader.ApplyProfile(TuningProfile.fromName(callbackContext.getString("profile"), TuningProfile.DEFAULT));
+                    reader.SetPreviewListener(wantsPreview ? FPReaderPlugin.this::sendPreview : null);
+                    RetryPolicy policy = RetryPolicy.DEFAULT.withLimits(callbackContext.getInt("maxAttempts"), callbackContext.getLong("retryDeadlineMs"));
+                    reader.StartCapture(reader.IBActivityScanDevice, request.id, callbackContext, policy, callbackContext.getLong("timeoutMs"));
+                } catch (Exception e) {
+                    debugMessage(e.getMessage());
+                    sendError(result, callbackContext);
+                    onCaptureFinished(request.id);
+                    return;
+                }
 
+                dwTimeEnd = System.currentTimeMillis();
+                dwTimeElapsed = dwTimeEnd - dwTimeStart;
+            }
+        });
     }
 
 
-    public void initDeviceSettings(PluginCall callbackContext) {
+    private void sendPreview(IBScanDevice.ImageData image) {
+        if (image.buffer == null)
+            return;
+        int scale = governor.getPreviewScale(PREVIEW_SCALE);
+        int width = Math.max(1, image.width / scale);
+        int height = Math.max(1, image.height / scale);
+        // Scale and flip in one pass straight from the gray frame; no ARGB bitmap is built.
+        previewPixels = ImageKernels.scale(ImageView.of(image), previewPixels, width, height);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            GrayJpegEncoder.encode(ImageView.packed(previewPixels, width, height), PREVIEW_JPEG_QUALITY, baos);
+        } catch (IOException e) {
+            Log.e(TAG, "Preview encode failed", e);
+            return;
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("img", Base64.encodeToString(baos.toByteArray(), Base64.NO_WRAP));
+        ret.put("width", width);
+        ret.put("height", height);
+        notifyListeners(EVENT_PREVIEW_IMAGE, ret);
+    }
+
+    /*
+     * Opens and configures the device. Runs on the reader's device thread. Failures are thrown
+     * for the caller to reject its call with.
+     */
+    public void initDeviceSettings() throws Exception {
         IBScan ibScan = ibActivityScanListener.IBActivityScan;
         IBScanDevice device = ibActivityScanListener.IBActivityScanDevice;
 
-        try {
-            if (device == null || !device.isOpened()) {
-                final UsbManager manager = (UsbManager)context.getSystemService(Context.USB_SERVICE);
-                final HashMap<String, UsbDevice> deviceList = manager.getDeviceList();
-                final Iterator<UsbDevice> deviceIterator = deviceList.values().iterator();
-                UsbDevice usbDevice = deviceIterator.next();
-                debugMessage("RBM:USBDevice: " + usbDevice.toString() + "\n");
-                if(ibScan.getDeviceCount() > 0) {
-                    debugMessage("RBM:Before getDeviceCount()" + ibScan.getDeviceCount() + "\n");
-                    IBScan.DeviceDesc deviceDesc = ibScan.getDeviceDescription(0);
-                    debugMessage("RBM:After getDeviceDescription()\n");
-
-                    ibActivityScanListener.SetDeviceSN(deviceDesc.serialNumber);
-                    mDeviceSN = deviceDesc.serialNumber;
-                    //ibActivityScanListener.SetDeviceSN(usbDevice.getSerialNumber());
-                    //mDeviceSN = usbDevice.getSerialNumber();
-                    debugMessage("RBM:Setting props: Device: " + usbDevice.getSerialNumber());
-
-                    debugMessage("RBM:Before OpenDevice()\n");
-                    device = ibScan.openDevice(0);
-                    debugMessage("RBM:After OpenDevice()\n");
-
-                    if (!device.isOpened())
-                        throw new Exception("Failed to open the device");
-
-                    ibActivityScanListener.IBActivityScanDevice = device;
-                    ibActivityScanListener.SetDeviceScanListener();
-                    debugMessage("Device Open Successful");
-                }else{
-                    debugMessage("RBM:isScanDevice()" + IBScan.isScanDevice(usbDevice) + "\n");
-                    final boolean isScanDevice = IBScan.isScanDevice(usbDevice);
-                    if (isScanDevice) {
-                        final boolean hasPermission = manager.hasPermission(usbDevice);
-                        debugMessage("RBM:hasPermission()" + hasPermission + "\n");
-                        if (!hasPermission)
-                        {
-                            debugMessage("RBM:before requestPermission()\n");
-                            ibScan.requestPermission(usbDevice.getDeviceId());
-                            debugMessage("RBM:after requestPermission()\n");
-                            debugMessage("RBM:hasPermission: "+hasPermission+"\n");
-                        }
-                        //device = ibScan.openDevice(0);
+        if (device == null || !device.isOpened()) {
+            final UsbManager manager = (UsbManager)context.getSystemService(Context.USB_SERVICE);
+            final Iterator<UsbDevice> deviceIterator = LibUsbManager.getScanDevices().iterator();
+            if (!deviceIterator.hasNext())
+                throw new Exception("No scanner attached");
+            UsbDevice usbDevice = deviceIterator.next();
+            debugMessage("RBM:USBDevice: " + usbDevice.toString() + "\n");
+            if(ibScan.getDeviceCount() > 0) {
+                debugMessage("RBM:Before getDeviceCount()" + ibScan.getDeviceCount() + "\n");
+                IBScan.DeviceDesc deviceDesc = ibScan.getDeviceDescription(0);
+                debugMessage("RBM:After getDeviceDescription()\n");
+
+                ibActivityScanListener.SetDeviceSN(deviceDesc.serialNumber);
+                mDeviceSN = deviceDesc.serialNumber;
+                //ibActivityScanListener.SetDeviceSN(usbDevice.getSerialNumber());
+                //mDeviceSN = usbDevice.getSerialNumber();
+                debugMessage("RBM:Setting props: Device: " + usbDevice.getSerialNumber());
+
+                debugMessage("RBM:Before OpenDevice()\n");
+                device = ibScan.openDevice(0);
+                debugMessage("RBM:After OpenDevice()\n");
+
+                if (!device.isOpened())
+                    throw new Exception("Failed to open the device");
+
+                ibActivityScanListener.ConfigureOpenedDevice(device);
+                debugMessage("Device Open Successful");
+            }else{
+                debugMessage("RBM:isScanDevice()" + IBScan.isScanDevice(usbDevice) + "\n");
+                final boolean isScanDevice = IBScan.isScanDevice(usbDevice);
+                if (isScanDevice) {
+                    final boolean hasPermission = manager.hasPermission(usbDevice);
+                    debugMessage("RBM:hasPermission()" + hasPermission + "\n");
+                    if (!hasPermission)
+                    {
+                        debugMessage("RBM:before requestPermission()\n");
+                        ibScan.requestPermission(usbDevice.getDeviceId());
+                        debugMessage("RBM:after requestPermission()\n");
+                        debugMessage("RBM:hasPermission: "+hasPermission+"\n");
                     }
+                    //device = ibScan.openDevice(0);
                 }
             }
-        } catch (Exception e) {
-            debugMessage(""+e.getMessage());
-            e.printStackTrace();
-            callbackContext.reject("101");
-            return;
         }
     }
 }
@@ -0,0 +1,353 @@
+package sa.redbullmobile.fpreader;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline JPEG encoder for 8-bit grayscale frames.
+ *
+ * Encodes a single luminance component straight from the frame bytes, so there is no ARGB bitmap
+ * in between and no chroma channels to encode. Rows are fed one at a time with writeRow(); each
+ * 8-row strip is transformed and entropy coded as soon as it is complete, so only eight rows are
+ * held at once. Tables are the standard IJG luminance quantization table, scaled by quality the
+ * way libjpeg does, and the standard luminance Huffman tables.
+ */
+public class GrayJpegEncoder {
+
+    private static final int[] ZIGZAG = {
+        0, 1, 8, 16, 9, 2, 3, 10,
+        17, 24, 32, 25, 18, 11, 4, 5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13, 6, 7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int[] LUMINANCE_QUANT = {
+        16, 11, 10, 16, 24, 40, 51, 61,
+        12, 12, 14, 19, 26, 58, 60, 55,
+        14, 13, 16, 24, 40, 57, 69, 56,
+        14, 17, 22, 29, 51, 87, 80, 62,
+        18, 22, 37, 56, 68, 109, 103, 77,
+        24, 35, 55, 64, 81, 104, 113, 92,
+        49, 64, 78, 87, 103, 121, 120, 101,
+        72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] DC_BITS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int[] DC_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] AC_BITS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+    private static final int[] AC_VALUES = {
+        0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+        0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+        0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+        0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+        0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+        0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+        0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+        0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+        0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+        0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+        0xf9, 0xfa
+    };
+
+    /* Row and column scale factors of the AAN DCT. */
+    private static final double[] AAN_SCALE = {
+        1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    private static final int[] DC_CODES = new int[12];
+    private static final int[] DC_LENGTHS = new int[12];
+    private static final int[] AC_CODES = new int[256];
+    private static final int[] AC_LENGTHS = new int[256];
+
+    static {
+        buildCodes(DC_BITS, DC_VALUES, DC_CODES, DC_LENGTHS);
+        buildCodes(AC_BITS, AC_VALUES, AC_CODES, AC_LENGTHS);
+    }
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final int blocksPerStrip;
+    private final int[] quant = new int[64];
+    private final float[] divisors = new float[64];
+
+    private final byte[] strip;
+    private final int stripStride;
+    private int rowsInStrip = 0;
+    private int rowsWritten = 0;
+
+    private final float[] block = new float[64];
+    private final int[] coefficients = new int[64];
+    private int lastDc = 0;
+
+    private final byte[] outBuf = new byte[4096];
+    private int outPos = 0;
+    private int bitBuffer = 0;
+    private int bitCount = 0;
+
+    /**
+     * Writes the headers. Rows are then passed top to bottom with writeRow(), followed by finish().
+     *
+     * @param quality 1 to 100, as in Bitmap.compress
+     */
+    public GrayJpegEncoder(OutputStream out, int width, int height, int quality) throws IOException {
+        if (width <= 0 || height <= 0 || width > 65535 || height > 65535)
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.blocksPerStrip = (width + 7) / 8;
+        this.stripStride = blocksPerStrip * 8;
+        this.strip = new byte[stripStride * 8];
+
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = (quality < 50) ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            int q = (LUMINANCE_QUANT[i] * scale + 50) / 100;
+            quant[i] = Math.max(1, Math.min(255, q));
+        }
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                int i = row * 8 + col;
+                divisors[i] = (float) (1.0 / (quant[i] * AAN_SCALE[row] * AAN_SCALE[col] * 8.0));
+            }
+        }
+        writeHeaders();
+    }
+
+    /**
+     * Encodes a whole frame, honouring its pitch; IB frames are usually stored bottom-up.
+     */
+    public static void encode(IBScanDevice.ImageData image, int quality, OutputStream out) throws IOException {
+        encode(ImageView.of(image), quality, out);
+    }
+
+    /**
+     * Encodes the view's rows top to bottom, such as a segment or a kernel output.
+     */
+    public static void encode(ImageView image, int quality, OutputStream out) throws IOException {
+        GrayJpegEncoder encoder = new GrayJpegEncoder(out, image.width, image.height, quality);
+        for (int y = 0; y < image.height; y++)
+            encoder.writeRow(image.buffer, image.rowOffset(y));
+        encoder.finish();
+    }
+
+    /**
+     * Adds the next row of width bytes, starting at offset in src.
+     */
+    public void writeRow(byte[] src, int offset) throws IOException {
+        if (rowsWritten >= height)
+            throw new IllegalStateException("All " + height + " rows have been written");
+        int base = rowsInStrip * stripStride;
+        System.arraycopy(src, offset, strip, base, width);
+        // Replicate the last column into the padding of a partial block.
+        byte edge = src[offset + width - 1];
+        for (int x = width; x < stripStride; x++)
+            strip[base + x] = edge;
+        rowsWritten++;
+        if (++rowsInStrip == 8)
+            encodeStrip();
+    }
+
+    /**
+     * Encodes the last partial strip and writes the end-of-image marker. Does not close the stream.
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height)
+            throw new IllegalStateException("Expected " + height + " rows, got " + rowsWritten);
+        if (rowsInStrip > 0) {
+            // Replicate the last row into the padding of a partial strip.
+            int last = (rowsInStrip - 1) * stripStride;
+            for (int r = rowsInStrip; r < 8; r++)
+                System.arraycopy(strip, last, strip, r * stripStride, stripStride);
+            encodeStrip();
+        }
+        // Pad the final byte with ones, as the standard requires.
+        if (bitCount > 0)
+            writeBits(0xff, 8 - bitCount);
+        writeByte(0xff);
+        writeByte(0xd9);
+        flush();
+    }
+
+    private void encodeStrip() throws IOException {
+        for (int bx = 0; bx < blocksPerStrip; bx++) {
+            int origin = bx * 8;
+            for (int row = 0; row < 8; row++) {
+                int src = row * stripStride + origin;
+                for (int col = 0; col < 8; col++)
+                    block[row * 8 + col] = (strip[src + col] & 0xff) - 128;
+            }
+            forwardDct(block);
+            for (int i = 0; i < 64; i++)
+                coefficients[i] = Math.round(block[i] * divisors[i]);
+            encodeBlock();
+        }
+        rowsInStrip = 0;
+        flush();
+    }
+
+    private void encodeBlock() throws IOException {
+        int dc = coefficients[0];
+        int diff = dc - lastDc;
+        lastDc = dc;
+        int size = magnitude(diff);
+        writeBits(DC_CODES[size], DC_LENGTHS[size]);
+        if (size > 0)
+            writeBits(amplitude(diff, size), size);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int ac = coefficients[ZIGZAG[k]];
+            if (ac == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writeBits(AC_CODES[0xf0], AC_LENGTHS[0xf0]);
+                run -= 16;
+            }
+            size = magnitude(ac);
+            int symbol = (run << 4) | size;
+            writeBits(AC_CODES[symbol], AC_LENGTHS[symbol]);
+            writeBits(amplitude(ac, size), size);
+            run = 0;
+        }
+        if (run > 0)
+            writeBits(AC_CODES[0x00], AC_LENGTHS[0x00]);
+    }
+
+    private static int magnitude(int value) {
+        int abs = Math.abs(value);
+        return (abs == 0) ? 0 : 32 - Integer.numberOfLeadingZeros(abs);
+    }
+
+    private static int amplitude(int value, int size) {
+        return (value < 0) ? (value - 1) & ((1 << size) - 1) : value;
+    }
+
+    /**
+     * In-place AAN forward DCT, as in libjpeg's jfdctflt.c; the output is scaled up by the AAN
+     * factors, which the quantization divisors undo.
+     */
+    private static void forwardDct(float[] d) {
+        for (int pass = 0; pass < 2; pass++) {
+            int step = (pass == 0) ? 1 : 8;
+            int next = (pass == 0) ? 8 : 1;
+            for (int line = 0; line < 8; line++) {
+                int p = line * next;
+                float tmp0 = d[p] + d[p + 7 * step];
+                float tmp7 = d[p] - d[p + 7 * step];
+                float tmp1 = d[p + step] + d[p + 6 * step];
+                float tmp6 = d[p + step] - d[p + 6 * step];
+                float tmp2 = d[p + 2 * step] + d[p + 5 * step];
+                float tmp5 = d[p + 2 * step] - d[p + 5 * step];
+                float tmp3 = d[p + 3 * step] + d[p + 4 * step];
+                float tmp4 = d[p + 3 * step] - d[p + 4 * step];
+
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                d[p] = tmp10 + tmp11;
+                d[p + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                d[p + 2 * step] = tmp13 + z1;
+                d[p + 6 * step] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+
+                d[p + 5 * step] = z13 + z2;
+                d[p + 3 * step] = z13 - z2;
+                d[p + step] = z11 + z4;
+                d[p + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    private void writeHeaders() throws IOException {
+        // SOI and a JFIF APP0 segment.
+        writeRaw(0xff, 0xd8);
+        writeRaw(0xff, 0xe0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0);
+
+        writeRaw(0xff, 0xdb, 0, 67, 0);
+        for (int k = 0; k < 64; k++)
+            writeByte(quant[ZIGZAG[k]]);
+
+        // SOF0: 8-bit precision, one component with id 1, 1x1 sampling, quantization table 0.
+        writeRaw(0xff, 0xc0, 0, 11, 8, height >> 8, height & 0xff, width >> 8, width & 0xff, 1, 1, 0x11, 0);
+
+        writeHuffmanTable(0x00, DC_BITS, DC_VALUES);
+        writeHuffmanTable(0x10, AC_BITS, AC_VALUES);
+
+        // SOS: one component using DC and AC table 0, full spectral range.
+        writeRaw(0xff, 0xda, 0, 8, 1, 1, 0x00, 0, 63, 0);
+        flush();
+    }
+
+    private void writeHuffmanTable(int classAndId, int[] bits, int[] values) throws IOException {
+        int length = 2 + 1 + 16 + values.length;
+        writeRaw(0xff, 0xc4, length >> 8, length & 0xff, classAndId);
+        for (int b : bits)
+            writeByte(b);
+        for (int v : values)
+            writeByte(v);
+    }
+
+    private static void buildCodes(int[] bits, int[] values, int[] codes, int[] lengths) {
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k]] = code++;
+                lengths[values[k]] = length;
+                k++;
+            }
+            code <<= 1;
+        }
+    }
+
+    private void writeBits(int value, int length) throws IOException {
+        bitBuffer = (bitBuffer << length) | (value & ((1 << length) - 1));
+        bitCount += length;
+        while (bitCount >= 8) {
+            int b = (bitBuffer >> (bitCount - 8)) & 0xff;
+            writeByte(b);
+            // A 0xff in entropy-coded data is followed by a stuffed zero byte.
+            if (b == 0xff)
+                writeByte(0);
+            bitCount -= 8;
+        }
+    }
+
+    private void writeRaw(int... bytes) throws IOException {
+        for (int b : bytes)
+            writeByte(b);
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (outPos == outBuf.length)
+            flush();
+        outBuf[outPos++] = (byte) b;
+    }
+
+    private void flush() throws IOException {
+        out.write(outBuf, 0, outPos);
+        outPos = 0;
+    }
+}
@@ -0,0 +1,362 @@
+package sa.redbullmobile.fpreader;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Lossless PNG writer for 8-bit grayscale frames.
+ *
+ * Rows are read straight from the frame through an ImageView, so bottom-up, padded and cropped
+ * frames need no copy, and are written as
+ * grayscale PNG without going through a Bitmap. Each row gets the filter whose output has the
+ * smallest sum of absolute values, the heuristic libpng uses. Deflaters are pooled and reset
+ * between images, since each one holds native memory that is only freed by end().
+ *
+ * With an executor, the image is cut into row stripes that are filtered and deflated in parallel.
+ * Every stripe but the last ends in a sync flush, so the stripes concatenate into one zlib stream;
+ * the Adler-32 checksums of the stripes are combined for the stream trailer.
+ */
+public class GrayPngEncoder {
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MIN_STRIPE_ROWS = 64;
+    private static final int MAX_POOLED_DEFLATERS = 4;
+    private static final int ADLER_BASE = 65521;
+
+    /* Deflaters with zlib framing, and raw ones for stripes, which get their framing from the caller. */
+    private static final ConcurrentLinkedQueue<Deflater> ZLIB_DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Deflater> RAW_DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private GrayPngEncoder() {
+    }
+
+    public static void encode(IBScanDevice.ImageData image, OutputStream out) throws IOException {
+        encode(ImageView.of(image), image.resolutionX, out, null);
+    }
+
+    public static void encode(IBScanDevice.ImageData image, FileChannel channel, ExecutorService stripes) throws IOException {
+        encode(ImageView.of(image), image.resolutionX, Channels.newOutputStream(channel), stripes);
+    }
+
+    /**
+     * Writes the view as PNG, top row first.
+     *
+     * @param resolution pixels per inch, written as a pHYs chunk when positive
+     * @param stripes    executor for parallel stripes, or null to encode on the calling thread
+     */
+    public static void encode(ImageView image, double resolution, OutputStream out, ExecutorService stripes) throws IOException {
+        int width = image.width;
+        int height = image.height;
+        ChunkWriter writer = new ChunkWriter(out);
+        out.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = 0;
+        writer.chunk("IHDR", header, 0, header.length);
+
+        if (resolution > 0) {
+            int perMetre = (int) Math.round(resolution / 0.0254);
+            byte[] phys = new byte[9];
+            putInt(phys, 0, perMetre);
+            putInt(phys, 4, perMetre);
+            phys[8] = 1;
+            writer.chunk("pHYs", phys, 0, phys.length);
+        }
+
+        int stripeCount = (stripes == null) ? 1 : Math.min(Runtime.getRuntime().availableProcessors(), height / MIN_STRIPE_ROWS);
+        if (stripeCount <= 1)
+            deflateSerial(image, writer);
+        else
+            deflateStripes(image, stripeCount, stripes, writer);
+
+        writer.chunk("IEND", header, 0, 0);
+        out.flush();
+    }
+
+    private static void deflateSerial(ImageView image, ChunkWriter writer) throws IOException {
+        Deflater deflater = acquire(false);
+        try {
+            int width = image.width;
+            byte[] filtered = new byte[width + 1];
+            byte[] scratch = new byte[width + 1];
+            byte[] deflated = new byte[CHUNK_SIZE];
+            for (int y = 0; y < image.height; y++) {
+                filterRow(image, y, filtered, scratch);
+                deflater.setInput(filtered, 0, filtered.length);
+                while (!deflater.needsInput())
+                    writer.data(deflated, deflater.deflate(deflated));
+            }
+            deflater.finish();
+            while (!deflater.finished())
+                writer.data(deflated, deflater.deflate(deflated));
+            writer.endData();
+        } finally {
+            release(deflater, false);
+        }
+    }
+
+    private static class Stripe {
+        byte[] data;
+        int length;
+        long adler;
+        long rawLength;
+    }
+
+    private static void deflateStripes(final ImageView image, int count, ExecutorService stripes, ChunkWriter writer) throws IOException {
+        int height = image.height;
+        List<Future<Stripe>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int first = (int) ((long) height * i / count);
+            final int last = (int) ((long) height * (i + 1) / count);
+            final boolean end = i == count - 1;
+            futures.add(stripes.submit(() -> deflateStripe(image, first, last, end)));
+        }
+
+        // zlib header for the default compression level; the checksum goes after the last stripe.
+        byte[] zlibHeader = { 0x78, (byte) 0x9c };
+        writer.data(zlibHeader, zlibHeader.length);
+        long adler = 1;
+        try {
+            for (Future<Stripe> future : futures) {
+                Stripe stripe = future.get();
+                writer.data(stripe.data, stripe.length);
+                adler = combineAdler(adler, stripe.adler, stripe.rawLength);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding PNG stripes");
+        } catch (ExecutionException e) {
+            throw new IOException("Encoding a PNG stripe failed", e.getCause());
+        } finally {
+            for (Future<Stripe> future : futures)
+                future.cancel(true);
+        }
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) adler);
+        writer.data(trailer, trailer.length);
+        writer.endData();
+    }
+
+    private static Stripe deflateStripe(ImageView image, int first, int last, boolean end) {
+        Deflater deflater = acquire(true);
+        try {
+            int width = image.width;
+            Adler32 adler = new Adler32();
+            byte[] filtered = new byte[width + 1];
+            byte[] scratch = new byte[width + 1];
+            byte[] data = new byte[Math.max(1024, (last - first) * (width + 1) / 2)];
+            int length = 0;
+            for (int y = first; y < last; y++) {
+                filterRow(image, y, filtered, scratch);
+                adler.update(filtered, 0, filtered.length);
+                deflater.setInput(filtered, 0, filtered.length);
+                while (!deflater.needsInput()) {
+                    if (length == data.length)
+                        data = Arrays.copyOf(data, data.length * 2);
+                    length += deflater.deflate(data, length, data.length - length);
+                }
+            }
+            // A sync flush ends on a byte boundary, so the next stripe's blocks can follow directly.
+            if (end)
+                deflater.finish();
+            while (true) {
+                if (length == data.length)
+                    data = Arrays.copyOf(data, data.length * 2);
+                int n = end ? deflater.deflate(data, length, data.length - length)
+                        : deflater.deflate(data, length, data.length - length, Deflater.SYNC_FLUSH);
+                length += n;
+                if (end ? deflater.finished() : length < data.length)
+                    break;
+            }
+            Stripe stripe = new Stripe();
+            stripe.data = data;
+            stripe.length = length;
+            stripe.adler = adler.getValue();
+            stripe.rawLength = (long) (last - first) * (width + 1);
+            return stripe;
+        } finally {
+            release(deflater, true);
+        }
+    }
+
+    /**
+     * Filters image row y into out, whose first byte is the filter type.
+     */
+    private static void filterRow(ImageView image, int y, byte[] out, byte[] scratch) {
+        byte[] buf = image.buffer;
+        int width = image.width;
+        int row = image.rowOffset(y);
+        int prior = (y > 0) ? image.rowOffset(y - 1) : -1;
+
+        int bestType = FILTER_NONE;
+        long bestSum = Long.MAX_VALUE;
+        byte[] best = out;
+        byte[] candidate = scratch;
+        for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+            if (prior < 0 && (type == FILTER_UP || type == FILTER_PAETH))
+                continue;
+            long sum = 0;
+            for (int x = 0; x < width; x++) {
+                int raw = buf[row + x] & 0xff;
+                int a = (x > 0) ? buf[row + x - 1] & 0xff : 0;
+                int b = (prior >= 0) ? buf[prior + x] & 0xff : 0;
+                int predicted;
+                switch (type) {
+                    case FILTER_SUB:
+                        predicted = a;
+                        break;
+                    case FILTER_UP:
+                        predicted = b;
+                        break;
+                    case FILTER_AVERAGE:
+                        predicted = (a + b) >> 1;
+                        break;
+                    case FILTER_PAETH:
+                        predicted = paeth(a, b, (x > 0 && prior >= 0) ? buf[prior + x - 1] & 0xff : 0);
+                        break;
+                    default:
+                        predicted = 0;
+                        break;
+                }
+                byte value = (byte) (raw - predicted);
+                candidate[x + 1] = value;
+                sum += Math.abs(value);
+                if (sum >= bestSum)
+                    break;
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestType = type;
+                byte[] swap = best;
+                best = candidate;
+                candidate = swap;
+            }
+        }
+        if (best != out)
+            System.arraycopy(best, 1, out, 1, width);
+        out[0] = (byte) bestType;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        return (pb <= pc) ? b : c;
+    }
+
+    /**
+     * adler32_combine from zlib: the checksum of two concatenated blocks from their own checksums.
+     */
+    private static long combineAdler(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1))
+            sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE)
+            sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static Deflater acquire(boolean nowrap) {
+        Deflater deflater = (nowrap ? RAW_DEFLATERS : ZLIB_DEFLATERS).poll();
+        return (deflater != null) ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+    }
+
+    private static void release(Deflater deflater, boolean nowrap) {
+        ConcurrentLinkedQueue<Deflater> pool = nowrap ? RAW_DEFLATERS : ZLIB_DEFLATERS;
+        deflater.reset();
+        if (pool.size() < MAX_POOLED_DEFLATERS)
+            pool.offer(deflater);
+        else
+            deflater.end();
+    }
+
+    private static void putInt(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * Collects deflated bytes into IDAT chunks of up to CHUNK_SIZE bytes.
+     */
+    private static class ChunkWriter {
+        private final OutputStream out;
+        private final CRC32 crc = new CRC32();
+        private final byte[] prefix = new byte[8];
+        private final byte[] idat = new byte[CHUNK_SIZE];
+        private int idatLength = 0;
+
+        ChunkWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void data(byte[] buf, int len) throws IOException {
+            int off = 0;
+            while (len > 0) {
+                int n = Math.min(len, idat.length - idatLength);
+                System.arraycopy(buf, off, idat, idatLength, n);
+                idatLength += n;
+                off += n;
+                len -= n;
+                if (idatLength == idat.length)
+                    endData();
+            }
+        }
+
+        void endData() throws IOException {
+            if (idatLength > 0)
+                chunk("IDAT", idat, 0, idatLength);
+            idatLength = 0;
+        }
+
+        void chunk(String type, byte[] buf, int off, int len) throws IOException {
+            putInt(prefix, 0, len);
+            for (int i = 0; i < 4; i++)
+                prefix[4 + i] = (byte) type.charAt(i);
+            crc.reset();
+            crc.update(prefix, 4, 4);
+            crc.update(buf, off, len);
+            out.write(prefix);
+            out.write(buf, off, len);
+            byte[] trailer = new byte[4];
+            putInt(trailer, 0, (int) crc.getValue());
+            out.write(trailer);
+        }
+    }
+}
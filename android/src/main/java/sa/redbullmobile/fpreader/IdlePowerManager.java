@@ -0,0 +1,269 @@
+package sa.redbullmobile.fpreader;
+
+import android.os.SystemClock;
+
+import com.getcapacitor.JSObject;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Puts an idle device to sleep in two stages and wakes it ahead of the next expected capture.
+ *
+ * After a capture finishes the device is switched to power-save mode once it has been idle for
+ * powerSaveAfterMs, and closed once it has been idle for closeAfterMs. Either stage can be
+ * disabled with a value of zero or less; closing is off unless the app asks for it, since a
+ * closed device has to be reopened on the next capture. The intervals between recent capture
+ * requests are remembered; when the device is asleep and there is enough history, it is woken
+ * (or reopened) wakeLeadMs before the median interval has elapsed again.
+ *
+ * A capture that finds the device awake after it had been put to sleep counts as a hit, one that
+ * finds it asleep as a miss. A predictive wake that ends in sleep again without a capture counts
+ * as early. Timers run on the device actor; the statistics may be read from any thread.
+ *
+ * Device calls go through JNI and can take a while, so they are made outside the monitor: only
+ * the actor changes the state, and readers such as toJSObject() never wait for the device.
+ */
+public class IdlePowerManager {
+
+    public interface Device {
+        boolean enterPowerSave();
+
+        boolean exitPowerSave();
+
+        boolean close();
+
+        /** Returns whether the device is open or an open has been started. */
+        boolean reopen();
+    }
+
+    private enum State { ACTIVE, IDLE, POWER_SAVE, CLOSED }
+
+    private static final int HISTORY = 16;
+    private static final int MIN_HISTORY = 3;
+
+    private final DeviceActor actor;
+    private final Device device;
+
+    private long powerSaveAfterMs = 30000;
+    private long closeAfterMs = 0;
+    private long wakeLeadMs = 2000;
+    private boolean predictive = true;
+
+    private State state = State.ACTIVE;
+    private final long[] intervals = new long[HISTORY];
+    private int intervalCount = 0;
+    private int nextInterval = 0;
+    private long lastRequestAt = 0;
+    private long predictedAt = 0;
+    private boolean sleptSinceUse = false;
+    private boolean wokeForPrediction = false;
+
+    private ScheduledFuture<?> powerSaveTimer = null;
+    private ScheduledFuture<?> closeTimer = null;
+    private ScheduledFuture<?> wakeTimer = null;
+
+    private long wakes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long early = 0;
+    private long errorCount = 0;
+    private long errorSumMs = 0;
+
+    public IdlePowerManager(DeviceActor actor, Device device) {
+        this.actor = actor;
+        this.device = device;
+    }
+
+    public synchronized void configure(Long powerSaveAfterMs, Long closeAfterMs, Long wakeLeadMs, Boolean predictive) {
+        if (powerSaveAfterMs != null)
+            this.powerSaveAfterMs = powerSaveAfterMs;
+        if (closeAfterMs != null)
+            this.closeAfterMs = closeAfterMs;
+        if (wakeLeadMs != null)
+            this.wakeLeadMs = Math.max(0, wakeLeadMs);
+        if (predictive != null)
+            this.predictive = predictive;
+    }
+
+    /**
+     * Called on the device thread before a capture request touches the device. Leaves power-save
+     * mode if needed; a closed device is left for the caller to open.
+     */
+    public void onCaptureRequested() {
+        boolean inPowerSave;
+        synchronized (this) {
+            inPowerSave = noteCaptureRequested();
+        }
+        if (inPowerSave)
+            device.exitPowerSave();
+    }
+
+    /* Bookkeeping for onCaptureRequested; returns whether the device was in power-save mode. */
+    private boolean noteCaptureRequested() {
+        long now = SystemClock.elapsedRealtime();
+        cancelTimers();
+
+        if (lastRequestAt > 0) {
+            intervals[nextInterval] = now - lastRequestAt;
+            nextInterval = (nextInterval + 1) % HISTORY;
+            intervalCount = Math.min(intervalCount + 1, HISTORY);
+        }
+        if (sleptSinceUse) {
+            if (state == State.IDLE)
+                hits++;
+            else
+                misses++;
+            if (predictedAt > 0) {
+                errorCount++;
+                errorSumMs += Math.abs(now - predictedAt);
+            }
+        }
+        boolean inPowerSave = state == State.POWER_SAVE;
+        lastRequestAt = now;
+        predictedAt = 0;
+        sleptSinceUse = false;
+        wokeForPrediction = false;
+        state = State.ACTIVE;
+        return inPowerSave;
+    }
+
+    /**
+     * Called on the device thread when a capture request has finished; starts the idle timers.
+     */
+    public synchronized void onCaptureFinished() {
+        state = State.IDLE;
+        scheduleSleep();
+    }
+
+    /**
+     * Called on the device thread when the device is gone; nothing is scheduled until it is used
+     * again.
+     */
+    public synchronized void onDeviceLost() {
+        cancelTimers();
+        state = State.CLOSED;
+        predictedAt = 0;
+        wokeForPrediction = false;
+    }
+
+    public synchronized JSObject toJSObject() {
+        JSObject ret = new JSObject();
+        ret.put("state", state.name().toLowerCase());
+        ret.put("powerSaveAfterMs", powerSaveAfterMs);
+        ret.put("closeAfterMs", closeAfterMs);
+        ret.put("wakeLeadMs", wakeLeadMs);
+        ret.put("predictive", predictive);
+        long interval = predictInterval();
+        ret.put("predictedIntervalMs", (interval > 0) ? interval : null);
+        ret.put("wakes", wakes);
+        ret.put("hits", hits);
+        ret.put("misses", misses);
+        ret.put("early", early);
+        ret.put("avgErrorMs", (errorCount > 0) ? errorSumMs / errorCount : null);
+        return ret;
+    }
+
+    private void scheduleSleep() {
+        if (powerSaveAfterMs > 0 && (closeAfterMs <= 0 || powerSaveAfterMs < closeAfterMs))
+            powerSaveTimer = actor.postDelayed(this::powerSaveNow, powerSaveAfterMs);
+        if (closeAfterMs > 0)
+            closeTimer = actor.postDelayed(this::closeNow, closeAfterMs);
+    }
+
+    private void powerSaveNow() {
+        synchronized (this) {
+            powerSaveTimer = null;
+            if (state != State.IDLE)
+                return;
+        }
+        if (!device.enterPowerSave())
+            return;
+        synchronized (this) {
+            state = State.POWER_SAVE;
+            fellAsleep();
+        }
+    }
+
+    private void closeNow() {
+        synchronized (this) {
+            closeTimer = null;
+            if (state != State.IDLE && state != State.POWER_SAVE)
+                return;
+        }
+        if (!device.close())
+            return;
+        synchronized (this) {
+            state = State.CLOSED;
+            fellAsleep();
+        }
+    }
+
+    private void fellAsleep() {
+        if (wokeForPrediction)
+            early++;
+        wokeForPrediction = false;
+        sleptSinceUse = true;
+        scheduleWake();
+    }
+
+    private void scheduleWake() {
+        if (wakeTimer != null)
+            wakeTimer.cancel(false);
+        wakeTimer = null;
+        long interval = predictive ? predictInterval() : 0;
+        if (interval <= 0)
+            return;
+        long now = SystemClock.elapsedRealtime();
+        long expected = lastRequestAt + interval;
+        // Only wake for a request that is still ahead; one that is overdue is not predicted.
+        if (expected <= now)
+            return;
+        predictedAt = expected;
+        wakeTimer = actor.postDelayed(this::wakeNow, Math.max(0, expected - wakeLeadMs - now));
+    }
+
+    private void wakeNow() {
+        State asleep;
+        synchronized (this) {
+            wakeTimer = null;
+            asleep = state;
+        }
+        boolean awake;
+        if (asleep == State.POWER_SAVE)
+            awake = device.exitPowerSave();
+        else if (asleep == State.CLOSED)
+            awake = device.reopen();
+        else
+            return;
+        // A failed wake leaves the device asleep; the next capture will find it so.
+        if (!awake)
+            return;
+        synchronized (this) {
+            state = State.IDLE;
+            wakes++;
+            wokeForPrediction = true;
+            scheduleSleep();
+        }
+    }
+
+    private long predictInterval() {
+        if (intervalCount < MIN_HISTORY)
+            return 0;
+        long[] sorted = Arrays.copyOf(intervals, intervalCount);
+        Arrays.sort(sorted);
+        return sorted[intervalCount / 2];
+    }
+
+    private void cancelTimers() {
+        if (powerSaveTimer != null)
+            powerSaveTimer.cancel(false);
+        if (closeTimer != null)
+            closeTimer.cancel(false);
+        if (wakeTimer != null)
+            wakeTimer.cancel(false);
+        powerSaveTimer = null;
+        closeTimer = null;
+        wakeTimer = null;
+    }
+}
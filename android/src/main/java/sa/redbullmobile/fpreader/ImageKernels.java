@@ -0,0 +1,345 @@
+package sa.redbullmobile.fpreader;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Pixel loops over 8-bit grayscale frames, split into row tiles on a fork-join pool.
+ *
+ * Frames below SEQUENTIAL_THRESHOLD pixels, or any frame when the parallelism is 1, run on the
+ * calling thread; preview-sized frames are not worth the hand-off. Sources are ImageViews, so a
+ * bottom-up, padded or cropped frame is read in place and the flip costs no extra pass; outputs
+ * are packed top-down rows. Destination arrays may be passed in for reuse, or null to allocate.
+ */
+public final class ImageKernels {
+
+    public static final int SEQUENTIAL_THRESHOLD = 256 * 1024;
+    private static final int MIN_TILE_ROWS = 16;
+
+    private static final Object POOL_LOCK = new Object();
+    private static ForkJoinPool pool = null;
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private interface Rows {
+        void run(int from, int to);
+    }
+
+    private ImageKernels() {
+    }
+
+    /**
+     * Sets the number of threads used for large frames, replacing the pool. 1 runs everything on
+     * the calling thread.
+     */
+    public static void setParallelism(int threads) {
+        synchronized (POOL_LOCK) {
+            parallelism = Math.max(1, threads);
+            if (pool != null)
+                pool.shutdown();
+            pool = null;
+        }
+    }
+
+    public static int getParallelism() {
+        synchronized (POOL_LOCK) {
+            return parallelism;
+        }
+    }
+
+    /**
+     * Copies the view into packed top-down rows; this is the flip for a bottom-up frame.
+     */
+    public static byte[] copy(final ImageView src, byte[] dst) {
+        final int width = src.width;
+        final byte[] out = allocate(dst, width * src.height);
+        forRows(src.height, width, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++)
+                    System.arraycopy(src.buffer, src.rowOffset(y), out, y * width, width);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Expands gray pixels to opaque ARGB, as Bitmap.setPixels expects.
+     */
+    public static int[] toArgb(final ImageView src, int[] dst) {
+        final int width = src.width;
+        final byte[] pixels = src.buffer;
+        final int[] out = (dst != null && dst.length >= width * src.height) ? dst : new int[width * src.height];
+        forRows(src.height, width, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    int in = src.rowOffset(y);
+                    int o = y * width;
+                    for (int x = 0; x < width; x++) {
+                        int g = pixels[in + x] & 0xff;
+                        out[o + x] = 0xff000000 | (g << 16) | (g << 8) | g;
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Resizes to dstWidth x dstHeight. Each destination pixel is the average of the source pixels
+     * it covers, so downscaling does not alias; when enlarging it is the nearest source pixel.
+     */
+    public static byte[] scale(final ImageView src, byte[] dst, final int dstWidth, final int dstHeight) {
+        final int width = src.width;
+        final int height = src.height;
+        final byte[] pixels = src.buffer;
+        if (dstWidth <= 0 || dstHeight <= 0)
+            throw new IllegalArgumentException("Invalid size " + dstWidth + "x" + dstHeight);
+        final byte[] out = allocate(dst, dstWidth * dstHeight);
+        // Source column span of every destination column, shared by all rows.
+        final int[] x0 = new int[dstWidth];
+        final int[] x1 = new int[dstWidth];
+        for (int x = 0; x < dstWidth; x++) {
+            x0[x] = (int) ((long) x * width / dstWidth);
+            x1[x] = Math.max(x0[x] + 1, (int) ((long) (x + 1) * width / dstWidth));
+        }
+        forRows(dstHeight, Math.max(width, dstWidth) * Math.max(1, height / dstHeight), new Rows() {
+            @Override
+            public void run(int from, int to) {
+                int[] sums = new int[dstWidth];
+                for (int y = from; y < to; y++) {
+                    int y0 = (int) ((long) y * height / dstHeight);
+                    int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * height / dstHeight));
+                    java.util.Arrays.fill(sums, 0);
+                    for (int sy = y0; sy < y1; sy++) {
+                        int in = src.rowOffset(sy);
+                        for (int x = 0; x < dstWidth; x++) {
+                            int sum = 0;
+                            for (int sx = x0[x]; sx < x1[x]; sx++)
+                                sum += pixels[in + sx] & 0xff;
+                            sums[x] += sum;
+                        }
+                    }
+                    int rows = y1 - y0;
+                    int o = y * dstWidth;
+                    for (int x = 0; x < dstWidth; x++) {
+                        int count = rows * (x1[x] - x0[x]);
+                        out[o + x] = (byte) ((sums[x] + count / 2) / count);
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Copies the cropWidth x cropHeight rectangle at (x, y) into packed rows. Callers that only
+     * read the region can use ImageView.crop() and skip the copy.
+     */
+    public static byte[] crop(ImageView src, int x, int y, int cropWidth, int cropHeight, byte[] dst) {
+        return copy(src.crop(x, y, cropWidth, cropHeight), dst);
+    }
+
+    /**
+     * Resamples through an affine map: destination pixel (u, v) is the bilinear sample at source
+     * (m[0] * u + m[1] * v + m[2], m[3] * u + m[4] * v + m[5]). Samples that fall outside the
+     * source take the background level.
+     */
+    public static byte[] warpAffine(final ImageView src, final double[] m, final int background, byte[] dst, final int dstWidth, final int dstHeight) {
+        if (dstWidth <= 0 || dstHeight <= 0)
+            throw new IllegalArgumentException("Invalid size " + dstWidth + "x" + dstHeight);
+        final byte[] out = allocate(dst, dstWidth * dstHeight);
+        final byte[] pixels = src.buffer;
+        final int maxX = src.width - 1;
+        final int maxY = src.height - 1;
+        forRows(dstHeight, dstWidth * 4, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int v = from; v < to; v++) {
+                    double sx = m[1] * v + m[2];
+                    double sy = m[4] * v + m[5];
+                    int o = v * dstWidth;
+                    for (int u = 0; u < dstWidth; u++, sx += m[0], sy += m[3]) {
+                        if (sx < 0 || sy < 0 || sx > maxX || sy > maxY) {
+                            out[o + u] = (byte) background;
+                            continue;
+                        }
+                        int x0 = (int) sx;
+                        int y0 = (int) sy;
+                        int x1 = Math.min(x0 + 1, maxX);
+                        int y1 = Math.min(y0 + 1, maxY);
+                        double fx = sx - x0;
+                        double fy = sy - y0;
+                        int r0 = src.rowOffset(y0);
+                        int r1 = src.rowOffset(y1);
+                        double top = (pixels[r0 + x0] & 0xff) + fx * ((pixels[r0 + x1] & 0xff) - (pixels[r0 + x0] & 0xff));
+                        double bottom = (pixels[r1 + x0] & 0xff) + fx * ((pixels[r1 + x1] & 0xff) - (pixels[r1 + x0] & 0xff));
+                        out[o + u] = (byte) (int) (top + fy * (bottom - top) + 0.5);
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * A lookup table that stretches [low, high] linearly to [0, 255], clamping outside it.
+     */
+    public static byte[] contrastLut(int low, int high) {
+        byte[] lut = new byte[256];
+        int range = Math.max(1, high - low);
+        for (int i = 0; i < 256; i++) {
+            int v = (i - low) * 255 / range;
+            lut[i] = (byte) Math.max(0, Math.min(255, v));
+        }
+        return lut;
+    }
+
+    /**
+     * Maps every pixel through the 256-entry table into packed rows. dst may be the source buffer
+     * when the view is packed.
+     */
+    public static byte[] applyLut(final ImageView src, final byte[] lut, byte[] dst) {
+        if (lut.length < 256)
+            throw new IllegalArgumentException("Lookup table has " + lut.length + " entries");
+        final int width = src.width;
+        final byte[] pixels = src.buffer;
+        final byte[] out = allocate(dst, width * src.height);
+        forRows(src.height, width, new Rows() {
+            @Override
+            public void run(int from, int to) {
+                for (int y = from; y < to; y++) {
+                    int in = src.rowOffset(y);
+                    int o = y * width;
+                    for (int x = 0; x < width; x++)
+                        out[o + x] = lut[pixels[in + x] & 0xff];
+                }
+            }
+        });
+        return out;
+    }
+
+    public static int[] histogram(ImageView src) {
+        int threads = getParallelism();
+        if (threads <= 1 || (long) src.width * src.height < SEQUENTIAL_THRESHOLD) {
+            int[] counts = new int[256];
+            countRows(src, 0, src.height, counts);
+            return counts;
+        }
+        return pool().invoke(new HistogramTask(src, 0, src.height, tileRows(src.height, threads)));
+    }
+
+    /**
+     * The low and high gray levels below and above which the given fraction of pixels lie.
+     */
+    public static int[] percentiles(int[] histogram, double fraction) {
+        long total = 0;
+        for (int c : histogram)
+            total += c;
+        long cut = (long) (total * fraction);
+        int low = 0;
+        for (long seen = 0; low < 255 && (seen += histogram[low]) <= cut; low++)
+            ;
+        int high = 255;
+        for (long seen = 0; high > 0 && (seen += histogram[high]) <= cut; high--)
+            ;
+        return new int[] { low, Math.max(low, high) };
+    }
+
+    private static void countRows(ImageView src, int from, int to, int[] counts) {
+        byte[] pixels = src.buffer;
+        for (int y = from; y < to; y++) {
+            for (int i = src.rowOffset(y), end = i + src.width; i < end; i++)
+                counts[pixels[i] & 0xff]++;
+        }
+    }
+
+    private static class HistogramTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final ImageView src;
+        private final int from;
+        private final int to;
+        private final int tile;
+
+        HistogramTask(ImageView src, int from, int to, int tile) {
+            this.src = src;
+            this.from = from;
+            this.to = to;
+            this.tile = tile;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= tile) {
+                int[] counts = new int[256];
+                countRows(src, from, to, counts);
+                return counts;
+            }
+            int mid = (from + to) >>> 1;
+            HistogramTask left = new HistogramTask(src, from, mid, tile);
+            left.fork();
+            int[] counts = new HistogramTask(src, mid, to, tile).compute();
+            int[] other = left.join();
+            for (int i = 0; i < 256; i++)
+                counts[i] += other[i];
+            return counts;
+        }
+    }
+
+    private static class RowTiles extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Rows rows;
+        private final int from;
+        private final int to;
+        private final int tile;
+
+        RowTiles(Rows rows, int from, int to, int tile) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.tile = tile;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= tile) {
+                rows.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RowTiles(rows, from, mid, tile), new RowTiles(rows, mid, to, tile));
+        }
+    }
+
+    /*
+     * rowCost is the number of source pixels touched per output row.
+     */
+    private static void forRows(int count, int rowCost, Rows rows) {
+        int threads = getParallelism();
+        if (threads <= 1 || (long) count * rowCost < SEQUENTIAL_THRESHOLD) {
+            rows.run(0, count);
+            return;
+        }
+        pool().invoke(new RowTiles(rows, 0, count, tileRows(count, threads)));
+    }
+
+    /* About four tiles per thread, so a slow thread does not hold up the rest. */
+    private static int tileRows(int count, int threads) {
+        return Math.max(MIN_TILE_ROWS, count / (threads * 4));
+    }
+
+    private static ForkJoinPool pool() {
+        synchronized (POOL_LOCK) {
+            if (pool == null)
+                pool = new ForkJoinPool(parallelism);
+            return pool;
+        }
+    }
+
+    private static byte[] allocate(byte[] dst, int length) {
+        return (dst != null && dst.length >= length) ? dst : new byte[length];
+    }
+}
@@ -0,0 +1,92 @@
+package sa.redbullmobile.fpreader;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+
+/**
+ * A width x height window of 8-bit pixels inside a larger buffer, without copying it.
+ *
+ * Rows are always addressed top-down: row y starts at offset + y * stride. A negative stride
+ * describes a bottom-up buffer, so the vertical flip of IB frames is part of the view rather
+ * than a pass over the pixels, and a stride wider than width covers padded rows and sub-images.
+ * Crops and segments are views over the same buffer; only pack() copies.
+ */
+public final class ImageView {
+
+    public final byte[] buffer;
+    public final int offset;
+    public final int width;
+    public final int height;
+    public final int stride;
+
+    public ImageView(byte[] buffer, int offset, int width, int height, int stride) {
+        if (width <= 0 || height <= 0 || Math.abs(stride) < width)
+            throw new IllegalArgumentException("Invalid view " + width + "x" + height + " with stride " + stride);
+        long first = offset + Math.min(0L, (long) (height - 1) * stride);
+        long last = offset + Math.max(0L, (long) (height - 1) * stride) + width;
+        if (first < 0 || last > buffer.length)
+            throw new IllegalArgumentException("View " + width + "x" + height + "+" + offset + " with stride " + stride + " outside a buffer of " + buffer.length + " bytes");
+        this.buffer = buffer;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    /**
+     * The frame as ImageData describes it: a positive pitch is top-down, a negative one bottom-up.
+     * A pitch of 0 is taken as bottom-up rows of width bytes, which is how IB frames are laid out.
+     */
+    public static ImageView of(IBScanDevice.ImageData image) {
+        return of(image.buffer, image.width, image.height, image.pitch);
+    }
+
+    public static ImageView of(byte[] buffer, int width, int height, int pitch) {
+        if (pitch > 0)
+            return new ImageView(buffer, 0, width, height, pitch);
+        int rowStep = (pitch == 0) ? width : -pitch;
+        return new ImageView(buffer, (height - 1) * rowStep, width, height, -rowStep);
+    }
+
+    /**
+     * Packed top-down rows, as ImageKernels returns them.
+     */
+    public static ImageView packed(byte[] buffer, int width, int height) {
+        return new ImageView(buffer, 0, width, height, width);
+    }
+
+    public int rowOffset(int y) {
+        return offset + y * stride;
+    }
+
+    public int get(int x, int y) {
+        return buffer[offset + y * stride + x] & 0xff;
+    }
+
+    /**
+     * The cropWidth x cropHeight window at (x, y), sharing this view's buffer.
+     */
+    public ImageView crop(int x, int y, int cropWidth, int cropHeight) {
+        if (x < 0 || y < 0 || cropWidth <= 0 || cropHeight <= 0 || x + cropWidth > width || y + cropHeight > height)
+            throw new IllegalArgumentException("Crop " + cropWidth + "x" + cropHeight + "+" + x + "+" + y + " outside " + width + "x" + height);
+        return new ImageView(buffer, rowOffset(y) + x, cropWidth, cropHeight, stride);
+    }
+
+    /**
+     * True when the rows are contiguous and top-down from the start of the buffer.
+     */
+    public boolean isPacked() {
+        return offset == 0 && stride == width;
+    }
+
+    /**
+     * Packed top-down rows: the buffer itself when already packed, otherwise a copy.
+     */
+    public byte[] pack() {
+        if (isPacked() && buffer.length == width * height)
+            return buffer;
+        byte[] out = new byte[width * height];
+        for (int y = 0; y < height; y++)
+            System.arraycopy(buffer, rowOffset(y), out, y * width, width);
+        return out;
+    }
+}
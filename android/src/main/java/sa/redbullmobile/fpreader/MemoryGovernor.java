@@ -0,0 +1,167 @@
+package sa.redbullmobile.fpreader;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.getcapacitor.JSObject;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks memory pressure from onTrimMemory and from the free Java heap, and scales the plugin's
+ * memory use down while it lasts.
+ *
+ * The effective level is the worse of the last trim signal (which expires after TRIM_SIGNAL_MS,
+ * as Android never reports that pressure is over) and the heap level sampled on demand. On a
+ * change the shared buffer pool is trimmed to the level's limit and listeners are told, so they
+ * can drop derived data. Encoders ask isWsqOnly() and getPreviewScale() before allocating.
+ */
+public class MemoryGovernor implements ComponentCallbacks2 {
+
+    public enum Pressure {
+        NORMAL(8 * 1024 * 1024),
+        MODERATE(4 * 1024 * 1024),
+        HIGH(1024 * 1024),
+        CRITICAL(0);
+
+        final long poolBytes;
+
+        Pressure(long poolBytes) {
+            this.poolBytes = poolBytes;
+        }
+    }
+
+    public interface Listener {
+        void onPressureChanged(Pressure pressure);
+    }
+
+    private static final String TAG = "RBM";
+    private static final long TRIM_SIGNAL_MS = 60000;
+
+    private final BufferPool pool;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Pressure trimPressure = Pressure.NORMAL;
+    private volatile long trimAt = 0;
+    private volatile Pressure heapPressure = Pressure.NORMAL;
+    private volatile Pressure pressure = Pressure.NORMAL;
+
+    public MemoryGovernor(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public Pressure getPressure() {
+        return pressure;
+    }
+
+    /**
+     * Re-reads the heap and returns the effective level. Called before large allocations.
+     */
+    public Pressure sample() {
+        Runtime runtime = Runtime.getRuntime();
+        long max = runtime.maxMemory();
+        long available = max - (runtime.totalMemory() - runtime.freeMemory());
+        double ratio = (double) available / max;
+        if (ratio < 0.10)
+            heapPressure = Pressure.CRITICAL;
+        else if (ratio < 0.20)
+            heapPressure = Pressure.HIGH;
+        else if (ratio < 0.35)
+            heapPressure = Pressure.MODERATE;
+        else
+            heapPressure = Pressure.NORMAL;
+        return update();
+    }
+
+    /**
+     * Whether results should carry only the WSQ template, without the JPEG image.
+     */
+    public boolean isWsqOnly() {
+        return pressure.compareTo(Pressure.HIGH) >= 0;
+    }
+
+    /**
+     * Preview downscale factor: the base factor, doubled under moderate pressure and quadrupled
+     * above that.
+     */
+    public int getPreviewScale(int baseScale) {
+        switch (pressure) {
+            case NORMAL:
+                return baseScale;
+            case MODERATE:
+                return baseScale * 2;
+            default:
+                return baseScale * 4;
+        }
+    }
+
+    public JSObject toJSObject() {
+        Runtime runtime = Runtime.getRuntime();
+        JSObject ret = new JSObject();
+        ret.put("level", pressure.name().toLowerCase());
+        ret.put("trimLevel", trimPressure.name().toLowerCase());
+        ret.put("heapLevel", heapPressure.name().toLowerCase());
+        ret.put("heapMaxMb", runtime.maxMemory() / (1024 * 1024));
+        ret.put("heapUsedMb", (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024));
+        ret.put("pooledBytes", pool.getPooledBytes());
+        ret.put("wsqOnly", isWsqOnly());
+        return ret;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        Pressure signalled;
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL)
+            signalled = Pressure.CRITICAL;
+        else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW)
+            signalled = Pressure.HIGH;
+        else if (level == TRIM_MEMORY_RUNNING_MODERATE)
+            signalled = Pressure.MODERATE;
+        else
+            signalled = Pressure.NORMAL;
+
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // Nothing is captured while hidden; drop the pooled arrays but keep the level's limit.
+            pool.clear();
+        }
+        trimPressure = signalled;
+        trimAt = SystemClock.elapsedRealtime();
+        sample();
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private synchronized Pressure update() {
+        Pressure trim = trimPressure;
+        if (trim != Pressure.NORMAL && SystemClock.elapsedRealtime() - trimAt > TRIM_SIGNAL_MS)
+            trimPressure = trim = Pressure.NORMAL;
+        Pressure next = (trim.compareTo(heapPressure) > 0) ? trim : heapPressure;
+        if (next == pressure)
+            return next;
+
+        Log.d(TAG, "Memory pressure: " + pressure + " -> " + next);
+        pressure = next;
+        pool.trim(next.poolBytes);
+        for (Listener listener : listeners)
+            listener.onPressureChanged(next);
+        return next;
+    }
+}
@@ -0,0 +1,64 @@
+package sa.redbullmobile.fpreader;
+
+import android.hardware.usb.UsbDevice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * USB permission decisions per scanner, keyed by serial number.
+ *
+ * Android asks again every time a scanner is plugged in, so the attach pipeline consults this
+ * cache first: a scanner the user has already refused is not prompted again until the decisions
+ * are reset, and a scanner with a prompt already on screen is not prompted twice.
+ */
+public class PermissionCache {
+
+    private final Map<String, Boolean> decisions = new HashMap<>();
+    /* Prompts on screen: Android device ID to the key the device had when it was prompted. */
+    private final Map<Integer, String> requested = new HashMap<>();
+
+    /**
+     * Key for a device: its serial number, or the vendor, product and bus path when the serial
+     * cannot be read yet (API 29+ hides it until permission is granted).
+     */
+    public static String keyOf(UsbDevice device) {
+        String serial = null;
+        try {
+            serial = device.getSerialNumber();
+        } catch (SecurityException e) {
+            // Not readable before permission is granted.
+        }
+        if (serial != null && !serial.isEmpty())
+            return serial;
+        return device.getVendorId() + ":" + device.getProductId() + "@" + device.getDeviceName();
+    }
+
+    /**
+     * Whether a permission prompt should be shown for the device.
+     */
+    public boolean shouldRequest(int deviceId, String key) {
+        return !requested.containsKey(deviceId) && !Boolean.FALSE.equals(decisions.get(key));
+    }
+
+    public void markRequested(int deviceId, String key) {
+        requested.put(deviceId, key);
+    }
+
+    /**
+     * Records the user's decision. It is stored under the key the device had when it was
+     * prompted as well, since the serial number may only have become readable now.
+     */
+    public void record(int deviceId, String key, boolean granted) {
+        String promptedKey = requested.remove(deviceId);
+        if (promptedKey != null)
+            decisions.put(promptedKey, granted);
+        if (key != null)
+            decisions.put(key, granted);
+    }
+
+    public void reset() {
+        decisions.clear();
+        requested.clear();
+    }
+}
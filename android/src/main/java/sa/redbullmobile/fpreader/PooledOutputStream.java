@@ -0,0 +1,28 @@
+package sa.redbullmobile.fpreader;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * ByteArrayOutputStream whose backing array comes from a BufferPool and goes back to it on
+ * release(). The stream must not be used after it has been released.
+ */
+public class PooledOutputStream extends ByteArrayOutputStream {
+
+    private final BufferPool pool;
+
+    public PooledOutputStream(BufferPool pool, int sizeHint) {
+        super(0);
+        this.pool = pool;
+        this.buf = pool.acquire(sizeHint);
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public synchronized void release() {
+        pool.release(buf);
+        buf = new byte[0];
+        count = 0;
+    }
+}
@@ -0,0 +1,97 @@
+package sa.redbullmobile.fpreader;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+import com.integratedbiometrics.ibscanultimate.IBScanException;
+
+/**
+ * Limits and pacing for re-captures after a bad or empty result.
+ *
+ * A capture is retried until either the attempt limit or the overall deadline is reached. The
+ * delay before each retry grows geometrically up to a cap, and an optional escalation step can
+ * relax device settings before every retry.
+ */
+public class RetryPolicy {
+
+    /**
+     * Adjusts the device before a retry; attempt is the number of the attempt about to start (2..n).
+     */
+    public interface Escalation {
+        void apply(DeviceTuner tuner, int attempt) throws IBScanException;
+    }
+
+    /**
+     * Lowers CAPTURE_AREA_THRESHOLD by one step per retry, so a finger that keeps covering too
+     * little of the platen is still accepted eventually.
+     */
+    public static final Escalation LOWER_AREA_THRESHOLD = new Escalation() {
+        private static final int MIN_THRESHOLD = 2;
+
+        @Override
+        public void apply(DeviceTuner tuner, int attempt) throws IBScanException {
+            if (tuner == null)
+                return;
+            int threshold = Integer.parseInt(tuner.get(IBScanDevice.PropertyId.CAPTURE_AREA_THRESHOLD).trim());
+            if (threshold > MIN_THRESHOLD)
+                tuner.set(IBScanDevice.PropertyId.CAPTURE_AREA_THRESHOLD, String.valueOf(threshold - 1));
+        }
+    };
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, 30000, 200, 2.0, 1600, LOWER_AREA_THRESHOLD);
+
+    private final int maxAttempts;
+    private final long deadlineMs;
+    private final long initialBackoffMs;
+    private final double backoffMultiplier;
+    private final long maxBackoffMs;
+    private final Escalation escalation;
+
+    public RetryPolicy(int maxAttempts, long deadlineMs, long initialBackoffMs, double backoffMultiplier,
+                       long maxBackoffMs, Escalation escalation) {
+        if (maxAttempts < 1 || deadlineMs <= 0 || initialBackoffMs < 0 || backoffMultiplier < 1.0)
+            throw new IllegalArgumentException("Invalid retry policy");
+        this.maxAttempts = maxAttempts;
+        this.deadlineMs = deadlineMs;
+        this.initialBackoffMs = initialBackoffMs;
+        this.backoffMultiplier = backoffMultiplier;
+        this.maxBackoffMs = Math.max(initialBackoffMs, maxBackoffMs);
+        this.escalation = escalation;
+    }
+
+    /**
+     * Returns a copy with the given limits; null keeps the current value.
+     */
+    public RetryPolicy withLimits(Integer maxAttempts, Long deadlineMs) {
+        return new RetryPolicy(
+                maxAttempts != null ? maxAttempts : this.maxAttempts,
+                deadlineMs != null ? deadlineMs : this.deadlineMs,
+                initialBackoffMs, backoffMultiplier, maxBackoffMs, escalation);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    public Escalation getEscalation() {
+        return escalation;
+    }
+
+    /**
+     * Delay before the next attempt, or -1 when the budget is spent.
+     *
+     * @param attempts   attempts already made
+     * @param elapsedMs  time since the first attempt started
+     */
+    public long nextDelay(int attempts, long elapsedMs) {
+        if (attempts >= maxAttempts)
+            return -1;
+        double delay = initialBackoffMs * Math.pow(backoffMultiplier, attempts - 1);
+        long delayMs = (long) Math.min(delay, maxBackoffMs);
+        if (elapsedMs + delayMs >= deadlineMs)
+            return -1;
+        return delayMs;
+    }
+}
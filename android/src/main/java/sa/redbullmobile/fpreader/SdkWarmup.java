@@ -0,0 +1,89 @@
+package sa.redbullmobile.fpreader;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.getcapacitor.JSObject;
+
+import com.integratedbiometrics.ibscanultimate.IBScan;
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+
+/**
+ * Loads the SDK's native libraries and initializes IBScan on a background thread when the plugin
+ * loads, so the first requestPermission() or capture() does not pay for it on the plugin thread.
+ *
+ * Each step is timed. The outcome is passed to a listener once and can be read afterwards with
+ * toJSObject().
+ */
+public class SdkWarmup {
+
+    public interface Listener {
+        void onWarmupFinished(JSObject result);
+    }
+
+    private static final String TAG = "RBM";
+
+    private final JSObject timings = new JSObject();
+    private volatile JSObject result = null;
+
+    public void start(final Context context, final Listener listener) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                JSObject ret = warmUp(context);
+                result = ret;
+                listener.onWarmupFinished(ret);
+            }
+        }, "FPReader-warmup");
+        thread.start();
+    }
+
+    public JSObject toJSObject() {
+        JSObject ret = result;
+        if (ret != null)
+            return ret;
+        ret = new JSObject();
+        ret.put("ready", false);
+        return ret;
+    }
+
+    private JSObject warmUp(Context context) {
+        JSObject ret = new JSObject();
+        long start = SystemClock.elapsedRealtime();
+        long step = start;
+        try {
+            // Class initialization runs the static System.loadLibrary blocks.
+            Class.forName(IBScan.class.getName(), true, IBScan.class.getClassLoader());
+            Class.forName(IBScanDevice.class.getName(), true, IBScanDevice.class.getClassLoader());
+            step = mark("loadLibrariesMs", step);
+
+            IBScan ibScan = IBScan.getInstance(context);
+            step = mark("getInstanceMs", step);
+
+            IBScan.SdkVersion version = ibScan.getSdkVersion();
+            step = mark("getSdkVersionMs", step);
+
+            int deviceCount = ibScan.getDeviceCount();
+            mark("getDeviceCountMs", step);
+
+            ret.put("ready", true);
+            ret.put("sdkVersion", version.product);
+            ret.put("deviceCount", deviceCount);
+        } catch (Throwable e) {
+            // UnsatisfiedLinkError lands here too; the plugin reports it instead of crashing.
+            Log.e(TAG, "SDK warm-up failed", e);
+            ret.put("ready", false);
+            ret.put("error", String.valueOf(e.getMessage()));
+        }
+        timings.put("totalMs", SystemClock.elapsedRealtime() - start);
+        ret.put("timings", timings);
+        return ret;
+    }
+
+    private long mark(String name, long since) {
+        long now = SystemClock.elapsedRealtime();
+        timings.put(name, now - since);
+        return now;
+    }
+}
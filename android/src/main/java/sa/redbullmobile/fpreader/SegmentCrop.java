@@ -0,0 +1,180 @@
+package sa.redbullmobile.fpreader;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+
+/**
+ * The part of a result frame that holds the fingers, from the SegmentPosition quadrilaterals the
+ * SDK reports with extended results.
+ *
+ * The region is the bounding box of all segments, grown by a padding and clipped to the frame;
+ * without deskew it is a view of the frame and nothing is copied. With deskew the box is taken in
+ * the frame rotated by the mean tilt of the segments and resampled upright, so a tilted hand does
+ * not widen the box. Encoders then only see the region, and their time and output shrink with the
+ * area removed.
+ */
+public final class SegmentCrop {
+
+    public static final int DEFAULT_PADDING = 32;
+    /* Tilts smaller than this are left alone rather than resampled. */
+    private static final double MIN_DESKEW_DEGREES = 1.0;
+    /* Fingerprint background, used where a deskewed box reaches past the frame. */
+    private static final int BACKGROUND = 255;
+
+    /** The cropped pixels. */
+    public final ImageView region;
+    /** Top-left of the region in the frame, or in the rotated frame when angle is not 0. */
+    public final int x;
+    public final int y;
+    /** Rotation removed by deskewing, in degrees; positive is clockwise on screen. */
+    public final double angle;
+    /** Bounding box of each segment inside the region, as { x, y, width, height }. */
+    public final int[][] segments;
+
+    private SegmentCrop(ImageView region, int x, int y, double angle, int[][] segments) {
+        this.region = region;
+        this.x = x;
+        this.y = y;
+        this.angle = angle;
+        this.segments = segments;
+    }
+
+    /**
+     * Crops frame to the segments, or returns null when there are none with any area.
+     *
+     * @param frame     the whole result frame, rows top-down as the segment coordinates are
+     * @param padding   pixels added on every side of the box
+     * @param deskew    whether to rotate the region upright
+     */
+    public static SegmentCrop of(ImageView frame, IBScanDevice.SegmentPosition[] positions, int padding, boolean deskew) {
+        if (positions == null)
+            return null;
+        int count = 0;
+        double tilt = 0;
+        double[][] quads = new double[positions.length][];
+        for (IBScanDevice.SegmentPosition position : positions) {
+            if (position == null)
+                continue;
+            double[] quad = {
+                position.x1, position.y1, position.x2, position.y2,
+                position.x3, position.y3, position.x4, position.y4
+            };
+            if (area(quad) < 1)
+                continue;
+            quads[count++] = quad;
+            tilt += tilt(quad);
+        }
+        if (count == 0)
+            return null;
+
+        double angle = deskew ? Math.toDegrees(tilt / count) : 0;
+        if (Math.abs(angle) < MIN_DESKEW_DEGREES)
+            angle = 0;
+        double cos = Math.cos(Math.toRadians(angle));
+        double sin = Math.sin(Math.toRadians(angle));
+        double cx = frame.width / 2.0;
+        double cy = frame.height / 2.0;
+
+        // Bounding boxes in the frame rotated by -angle about its centre.
+        double[][] boxes = new double[count][];
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            double[] box = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+            for (int v = 0; v < 8; v += 2) {
+                double dx = quads[i][v] - cx;
+                double dy = quads[i][v + 1] - cy;
+                double rx = cos * dx + sin * dy + cx;
+                double ry = -sin * dx + cos * dy + cy;
+                box[0] = Math.min(box[0], rx);
+                box[1] = Math.min(box[1], ry);
+                box[2] = Math.max(box[2], rx);
+                box[3] = Math.max(box[3], ry);
+            }
+            boxes[i] = box;
+            minX = Math.min(minX, box[0]);
+            minY = Math.min(minY, box[1]);
+            maxX = Math.max(maxX, box[2]);
+            maxY = Math.max(maxY, box[3]);
+        }
+        int left = Math.max(0, (int) Math.floor(minX) - padding);
+        int top = Math.max(0, (int) Math.floor(minY) - padding);
+        int right = Math.min(frame.width, (int) Math.ceil(maxX) + padding + 1);
+        int bottom = Math.min(frame.height, (int) Math.ceil(maxY) + padding + 1);
+        if (right <= left || bottom <= top)
+            return null;
+        int width = right - left;
+        int height = bottom - top;
+
+        ImageView region;
+        if (angle == 0) {
+            region = frame.crop(left, top, width, height);
+        } else {
+            // Region pixel (u, v) is rotated-frame point (left + u, top + v); map it back.
+            double[] m = {
+                cos, -sin, cos * (left - cx) - sin * (top - cy) + cx,
+                sin, cos, sin * (left - cx) + cos * (top - cy) + cy
+            };
+            region = ImageView.packed(ImageKernels.warpAffine(frame, m, BACKGROUND, null, width, height), width, height);
+        }
+
+        int[][] segments = new int[count][];
+        for (int i = 0; i < count; i++) {
+            int sx = Math.max(0, (int) Math.floor(boxes[i][0]) - left);
+            int sy = Math.max(0, (int) Math.floor(boxes[i][1]) - top);
+            segments[i] = new int[] {
+                sx, sy,
+                Math.min(width, (int) Math.ceil(boxes[i][2]) - left + 1) - sx,
+                Math.min(height, (int) Math.ceil(boxes[i][3]) - top + 1) - sy
+            };
+        }
+        return new SegmentCrop(region, left, top, angle, segments);
+    }
+
+    public JSObject toJSObject() {
+        JSArray boxes = new JSArray();
+        for (int[] segment : segments) {
+            JSObject box = new JSObject();
+            box.put("x", segment[0]);
+            box.put("y", segment[1]);
+            box.put("width", segment[2]);
+            box.put("height", segment[3]);
+            boxes.put(box);
+        }
+        JSObject ret = new JSObject();
+        ret.put("x", x);
+        ret.put("y", y);
+        ret.put("width", region.width);
+        ret.put("height", region.height);
+        ret.put("angle", angle);
+        ret.put("segments", boxes);
+        return ret;
+    }
+
+    /* Shoelace area of the quadrilateral. */
+    private static double area(double[] q) {
+        double sum = 0;
+        for (int v = 0; v < 8; v += 2) {
+            int next = (v + 2) % 8;
+            sum += q[v] * q[next + 1] - q[next] * q[v + 1];
+        }
+        return Math.abs(sum) / 2;
+    }
+
+    /*
+     * Mean direction of the four edges, each folded into [-45, 45) degrees so that the sides and
+     * the top and bottom agree whatever order the vertices come in.
+     */
+    private static double tilt(double[] q) {
+        double sum = 0;
+        for (int v = 0; v < 8; v += 2) {
+            int next = (v + 2) % 8;
+            double a = Math.atan2(q[next + 1] - q[v + 1], q[next] - q[v]);
+            sum += a - (Math.PI / 2) * Math.floor(a / (Math.PI / 2) + 0.5);
+        }
+        return sum / 4;
+    }
+}
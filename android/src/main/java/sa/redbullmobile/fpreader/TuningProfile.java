@@ -0,0 +1,59 @@
+package sa.redbullmobile.fpreader;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice.PropertyId;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Named sets of device properties, applied as a whole by DeviceTuner.
+ *
+ * POLLINGTIME_TO_BGETIMAGE is left out on purpose: the SDK documents it as get-only, and a write
+ * that always fails would make every profile roll back. NO_PREVIEW_IMAGE is left to
+ * EventSubscription, which sets it from whether a preview listener is registered; a profile value
+ * would only be written and reverted on every capture.
+ *
+ * The default profile keeps the SDK's CAPTURE_TIMEOUT of -1, waiting for a finger indefinitely as
+ * captures always have; a capture's timeoutMs overrides it.
+ */
+public enum TuningProfile {
+
+    LOW_LATENCY("2000", "20", "TRUE", "4"),
+    BALANCED("4000", "-1", "FALSE", "6"),
+    HIGH_QUALITY("6000", "-1", "FALSE", "8");
+
+    public static final TuningProfile DEFAULT = BALANCED;
+
+    private final Map<PropertyId, String> properties;
+
+    TuningProfile(String ignoreFingerTime, String captureTimeout, String decimation, String areaThreshold) {
+        Map<PropertyId, String> props = new EnumMap<>(PropertyId.class);
+        props.put(PropertyId.IGNORE_FINGER_TIME, ignoreFingerTime);
+        props.put(PropertyId.CAPTURE_TIMEOUT, captureTimeout);
+        props.put(PropertyId.ENABLE_DECIMATION, decimation);
+        props.put(PropertyId.CAPTURE_AREA_THRESHOLD, areaThreshold);
+        // Capturing always wakes the device; idle handling decides when to save power.
+        props.put(PropertyId.ENABLE_POWER_SAVE_MODE, "FALSE");
+        this.properties = Collections.unmodifiableMap(props);
+    }
+
+    public Map<PropertyId, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Parses a profile name coming from JS ("low-latency", "balanced", "high-quality"), falling back
+     * to the given profile when the name is missing or unknown.
+     */
+    public static TuningProfile fromName(String name, TuningProfile fallback) {
+        if (name == null || name.isEmpty())
+            return fallback;
+        String key = name.trim().toUpperCase().replace('-', '_');
+        for (TuningProfile profile : values()) {
+            if (profile.name().equals(key))
+                return profile;
+        }
+        return fallback;
+    }
+}
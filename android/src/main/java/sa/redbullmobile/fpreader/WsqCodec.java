@@ -0,0 +1,1407 @@
+package sa.redbullmobile.fpreader;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pure-Java WSQ (FBI Wavelet Scalar Quantization) encoder and decoder for 8-bit grayscale images.
+ *
+ * Follows the WSQ specification as implemented by NIST's NBIS: the image is normalized, split into
+ * 64 subbands by the standard 20-node tree of 9/7 wavelet transforms with symmetric extension,
+ * quantized with bin widths derived from the subband variances and the target bit rate, and
+ * Huffman coded in three blocks. bitRate means the same as in IBScanDevice.wsqEncodeToMem (0.75
+ * for roughly 15:1). Files from the device decode here, and files from here decode with NBIS.
+ *
+ * The transform and quantization kernels work on primitive arrays. With an executor, the rows or
+ * columns of each transform step and the per-subband variance and quantization passes are split
+ * across its threads; entropy coding stays on the calling thread.
+ */
+public class WsqCodec {
+
+    public static final double DEFAULT_BIT_RATE = 0.75;
+    /** Smallest width and height whose deepest subbands still hold a sample. */
+    public static final int MIN_SIZE = 7;
+
+    /**
+     * A decoded image; rows are in the order they were encoded.
+     */
+    public static class Image {
+        public final byte[] pixels;
+        public final int width;
+        public final int height;
+        /** From the NISTCOM comment, or -1 when the file has none. */
+        public final int ppi;
+
+        Image(byte[] pixels, int width, int height, int ppi) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.ppi = ppi;
+        }
+    }
+
+    private static final int SOI = 0xffa0;
+    private static final int EOI = 0xffa1;
+    private static final int SOF = 0xffa2;
+    private static final int SOB = 0xffa3;
+    private static final int DTT = 0xffa4;
+    private static final int DQT = 0xffa5;
+    private static final int DHT = 0xffa6;
+    private static final int COM = 0xffa8;
+
+    private static final int NUM_SUBBANDS = 60;
+    private static final int MAX_SUBBANDS = 64;
+    private static final int[] BLOCK_START = { 0, 19, 52, NUM_SUBBANDS };
+
+    private static final int MAX_COEFF = 74;
+    private static final int MAX_ZERO_RUN = 100;
+    private static final int SYMBOL_POS_8 = 101;
+    private static final int SYMBOL_NEG_8 = 102;
+    private static final int SYMBOL_POS_16 = 103;
+    private static final int SYMBOL_NEG_16 = 104;
+    private static final int SYMBOL_RUN_8 = 105;
+    private static final int SYMBOL_RUN_16 = 106;
+    private static final int COEFF_OFFSET = 180;
+
+    private static final float BIN_CENTER = 0.44f;
+    private static final float VARIANCE_THRESHOLD = 1.01f;
+    private static final int MIN_LINES_PER_TASK = 32;
+
+    private static final float[] LO = {
+        0.03782845550699546f, -0.02384946501938000f, -0.11062440441842342f, 0.37740285561265380f,
+        0.85269867900940344f,
+        0.37740285561265380f, -0.11062440441842342f, -0.02384946501938000f, 0.03782845550699546f
+    };
+    private static final float[] HI = {
+        0.06453888262893845f, -0.04068941760955844f, -0.41809227322221221f,
+        0.78848561640566439f,
+        -0.41809227322221221f, -0.04068941760955844f, 0.06453888262893845f
+    };
+    /* Synthesis filters, centred: the analysis filters swapped and modulated by (-1)^n. */
+    private static final float[] SYNTH_LO = new float[7];
+    private static final float[] SYNTH_HI = new float[9];
+
+    static {
+        for (int i = 0; i < 7; i++)
+            SYNTH_LO[i] = (((i - 3) & 1) == 0) ? HI[i] : -HI[i];
+        for (int i = 0; i < 9; i++)
+            SYNTH_HI[i] = (((i - 4) & 1) == 0) ? LO[i] : -LO[i];
+    }
+
+    /* Subband weights of the bin-width formula; 1 except for the eight largest subbands. */
+    private static final float[] WEIGHTS = new float[NUM_SUBBANDS];
+
+    static {
+        for (int k = 0; k < 52; k++)
+            WEIGHTS[k] = 1.0f;
+        float[] large = { 1.32f, 1.08f, 1.42f, 1.08f, 1.32f, 1.42f, 1.08f, 1.08f };
+        System.arraycopy(large, 0, WEIGHTS, 52, large.length);
+    }
+
+    private static class Region {
+        int x;
+        int y;
+        int lenx;
+        int leny;
+        boolean invRow;
+        boolean invCol;
+    }
+
+    private interface Lines {
+        void run(int from, int to);
+    }
+
+    private WsqCodec() {
+    }
+
+    /**
+     * Encodes the frame with the same arguments IBScanDevice.wsqEncodeToMem takes.
+     */
+    public static byte[] encode(IBScanDevice.ImageData image, double bitRate, ExecutorService workers) {
+        return encode(image.buffer, image.width, image.height, image.pitch, image.bitsPerPixel, (int) image.resolutionX, bitRate, "", workers);
+    }
+
+    /**
+     * @param pitch   bytes per row in image; negative for bottom-up rows, as in ImageData
+     * @param comment written as a COM segment when not empty
+     * @param workers executor for the parallel passes, or null to encode on the calling thread
+     */
+    public static byte[] encode(byte[] image, int width, int height, int pitch, int bitsPerPixel, int ppi, double bitRate, String comment, ExecutorService workers) {
+        if (bitsPerPixel != 8)
+            throw new IllegalArgumentException("Only 8-bit images can be WSQ encoded, got " + bitsPerPixel);
+        return encode(ImageView.of(image, width, height, pitch), ppi, bitRate, comment, workers);
+    }
+
+    /**
+     * Encodes the view's rows top to bottom, so a segment can be encoded without copying it out.
+     */
+    public static byte[] encode(ImageView image, int ppi, double bitRate, String comment, ExecutorService workers) {
+        int width = image.width;
+        int height = image.height;
+        if (width < MIN_SIZE || height < MIN_SIZE || width > 65535 || height > 65535)
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        if (bitRate <= 0)
+            throw new IllegalArgumentException("Invalid bit rate " + bitRate);
+        byte[] pixels = image.buffer;
+
+        // Normalize to zero mean and a range of about +-128.
+        int num = width * height;
+        float[] data = new float[num];
+        long sum = 0;
+        int min = 255;
+        int max = 0;
+        for (int y = 0; y < height; y++) {
+            int row = image.rowOffset(y);
+            for (int x = 0; x < width; x++) {
+                int p = pixels[row + x] & 0xff;
+                sum += p;
+                min = Math.min(min, p);
+                max = Math.max(max, p);
+            }
+        }
+        float shift = (float) sum / num;
+        float scale = Math.max(shift - min, max - shift) / 128.0f;
+        if (scale == 0)
+            scale = 1.0f;
+        for (int y = 0; y < height; y++) {
+            int row = image.rowOffset(y);
+            int out = y * width;
+            for (int x = 0; x < width; x++)
+                data[out + x] = ((pixels[row + x] & 0xff) - shift) / scale;
+        }
+
+        Region[] wTree = buildWTree(width, height);
+        Region[] qTree = buildQTree(wTree);
+        decompose(data, width, height, wTree, workers);
+
+        float[] variance = variances(data, width, qTree, workers);
+        float[] qbin = new float[MAX_SUBBANDS];
+        float[] zbin = new float[MAX_SUBBANDS];
+        binWidths(variance, bitRate, qbin, zbin);
+        int[] blockSizes = new int[3];
+        int[] coefficients = quantize(data, width, qTree, qbin, zbin, blockSizes, workers);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(1024, (int) (num * bitRate / 8) + 2048));
+        putMarker(out, SOI);
+        putComment(out, nistcom(width, height, ppi, bitRate));
+        if (comment != null && !comment.isEmpty())
+            putComment(out, comment);
+        putTransformTable(out);
+        putQuantizationTable(out, qbin, zbin);
+        putFrameHeader(out, width, height, shift, scale);
+
+        int block1 = blockSizes[0];
+        int block2 = blockSizes[1];
+        int block3 = blockSizes[2];
+        int[][] table0 = huffmanTable(coefficients, 0, block1, 0, 0);
+        putHuffmanTable(out, 0, table0);
+        putBlock(out, 0, coefficients, 0, block1, table0);
+        // Blocks 2 and 3 share one table built from both.
+        int[][] table1 = huffmanTable(coefficients, block1, block2, block1 + block2, block3);
+        putHuffmanTable(out, 1, table1);
+        putBlock(out, 1, coefficients, block1, block2, table1);
+        putBlock(out, 1, coefficients, block1 + block2, block3, table1);
+        putMarker(out, EOI);
+        return out.toByteArray();
+    }
+
+    public static Image decode(byte[] wsq) throws IOException {
+        Reader in = new Reader(wsq);
+        if (in.readUShort() != SOI)
+            throw new IOException("Not a WSQ file");
+
+        float binCenter = BIN_CENTER;
+        float[] qbin = null;
+        float[] zbin = null;
+        int[][][] tables = new int[8][][];
+        int width = 0;
+        int height = 0;
+        float shift = 0;
+        float scale = 1;
+        int ppi = -1;
+        Region[] qTree = null;
+        int[] coefficients = null;
+        int[] blockCounts = null;
+        int block = 0;
+        int position = 0;
+
+        while (true) {
+            int marker = in.readUShort();
+            if (marker == EOI)
+                break;
+            int length;
+            switch (marker) {
+                case COM: {
+                    length = in.readUShort();
+                    String text = new String(wsq, in.pos, length - 2, Charset.forName("US-ASCII"));
+                    in.pos += length - 2;
+                    if (text.startsWith("NIST_COM"))
+                        ppi = nistcomPpi(text, ppi);
+                    break;
+                }
+                case DQT: {
+                    length = in.readUShort();
+                    binCenter = in.readScaled(false);
+                    qbin = new float[MAX_SUBBANDS];
+                    zbin = new float[MAX_SUBBANDS];
+                    for (int k = 0; k < MAX_SUBBANDS; k++) {
+                        qbin[k] = in.readScaled(false);
+                        zbin[k] = in.readScaled(false);
+                    }
+                    break;
+                }
+                case DHT: {
+                    length = in.readUShort();
+                    int end = in.pos + length - 2;
+                    while (in.pos < end) {
+                        int id = in.readByte();
+                        int[] bits = new int[16];
+                        int count = 0;
+                        for (int i = 0; i < 16; i++)
+                            count += bits[i] = in.readByte();
+                        int[] values = new int[count];
+                        for (int i = 0; i < count; i++)
+                            values[i] = in.readByte();
+                        if (id >= tables.length)
+                            throw new IOException("Invalid Huffman table id " + id);
+                        tables[id] = new int[][] { bits, values };
+                    }
+                    break;
+                }
+                case SOF: {
+                    length = in.readUShort();
+                    in.readByte();
+                    in.readByte();
+                    height = in.readUShort();
+                    width = in.readUShort();
+                    shift = in.readScaled(false);
+                    scale = in.readScaled(false);
+                    in.pos += length - 2 - 12;
+                    if (width < MIN_SIZE || height < MIN_SIZE)
+                        throw new IOException("Invalid size " + width + "x" + height);
+                    break;
+                }
+                case SOB: {
+                    length = in.readUShort();
+                    int id = in.readByte();
+                    in.pos += length - 3;
+                    if (qbin == null || width == 0)
+                        throw new IOException("Block before the quantization table or frame header");
+                    if (block >= 3)
+                        throw new IOException("Too many blocks");
+                    if (tables[id] == null)
+                        throw new IOException("Undefined Huffman table " + id);
+                    if (qTree == null) {
+                        qTree = buildQTree(buildWTree(width, height));
+                        blockCounts = new int[3];
+                        for (int b = 0; b < 3; b++) {
+                            for (int k = BLOCK_START[b]; k < BLOCK_START[b + 1]; k++) {
+                                if (qbin[k] != 0)
+                                    blockCounts[b] += qTree[k].lenx * qTree[k].leny;
+                            }
+                        }
+                        coefficients = new int[blockCounts[0] + blockCounts[1] + blockCounts[2]];
+                    }
+                    position = decodeBlock(in, tables[id], coefficients, position, blockCounts[block]);
+                    block++;
+                    break;
+                }
+                default:
+                    if ((marker & 0xff00) != 0xff00)
+                        throw new IOException("Expected a marker at offset " + (in.pos - 2));
+                    // DTT (the standard filters are assumed), DRT and unknown segments.
+                    length = in.readUShort();
+                    in.pos += length - 2;
+                    break;
+            }
+        }
+        if (qTree == null)
+            throw new IOException("No image data");
+
+        float[] data = new float[width * height];
+        dequantize(data, width, qTree, qbin, zbin, binCenter, coefficients);
+        reconstruct(data, width, height, buildWTree(width, height), null);
+
+        byte[] pixels = new byte[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            float value = data[i] * scale + shift + 0.5f;
+            pixels[i] = (byte) ((value < 0) ? 0 : (value > 255) ? 255 : (int) value);
+        }
+        return new Image(pixels, width, height, ppi);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Subband trees
+
+    private static Region[] buildWTree(int width, int height) {
+        Region[] w = new Region[20];
+        for (int i = 0; i < w.length; i++)
+            w[i] = new Region();
+        for (int node : new int[] { 2, 4, 7, 9, 11, 13, 16, 18 })
+            w[node].invRow = true;
+        for (int node : new int[] { 3, 5, 8, 9, 12, 13, 17, 18 })
+            w[node].invCol = true;
+
+        wTree4(w, 0, 1, width, height, 0, 0, true);
+
+        int lenx;
+        int lenx2;
+        if (w[1].lenx % 2 == 0) {
+            lenx = w[1].lenx / 2;
+            lenx2 = lenx;
+        } else {
+            lenx = (w[1].lenx + 1) / 2;
+            lenx2 = lenx - 1;
+        }
+        int leny;
+        int leny2;
+        if (w[1].leny % 2 == 0) {
+            leny = w[1].leny / 2;
+            leny2 = leny;
+        } else {
+            leny = (w[1].leny + 1) / 2;
+            leny2 = leny - 1;
+        }
+
+        wTree4(w, 4, 6, lenx2, leny, lenx, 0, false);
+        wTree4(w, 5, 10, lenx, leny2, 0, leny, false);
+        wTree4(w, 14, 15, lenx, leny, 0, 0, false);
+
+        w[19].x = 0;
+        w[19].y = 0;
+        w[19].lenx = (w[15].lenx + 1) / 2;
+        w[19].leny = (w[15].leny + 1) / 2;
+        return w;
+    }
+
+    private static void wTree4(Region[] w, int start1, int start2, int lenx, int leny, int x, int y, boolean stop1) {
+        int p1 = start1;
+        int p2 = start2;
+
+        w[p1].x = x;
+        w[p1].y = y;
+        w[p1].lenx = lenx;
+        w[p1].leny = leny;
+
+        w[p2].x = x;
+        w[p2 + 2].x = x;
+        w[p2].y = y;
+        w[p2 + 1].y = y;
+
+        if (lenx % 2 == 0) {
+            w[p2].lenx = lenx / 2;
+            w[p2 + 1].lenx = w[p2].lenx;
+        } else if (p1 == 4) {
+            w[p2].lenx = (lenx - 1) / 2;
+            w[p2 + 1].lenx = w[p2].lenx + 1;
+        } else {
+            w[p2].lenx = (lenx + 1) / 2;
+            w[p2 + 1].lenx = w[p2].lenx - 1;
+        }
+        w[p2 + 1].x = w[p2].lenx + x;
+        if (!stop1) {
+            w[p2 + 3].lenx = w[p2 + 1].lenx;
+            w[p2 + 3].x = w[p2 + 1].x;
+        }
+        w[p2 + 2].lenx = w[p2].lenx;
+
+        if (leny % 2 == 0) {
+            w[p2].leny = leny / 2;
+            w[p2 + 2].leny = w[p2].leny;
+        } else if (p1 == 5) {
+            w[p2].leny = (leny - 1) / 2;
+            w[p2 + 2].leny = w[p2].leny + 1;
+        } else {
+            w[p2].leny = (leny + 1) / 2;
+            w[p2 + 2].leny = w[p2].leny - 1;
+        }
+        w[p2 + 2].y = w[p2].leny + y;
+        if (!stop1) {
+            w[p2 + 3].leny = w[p2 + 2].leny;
+            w[p2 + 3].y = w[p2 + 2].y;
+        }
+        w[p2 + 1].leny = w[p2].leny;
+    }
+
+    private static Region[] buildQTree(Region[] w) {
+        Region[] q = new Region[MAX_SUBBANDS];
+        for (int i = 0; i < q.length; i++)
+            q[i] = new Region();
+        // Later calls overwrite the cells that earlier ones place over regions split further.
+        qTree16(q, 3, w[14].lenx, w[14].leny, w[14].x, w[14].y, false, false);
+        qTree16(q, 19, w[4].lenx, w[4].leny, w[4].x, w[4].y, false, true);
+        qTree16(q, 48, w[0].lenx, w[0].leny, w[0].x, w[0].y, false, false);
+        qTree16(q, 35, w[5].lenx, w[5].leny, w[5].x, w[5].y, true, false);
+        qTree4(q, 0, w[19].lenx, w[19].leny, w[19].x, w[19].y);
+        return q;
+    }
+
+    private static void qTree16(Region[] q, int p, int lenx, int leny, int x, int y, boolean rw, boolean cl) {
+        int tempx;
+        int temp2x;
+        if (lenx % 2 == 0) {
+            tempx = lenx / 2;
+            temp2x = tempx;
+        } else if (cl) {
+            temp2x = (lenx + 1) / 2;
+            tempx = temp2x - 1;
+        } else {
+            tempx = (lenx + 1) / 2;
+            temp2x = tempx - 1;
+        }
+        int tempy;
+        int temp2y;
+        if (leny % 2 == 0) {
+            tempy = leny / 2;
+            temp2y = tempy;
+        } else if (rw) {
+            temp2y = (leny + 1) / 2;
+            tempy = temp2y - 1;
+        } else {
+            tempy = (leny + 1) / 2;
+            temp2y = tempy - 1;
+        }
+
+        q[p].x = x;
+        q[p + 2].x = x;
+        q[p].y = y;
+        q[p + 1].y = y;
+        if (tempx % 2 == 0) {
+            q[p].lenx = tempx / 2;
+            q[p + 1].lenx = q[p].lenx;
+            q[p + 2].lenx = q[p].lenx;
+            q[p + 3].lenx = q[p].lenx;
+        } else {
+            q[p].lenx = (tempx + 1) / 2;
+            q[p + 1].lenx = q[p].lenx - 1;
+            q[p + 2].lenx = q[p].lenx;
+            q[p + 3].lenx = q[p + 1].lenx;
+        }
+        q[p + 1].x = x + q[p].lenx;
+        q[p + 3].x = q[p + 1].x;
+        if (tempy % 2 == 0) {
+            q[p].leny = tempy / 2;
+            q[p + 1].leny = q[p].leny;
+            q[p + 2].leny = q[p].leny;
+            q[p + 3].leny = q[p].leny;
+        } else {
+            q[p].leny = (tempy + 1) / 2;
+            q[p + 1].leny = q[p].leny;
+            q[p + 2].leny = q[p].leny - 1;
+            q[p + 3].leny = q[p + 2].leny;
+        }
+        q[p + 2].y = y + q[p].leny;
+        q[p + 3].y = q[p + 2].y;
+
+        q[p + 4].x = x + tempx;
+        q[p + 6].x = q[p + 4].x;
+        q[p + 4].y = y;
+        q[p + 5].y = y;
+        q[p + 6].y = q[p + 2].y;
+        q[p + 7].y = q[p + 2].y;
+        q[p + 4].leny = q[p].leny;
+        q[p + 5].leny = q[p].leny;
+        q[p + 6].leny = q[p + 2].leny;
+        q[p + 7].leny = q[p + 2].leny;
+        if (temp2x % 2 == 0) {
+            q[p + 4].lenx = temp2x / 2;
+            q[p + 5].lenx = q[p + 4].lenx;
+            q[p + 6].lenx = q[p + 4].lenx;
+            q[p + 7].lenx = q[p + 4].lenx;
+        } else {
+            q[p + 5].lenx = (temp2x + 1) / 2;
+            q[p + 4].lenx = q[p + 5].lenx - 1;
+            q[p + 6].lenx = q[p + 4].lenx;
+            q[p + 7].lenx = q[p + 5].lenx;
+        }
+        q[p + 5].x = q[p + 4].x + q[p + 4].lenx;
+        q[p + 7].x = q[p + 5].x;
+
+        q[p + 8].x = x;
+        q[p + 9].x = q[p + 1].x;
+        q[p + 10].x = x;
+        q[p + 11].x = q[p + 1].x;
+        q[p + 8].y = y + tempy;
+        q[p + 9].y = q[p + 8].y;
+        q[p + 8].lenx = q[p].lenx;
+        q[p + 9].lenx = q[p + 1].lenx;
+        q[p + 10].lenx = q[p].lenx;
+        q[p + 11].lenx = q[p + 1].lenx;
+        if (temp2y % 2 == 0) {
+            q[p + 8].leny = temp2y / 2;
+            q[p + 9].leny = q[p + 8].leny;
+            q[p + 10].leny = q[p + 8].leny;
+            q[p + 11].leny = q[p + 8].leny;
+        } else {
+            q[p + 10].leny = (temp2y + 1) / 2;
+            q[p + 11].leny = q[p + 10].leny;
+            q[p + 8].leny = q[p + 10].leny - 1;
+            q[p + 9].leny = q[p + 8].leny;
+        }
+        q[p + 10].y = q[p + 8].y + q[p + 8].leny;
+        q[p + 11].y = q[p + 10].y;
+
+        q[p + 12].x = q[p + 4].x;
+        q[p + 13].x = q[p + 5].x;
+        q[p + 14].x = q[p + 4].x;
+        q[p + 15].x = q[p + 5].x;
+        q[p + 12].y = q[p + 8].y;
+        q[p + 13].y = q[p + 8].y;
+        q[p + 14].y = q[p + 10].y;
+        q[p + 15].y = q[p + 10].y;
+        q[p + 12].lenx = q[p + 4].lenx;
+        q[p + 13].lenx = q[p + 5].lenx;
+        q[p + 14].lenx = q[p + 4].lenx;
+        q[p + 15].lenx = q[p + 5].lenx;
+        q[p + 12].leny = q[p + 8].leny;
+        q[p + 13].leny = q[p + 8].leny;
+        q[p + 14].leny = q[p + 10].leny;
+        q[p + 15].leny = q[p + 10].leny;
+    }
+
+    private static void qTree4(Region[] q, int p, int lenx, int leny, int x, int y) {
+        q[p].x = x;
+        q[p + 2].x = x;
+        q[p].y = y;
+        q[p + 1].y = y;
+        if (lenx % 2 == 0) {
+            q[p].lenx = lenx / 2;
+            q[p + 1].lenx = q[p].lenx;
+            q[p + 2].lenx = q[p].lenx;
+            q[p + 3].lenx = q[p].lenx;
+        } else {
+            q[p].lenx = (lenx + 1) / 2;
+            q[p + 1].lenx = q[p].lenx - 1;
+            q[p + 2].lenx = q[p].lenx;
+            q[p + 3].lenx = q[p + 1].lenx;
+        }
+        q[p + 1].x = x + q[p].lenx;
+        q[p + 3].x = q[p + 1].x;
+        if (leny % 2 == 0) {
+            q[p].leny = leny / 2;
+            q[p + 1].leny = q[p].leny;
+            q[p + 2].leny = q[p].leny;
+            q[p + 3].leny = q[p].leny;
+        } else {
+            q[p].leny = (leny + 1) / 2;
+            q[p + 1].leny = q[p].leny;
+            q[p + 2].leny = q[p].leny - 1;
+            q[p + 3].leny = q[p + 2].leny;
+        }
+        q[p + 2].y = y + q[p].leny;
+        q[p + 3].y = q[p + 2].y;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Wavelet transform
+
+    private static void decompose(float[] data, int width, int height, Region[] wTree, ExecutorService workers) {
+        float[] tmp = new float[width * height];
+        for (Region node : wTree) {
+            int base = node.y * width + node.x;
+            analyze(tmp, 0, data, base, node.leny, node.lenx, width, 1, node.invRow, workers);
+            analyze(data, base, tmp, 0, node.lenx, node.leny, 1, width, node.invCol, workers);
+        }
+    }
+
+    private static void reconstruct(float[] data, int width, int height, Region[] wTree, ExecutorService workers) {
+        float[] tmp = new float[width * height];
+        for (int n = wTree.length - 1; n >= 0; n--) {
+            Region node = wTree[n];
+            int base = node.y * width + node.x;
+            synthesize(tmp, 0, data, base, node.lenx, node.leny, 1, width, node.invCol, workers);
+            synthesize(data, base, tmp, 0, node.leny, node.lenx, width, 1, node.invRow, workers);
+        }
+    }
+
+    /**
+     * Splits len1 lines of len2 samples into a low-pass half followed by a high-pass half (the
+     * other way round when inv is set). Lines are pitch apart, samples stride apart; the signal
+     * is extended by whole-sample symmetry at both ends.
+     */
+    private static void analyze(final float[] dst, final int dstOff, final float[] src, final int srcOff, int len1, final int len2, final int pitch, final int stride, final boolean inv, ExecutorService workers) {
+        final int llen = (len2 + 1) / 2;
+        final int hlen = len2 / 2;
+        // Sample offsets for positions -4 .. len2 + 3 after symmetric extension.
+        final int[] ext = new int[len2 + 8];
+        for (int i = 0; i < ext.length; i++)
+            ext[i] = mirror(i - 4, len2) * stride;
+
+        forLines(workers, len1, new Lines() {
+            @Override
+            public void run(int from, int to) {
+                for (int line = from; line < to; line++) {
+                    int in = srcOff + line * pitch;
+                    int out = dstOff + line * pitch;
+                    int lo = out + (inv ? hlen * stride : 0);
+                    int hi = out + (inv ? 0 : llen * stride);
+                    for (int k = 0; k < llen; k++) {
+                        int e = 2 * k;
+                        float acc = 0;
+                        for (int j = 0; j < 9; j++)
+                            acc += LO[j] * src[in + ext[e + j]];
+                        dst[lo + k * stride] = acc;
+                    }
+                    for (int k = 0; k < hlen; k++) {
+                        int e = 2 * k + 2;
+                        float acc = 0;
+                        for (int j = 0; j < 7; j++)
+                            acc += HI[j] * src[in + ext[e + j]];
+                        dst[hi + k * stride] = acc;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Inverse of analyze(): the low-pass band is symmetric about its first sample and the
+     * high-pass band about the point before its first sample; at the far end the symmetry
+     * follows from whether len2 is odd.
+     */
+    private static void synthesize(final float[] dst, final int dstOff, final float[] src, final int srcOff, int len1, final int len2, final int pitch, final int stride, final boolean inv, ExecutorService workers) {
+        final int llen = (len2 + 1) / 2;
+        final int hlen = len2 / 2;
+        final boolean odd = (len2 & 1) != 0;
+        // Band offsets for indices -3 .. len + 2 after symmetric extension.
+        final int[] lext = new int[llen + 6];
+        for (int i = 0; i < lext.length; i++)
+            lext[i] = reflect(i - 3, llen, true, odd) * stride;
+        final int[] hext = new int[hlen + 6];
+        for (int i = 0; i < hext.length && hlen > 0; i++)
+            hext[i] = reflect(i - 3, hlen, false, !odd) * stride;
+
+        forLines(workers, len1, new Lines() {
+            @Override
+            public void run(int from, int to) {
+                for (int line = from; line < to; line++) {
+                    int in = srcOff + line * pitch;
+                    int out = dstOff + line * pitch;
+                    int lo = in + (inv ? hlen * stride : 0);
+                    int hi = in + (inv ? 0 : llen * stride);
+                    for (int i = 0; i < len2; i++) {
+                        float acc = 0;
+                        // Low-pass taps: i - 2k in [-3, 3].
+                        int k0 = (i - 2) >> 1;
+                        for (int k = k0; k <= (i + 3) >> 1; k++) {
+                            int d = i - 2 * k;
+                            if (d >= -3 && d <= 3)
+                                acc += SYNTH_LO[d + 3] * src[lo + lext[k + 3]];
+                        }
+                        if (hlen > 0) {
+                            // High-pass taps: i - 2k - 1 in [-4, 4].
+                            for (int k = (i - 5) >> 1; k <= (i + 3) >> 1; k++) {
+                                int d = i - 2 * k - 1;
+                                if (d >= -4 && d <= 4)
+                                    acc += SYNTH_HI[d + 4] * src[hi + hext[k + 3]];
+                            }
+                        }
+                        dst[out + i * stride] = acc;
+                    }
+                }
+            }
+        });
+    }
+
+    private static int mirror(int i, int n) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Cannot extend a signal of " + n + " samples");
+        if (n == 1)
+            return 0;
+        while (i < 0 || i >= n)
+            i = (i < 0) ? -i : 2 * (n - 1) - i;
+        return i;
+    }
+
+    private static int reflect(int k, int n, boolean leftWhole, boolean rightWhole) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Cannot extend a signal of " + n + " samples");
+        if (n == 1)
+            return 0;
+        while (k < 0 || k >= n) {
+            if (k < 0)
+                k = leftWhole ? -k : -1 - k;
+            else
+                k = rightWhole ? 2 * (n - 1) - k : 2 * n - 1 - k;
+        }
+        return k;
+    }
+
+    private static void forLines(ExecutorService workers, int count, Lines lines) {
+        int tasks = (workers == null) ? 1 : Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_LINES_PER_TASK);
+        if (tasks <= 1) {
+            lines.run(0, count);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            final int from = (int) ((long) count * t / tasks);
+            final int to = (int) ((long) count * (t + 1) / tasks);
+            futures.add(workers.submit(() -> lines.run(from, to)));
+        }
+        await(futures);
+    }
+
+    private static void await(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while coding WSQ");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("WSQ coding failed", e.getCause());
+        } finally {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Quantization
+
+    private static float[] variances(final float[] data, final int width, final Region[] qTree, ExecutorService workers) {
+        final float[] variance = new float[MAX_SUBBANDS];
+        Lines bands = new Lines() {
+            @Override
+            public void run(int from, int to) {
+                for (int k = from; k < to; k++) {
+                    // Only the central part of each subband, away from the extension artefacts.
+                    Region band = qTree[k];
+                    int skipx = band.lenx / 8;
+                    int skipy = (9 * band.leny) / 32;
+                    int lenx = (3 * band.lenx) / 4;
+                    int leny = (7 * band.leny) / 16;
+                    int count = lenx * leny;
+                    if (count < 2)
+                        continue;
+                    double sum = 0;
+                    double squares = 0;
+                    for (int y = 0; y < leny; y++) {
+                        int row = (band.y + skipy + y) * width + band.x + skipx;
+                        for (int x = 0; x < lenx; x++) {
+                            float v = data[row + x];
+                            sum += v;
+                            squares += v * v;
+                        }
+                    }
+                    variance[k] = (float) ((squares - sum * sum / count) / (count - 1.0));
+                }
+            }
+        };
+        forBands(workers, bands);
+        return variance;
+    }
+
+    /**
+     * Bin widths for the target bit rate, as in the WSQ specification: subbands whose variance is
+     * too small, or whose bin would exceed five standard deviations, are dropped.
+     */
+    private static void binWidths(float[] variance, double bitRate, float[] qbin, float[] zbin) {
+        double[] relative = new double[NUM_SUBBANDS];
+        double[] sigma = new double[NUM_SUBBANDS];
+        double[] area = new double[NUM_SUBBANDS];
+        boolean[] kept = new boolean[NUM_SUBBANDS];
+        for (int k = 0; k < NUM_SUBBANDS; k++) {
+            area[k] = (k < 4) ? 1.0 / 1024 : (k < 51) ? 1.0 / 256 : 1.0 / 16;
+            if (variance[k] < VARIANCE_THRESHOLD)
+                continue;
+            kept[k] = true;
+            sigma[k] = Math.sqrt(variance[k]);
+            relative[k] = (k < 4) ? 1.0 : 10.0 / (WEIGHTS[k] * Math.log(variance[k]));
+        }
+
+        double q = 0;
+        while (true) {
+            double s = 0;
+            double product = 1;
+            for (int k = 0; k < NUM_SUBBANDS; k++) {
+                if (!kept[k])
+                    continue;
+                s += area[k];
+                product *= Math.pow(sigma[k] / relative[k], area[k]);
+            }
+            if (s == 0)
+                break;
+            q = (Math.pow(2, bitRate / s - 1.0) / 2.5) / Math.pow(product, 1.0 / s);
+            boolean dropped = false;
+            for (int k = 0; k < NUM_SUBBANDS; k++) {
+                if (kept[k] && relative[k] / q >= 5.0 * sigma[k]) {
+                    kept[k] = false;
+                    dropped = true;
+                }
+            }
+            if (!dropped)
+                break;
+        }
+        for (int k = 0; k < NUM_SUBBANDS; k++) {
+            if (kept[k] && q > 0) {
+                qbin[k] = (float) (relative[k] / q);
+                zbin[k] = 1.2f * qbin[k];
+            }
+        }
+    }
+
+    private static int[] quantize(final float[] data, final int width, final Region[] qTree, final float[] qbin, final float[] zbin, int[] blockSizes, ExecutorService workers) {
+        final int[] offsets = new int[NUM_SUBBANDS + 1];
+        for (int k = 0; k < NUM_SUBBANDS; k++)
+            offsets[k + 1] = offsets[k] + ((qbin[k] != 0) ? qTree[k].lenx * qTree[k].leny : 0);
+        for (int b = 0; b < 3; b++)
+            blockSizes[b] = offsets[BLOCK_START[b + 1]] - offsets[BLOCK_START[b]];
+
+        final int[] coefficients = new int[offsets[NUM_SUBBANDS]];
+        forBands(workers, new Lines() {
+            @Override
+            public void run(int from, int to) {
+                for (int k = from; k < to; k++) {
+                    if (qbin[k] == 0)
+                        continue;
+                    Region band = qTree[k];
+                    float q = qbin[k];
+                    float half = zbin[k] / 2.0f;
+                    int pos = offsets[k];
+                    for (int y = 0; y < band.leny; y++) {
+                        int row = (band.y + y) * width + band.x;
+                        for (int x = 0; x < band.lenx; x++) {
+                            float v = data[row + x];
+                            int c;
+                            if (v >= -half && v <= half)
+                                c = 0;
+                            else if (v > 0)
+                                c = (int) ((v - half) / q + 1.0f);
+                            else
+                                c = (int) ((v + half) / q - 1.0f);
+                            coefficients[pos++] = c;
+                        }
+                    }
+                }
+            }
+        });
+        return coefficients;
+    }
+
+    private static void dequantize(float[] data, int width, Region[] qTree, float[] qbin, float[] zbin, float binCenter, int[] coefficients) {
+        int pos = 0;
+        for (int k = 0; k < NUM_SUBBANDS; k++) {
+            if (qbin[k] == 0)
+                continue;
+            Region band = qTree[k];
+            float q = qbin[k];
+            float half = zbin[k] / 2.0f;
+            for (int y = 0; y < band.leny; y++) {
+                int row = (band.y + y) * width + band.x;
+                for (int x = 0; x < band.lenx; x++) {
+                    int c = coefficients[pos++];
+                    if (c > 0)
+                        data[row + x] = q * (c - binCenter) + half;
+                    else if (c < 0)
+                        data[row + x] = q * (c + binCenter) - half;
+                }
+            }
+        }
+    }
+
+    private static void forBands(ExecutorService workers, Lines bands) {
+        if (workers == null) {
+            bands.run(0, NUM_SUBBANDS);
+            return;
+        }
+        // Interleave so every task gets some of the large subbands at the end.
+        int tasks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+        List<Future<?>> futures = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            final int first = t;
+            final int step = tasks;
+            futures.add(workers.submit(() -> {
+                for (int k = first; k < NUM_SUBBANDS; k += step)
+                    bands.run(k, k + 1);
+            }));
+        }
+        await(futures);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Huffman coding
+
+    /*
+     * Calls the visitor with each symbol of the run-length coding of the coefficients, and the
+     * number of extra bits that follow it.
+     */
+    private interface Symbols {
+        void symbol(int symbol, int extra, int extraBits);
+    }
+
+    private static void forSymbols(int[] coefficients, int off, int len, Symbols visitor) {
+        int run = 0;
+        for (int i = off; i < off + len; i++) {
+            int c = coefficients[i];
+            if (c == 0 && run < 0xffff) {
+                run++;
+                continue;
+            }
+            if (run > 0) {
+                zeroRun(run, visitor);
+                run = 0;
+            }
+            if (c == 0) {
+                run = 1;
+                continue;
+            }
+            if (c > MAX_COEFF) {
+                if (c > 255)
+                    visitor.symbol(SYMBOL_POS_16, c, 16);
+                else
+                    visitor.symbol(SYMBOL_POS_8, c, 8);
+            } else if (c < 1 - MAX_COEFF) {
+                if (c < -255)
+                    visitor.symbol(SYMBOL_NEG_16, -c, 16);
+                else
+                    visitor.symbol(SYMBOL_NEG_8, -c, 8);
+            } else {
+                visitor.symbol(c + COEFF_OFFSET, 0, 0);
+            }
+        }
+        if (run > 0)
+            zeroRun(run, visitor);
+    }
+
+    private static void zeroRun(int run, Symbols visitor) {
+        if (run <= MAX_ZERO_RUN)
+            visitor.symbol(run, 0, 0);
+        else if (run <= 0xff)
+            visitor.symbol(SYMBOL_RUN_8, run, 8);
+        else
+            visitor.symbol(SYMBOL_RUN_16, run, 16);
+    }
+
+    /**
+     * Builds a length-limited Huffman table over one or two coefficient ranges, as in JPEG
+     * Annex K.2; returns { bits, values, codes, lengths }.
+     */
+    private static int[][] huffmanTable(int[] coefficients, int off1, int len1, int off2, int len2) {
+        final long[] freq = new long[257];
+        Symbols counter = new Symbols() {
+            @Override
+            public void symbol(int symbol, int extra, int extraBits) {
+                freq[symbol]++;
+            }
+        };
+        forSymbols(coefficients, off1, len1, counter);
+        forSymbols(coefficients, off2, len2, counter);
+        boolean any = false;
+        for (int i = 0; i < 256; i++)
+            any |= freq[i] > 0;
+        if (!any)
+            freq[1] = 1;
+        // Reserved symbol, so that no code consists of all ones.
+        freq[256] = 1;
+
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        for (int i = 0; i < 257; i++)
+            others[i] = -1;
+        while (true) {
+            int c1 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i = 0; i < 257; i++) {
+                if (freq[i] > 0 && freq[i] <= v) {
+                    v = freq[i];
+                    c1 = i;
+                }
+            }
+            int c2 = -1;
+            v = Long.MAX_VALUE;
+            for (int i = 0; i < 257; i++) {
+                if (freq[i] > 0 && freq[i] <= v && i != c1) {
+                    v = freq[i];
+                    c2 = i;
+                }
+            }
+            if (c2 < 0)
+                break;
+            freq[c1] += freq[c2];
+            freq[c2] = 0;
+            codeSize[c1]++;
+            while (others[c1] >= 0) {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+            others[c1] = c2;
+            codeSize[c2]++;
+            while (others[c2] >= 0) {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+
+        int[] counts = new int[33];
+        for (int i = 0; i < 257; i++) {
+            if (codeSize[i] > 0)
+                counts[Math.min(codeSize[i], 32)]++;
+        }
+        // Limit code lengths to 16 bits (JPEG Annex K.3).
+        for (int i = 32; i > 16; i--) {
+            while (counts[i] > 0) {
+                int j = i - 2;
+                while (counts[j] == 0)
+                    j--;
+                counts[i] -= 2;
+                counts[i - 1]++;
+                counts[j + 1] += 2;
+                counts[j]--;
+            }
+        }
+        int longest = 16;
+        while (counts[longest] == 0)
+            longest--;
+        counts[longest]--;
+
+        int[] bits = new int[16];
+        System.arraycopy(counts, 1, bits, 0, 16);
+        int total = 0;
+        for (int b : bits)
+            total += b;
+        int[] values = new int[total];
+        int n = 0;
+        for (int size = 1; size <= 32 && n < total; size++) {
+            for (int i = 0; i < 256 && n < total; i++) {
+                if (codeSize[i] == size)
+                    values[n++] = i;
+            }
+        }
+        // Symbols whose lengths were shortened keep their rank, so the order above is still valid.
+        int[] codes = new int[256];
+        int[] lengths = new int[256];
+        canonicalCodes(bits, values, codes, lengths);
+        return new int[][] { bits, values, codes, lengths };
+    }
+
+    private static void canonicalCodes(int[] bits, int[] values, int[] codes, int[] lengths) {
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k]] = code++;
+                lengths[values[k]] = length;
+                k++;
+            }
+            code <<= 1;
+        }
+    }
+
+    private static int decodeBlock(Reader in, int[][] table, int[] coefficients, int position, int count) throws IOException {
+        int[] bits = table[0];
+        int[] values = table[1];
+        int[] maxCode = new int[18];
+        int[] valPtr = new int[17];
+        int[] minCode = new int[17];
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            int n = bits[length - 1];
+            if (n == 0) {
+                maxCode[length] = -1;
+            } else {
+                valPtr[length] = k;
+                minCode[length] = code;
+                code += n;
+                k += n;
+                maxCode[length] = code - 1;
+            }
+            code <<= 1;
+        }
+        maxCode[17] = Integer.MAX_VALUE;
+
+        int end = position + count;
+        in.startBits();
+        while (position < end) {
+            int c = in.readBit();
+            int length = 1;
+            while (length <= 16 && c > maxCode[length]) {
+                c = (c << 1) | in.readBit();
+                length++;
+            }
+            if (length > 16)
+                throw new IOException("Invalid Huffman code");
+            int symbol = values[valPtr[length] + c - minCode[length]];
+
+            int run = 0;
+            if (symbol >= 1 && symbol <= MAX_ZERO_RUN)
+                run = symbol;
+            else if (symbol == SYMBOL_RUN_8)
+                run = in.readBits(8);
+            else if (symbol == SYMBOL_RUN_16)
+                run = in.readBits(16);
+            else if (symbol == SYMBOL_POS_8)
+                coefficients[position++] = in.readBits(8);
+            else if (symbol == SYMBOL_NEG_8)
+                coefficients[position++] = -in.readBits(8);
+            else if (symbol == SYMBOL_POS_16)
+                coefficients[position++] = in.readBits(16);
+            else if (symbol == SYMBOL_NEG_16)
+                coefficients[position++] = -in.readBits(16);
+            else if (symbol > SYMBOL_RUN_16 && symbol < 0xff)
+                coefficients[position++] = symbol - COEFF_OFFSET;
+            else
+                throw new IOException("Invalid symbol " + symbol);
+            if (position + run > end)
+                throw new IOException("Zero run past the end of the block");
+            position += run;
+        }
+        in.endBits();
+        return position;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Segments
+
+    private static void putMarker(ByteArrayOutputStream out, int marker) {
+        putUShort(out, marker);
+    }
+
+    private static void putUShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void putUInt(ByteArrayOutputStream out, long value) {
+        out.write((int) (value >> 24));
+        out.write((int) (value >> 16));
+        out.write((int) (value >> 8));
+        out.write((int) value);
+    }
+
+    /*
+     * A positive value as a power-of-ten exponent byte and a 16- or 32-bit mantissa, using as many
+     * digits as fit.
+     */
+    private static void putScaled(ByteArrayOutputStream out, double value, boolean wide) {
+        double limit = wide ? 4294967295.0 : 65535.0;
+        int exponent = 0;
+        long mantissa = 0;
+        if (value != 0) {
+            while (value < limit) {
+                exponent++;
+                value *= 10;
+            }
+            exponent--;
+            mantissa = Math.round(value / 10.0);
+        }
+        out.write(exponent);
+        if (wide)
+            putUInt(out, mantissa);
+        else
+            putUShort(out, (int) mantissa);
+    }
+
+    private static void putComment(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(Charset.forName("US-ASCII"));
+        putMarker(out, COM);
+        putUShort(out, bytes.length + 2);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String nistcom(int width, int height, int ppi, double bitRate) {
+        return "NIST_COM 9\n"
+                + "PIX_WIDTH " + width + "\n"
+                + "PIX_HEIGHT " + height + "\n"
+                + "PIX_DEPTH 8\n"
+                + "PPI " + ((ppi > 0) ? ppi : -1) + "\n"
+                + "LOSSY 1\n"
+                + "COLORSPACE GRAY\n"
+                + "COMPRESSION WSQ\n"
+                + "WSQ_BITRATE " + String.format(Locale.US, "%f", bitRate);
+    }
+
+    private static int nistcomPpi(String text, int fallback) {
+        for (String line : text.split("\n")) {
+            if (line.startsWith("PPI ")) {
+                try {
+                    return Integer.parseInt(line.substring(4).trim());
+                } catch (NumberFormatException e) {
+                    return fallback;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    /*
+     * Only the upper halves of the symmetric filters are stored.
+     */
+    private static void putTransformTable(ByteArrayOutputStream out) {
+        putMarker(out, DTT);
+        putUShort(out, 58);
+        out.write(LO.length);
+        out.write(HI.length);
+        for (int i = LO.length / 2; i < LO.length; i++)
+            putSignedScaled(out, LO[i]);
+        for (int i = HI.length / 2; i < HI.length; i++)
+            putSignedScaled(out, HI[i]);
+    }
+
+    private static void putSignedScaled(ByteArrayOutputStream out, double value) {
+        out.write((value < 0) ? 1 : 0);
+        putScaled(out, Math.abs(value), true);
+    }
+
+    private static void putQuantizationTable(ByteArrayOutputStream out, float[] qbin, float[] zbin) {
+        putMarker(out, DQT);
+        putUShort(out, 389);
+        out.write(2);
+        putUShort(out, Math.round(BIN_CENTER * 100));
+        for (int k = 0; k < MAX_SUBBANDS; k++) {
+            if (k < NUM_SUBBANDS && qbin[k] != 0) {
+                putScaled(out, qbin[k], false);
+                putScaled(out, zbin[k], false);
+            } else {
+                putScaled(out, 0, false);
+                putScaled(out, 0, false);
+            }
+        }
+    }
+
+    private static void putFrameHeader(ByteArrayOutputStream out, int width, int height, float shift, float scale) {
+        putMarker(out, SOF);
+        putUShort(out, 17);
+        out.write(0);
+        out.write(255);
+        putUShort(out, height);
+        putUShort(out, width);
+        putScaled(out, shift, false);
+        putScaled(out, scale, false);
+        // Encoder number as written by NBIS, and no software id.
+        out.write(2);
+        putUShort(out, 0);
+    }
+
+    private static void putHuffmanTable(ByteArrayOutputStream out, int id, int[][] table) {
+        int[] bits = table[0];
+        int[] values = table[1];
+        putMarker(out, DHT);
+        putUShort(out, 3 + 16 + values.length);
+        out.write(id);
+        for (int b : bits)
+            out.write(b);
+        for (int v : values)
+            out.write(v);
+    }
+
+    private static void putBlock(ByteArrayOutputStream out, int tableId, int[] coefficients, int off, int len, int[][] table) {
+        putMarker(out, SOB);
+        putUShort(out, 3);
+        out.write(tableId);
+        final BitWriter writer = new BitWriter(out);
+        final int[] codes = table[2];
+        final int[] lengths = table[3];
+        forSymbols(coefficients, off, len, new Symbols() {
+            @Override
+            public void symbol(int symbol, int extra, int extraBits) {
+                writer.write(codes[symbol], lengths[symbol]);
+                if (extraBits > 0)
+                    writer.write(extra, extraBits);
+            }
+        });
+        writer.flush();
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream out;
+        private int buffer = 0;
+        private int count = 0;
+
+        BitWriter(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void write(int value, int length) {
+            buffer = (buffer << length) | (value & ((1 << length) - 1));
+            count += length;
+            while (count >= 8) {
+                int b = (buffer >> (count - 8)) & 0xff;
+                out.write(b);
+                // A 0xff in coded data is followed by a stuffed zero byte.
+                if (b == 0xff)
+                    out.write(0);
+                count -= 8;
+            }
+        }
+
+        void flush() {
+            if (count > 0)
+                write(0xff, 8 - count);
+        }
+    }
+
+    private static class Reader {
+        final byte[] buf;
+        int pos = 0;
+        private int bits = 0;
+        private int bitCount = 0;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= buf.length)
+                throw new IOException("Unexpected end of WSQ data");
+            return buf[pos++] & 0xff;
+        }
+
+        int readUShort() throws IOException {
+            return (readByte() << 8) | readByte();
+        }
+
+        float readScaled(boolean wide) throws IOException {
+            int exponent = readByte();
+            long mantissa = wide ? ((long) readUShort() << 16) | readUShort() : readUShort();
+            double value = mantissa;
+            while (exponent-- > 0)
+                value /= 10.0;
+            return (float) value;
+        }
+
+        void startBits() {
+            bits = 0;
+            bitCount = 0;
+        }
+
+        int readBit() throws IOException {
+            if (bitCount == 0) {
+                bits = readByte();
+                if (bits == 0xff) {
+                    int next = readByte();
+                    if (next != 0)
+                        throw new IOException("Unexpected marker in coded data at offset " + (pos - 2));
+                }
+                bitCount = 8;
+            }
+            bitCount--;
+            return (bits >> bitCount) & 1;
+        }
+
+        int readBits(int n) throws IOException {
+            int value = 0;
+            for (int i = 0; i < n; i++)
+                value = (value << 1) | readBit();
+            return value;
+        }
+
+        /*
+         * Drops the padding bits of the last byte; coded data always ends on a byte boundary.
+         */
+        void endBits() {
+            bitCount = 0;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package sa.redbullmobile.fpreader;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Searches the WSQ bit rate for an output size inside [minBytes, maxBytes].
+ *
+ * WSQ output grows roughly in proportion to the bit rate, so each pass scales the rate by
+ * target/actual and the bracket of rates known to be too small or too large keeps the search from
+ * oscillating. The first guess comes from the bytes-per-bit-rate ratio last seen on the same
+ * device, which usually lands within one or two passes. The search stops early when another pass
+ * would not fit in the latency budget; the result is then the largest output under maxBytes, or
+ * the smallest one if none fits.
+ */
+public class WsqRateController {
+
+    public interface Encoder {
+        byte[] encode(double bitRate) throws Exception;
+    }
+
+    public static class Result {
+        public final byte[] wsq;
+        public final double bitRate;
+        public final int passes;
+        public final boolean targetMet;
+        public final long elapsedMs;
+
+        Result(byte[] wsq, double bitRate, int passes, boolean targetMet, long elapsedMs) {
+            this.wsq = wsq;
+            this.bitRate = bitRate;
+            this.passes = passes;
+            this.targetMet = targetMet;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    public static final double MIN_BIT_RATE = 0.1;
+    public static final double MAX_BIT_RATE = 4.0;
+    public static final long DEFAULT_BUDGET_MS = 1500;
+    /** Default lower edge of the window, as a fraction of maxBytes. */
+    public static final double DEFAULT_MIN_FRACTION = 0.85;
+
+    private static final int MAX_PASSES = 8;
+
+    /* Bytes per pixel per unit of bit rate, by device. */
+    private final Map<String, Double> ratios = new HashMap<>();
+
+    /**
+     * @param deviceKey   warm-start key, usually the device serial number; may be null
+     * @param pixels      width * height of the image, used to turn sizes into rates
+     * @param defaultRate first rate tried without history for the device
+     */
+    public Result search(String deviceKey, int pixels, long minBytes, long maxBytes, long budgetMs, double defaultRate, Encoder encoder) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        double target = (minBytes + maxBytes) / 2.0;
+        double low = MIN_BIT_RATE;
+        double high = MAX_BIT_RATE;
+
+        double rate = defaultRate;
+        Double ratio = lookup(deviceKey);
+        if (ratio != null)
+            rate = target / (ratio * pixels);
+
+        byte[] under = null;
+        double underRate = 0;
+        byte[] over = null;
+        double overRate = 0;
+        int passes = 0;
+        long slowestPassMs = 0;
+        while (true) {
+            rate = clamp(rate, MIN_BIT_RATE, MAX_BIT_RATE);
+            long passStart = SystemClock.elapsedRealtime();
+            byte[] wsq = encoder.encode(rate);
+            long now = SystemClock.elapsedRealtime();
+            slowestPassMs = Math.max(slowestPassMs, now - passStart);
+            passes++;
+            remember(deviceKey, wsq.length / (rate * pixels));
+
+            if (wsq.length <= maxBytes) {
+                if (under == null || wsq.length > under.length) {
+                    under = wsq;
+                    underRate = rate;
+                }
+                if (wsq.length >= minBytes)
+                    return new Result(wsq, rate, passes, true, now - start);
+                low = Math.max(low, rate);
+            } else {
+                if (over == null || wsq.length < over.length) {
+                    over = wsq;
+                    overRate = rate;
+                }
+                high = Math.min(high, rate);
+            }
+
+            if (passes >= MAX_PASSES || now - start + slowestPassMs > budgetMs || high - low < 1e-3)
+                break;
+            double next = rate * target / wsq.length;
+            // Outside the bracket the proportional guess is known to be wrong; bisect instead.
+            if (next <= low || next >= high)
+                next = Math.sqrt(low * high);
+            rate = next;
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        if (under != null)
+            return new Result(under, underRate, passes, false, elapsed);
+        return new Result(over, overRate, passes, false, elapsed);
+    }
+
+    private synchronized Double lookup(String deviceKey) {
+        return (deviceKey != null) ? ratios.get(deviceKey) : null;
+    }
+
+    private synchronized void remember(String deviceKey, double ratio) {
+        if (deviceKey != null && ratio > 0)
+            ratios.put(deviceKey, ratio);
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
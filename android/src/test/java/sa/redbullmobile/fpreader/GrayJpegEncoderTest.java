@@ -0,0 +1,88 @@
+package sa.redbullmobile.fpreader;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+public class GrayJpegEncoderTest {
+
+    private static byte[] rings(int width, int height) {
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double r = Math.hypot(x - width / 2.0, y - height / 2.0);
+                pixels[y * width + x] = (byte) (int) Math.round(128 + 96 * Math.cos(2 * Math.PI * r / 16));
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] encode(ImageView image, int quality) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GrayJpegEncoder.encode(image, quality, out);
+        return out.toByteArray();
+    }
+
+    /* Mean absolute difference from what ImageIO decodes. */
+    private static double decodeError(byte[] jpeg, byte[] expected, int width, int height) throws Exception {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull("ImageIO could not read the JPEG", decoded);
+        assertEquals(width, decoded.getWidth());
+        assertEquals(height, decoded.getHeight());
+        assertEquals(1, decoded.getRaster().getNumBands());
+        int[] samples = decoded.getRaster().getSamples(0, 0, width, height, 0, (int[]) null);
+        long sum = 0;
+        for (int i = 0; i < samples.length; i++)
+            sum += Math.abs(samples[i] - (expected[i] & 0xff));
+        return (double) sum / samples.length;
+    }
+
+    @Test
+    public void decodesWithImageIO() throws Exception {
+        byte[] pixels = rings(160, 120);
+        double error = decodeError(encode(ImageView.packed(pixels, 160, 120), 90), pixels, 160, 120);
+        assertTrue("mean error " + error, error < 3);
+    }
+
+    @Test
+    public void sizesThatAreNotMultiplesOfEight() throws Exception {
+        byte[] pixels = rings(37, 29);
+        double error = decodeError(encode(ImageView.packed(pixels, 37, 29), 90), pixels, 37, 29);
+        assertTrue("mean error " + error, error < 4);
+    }
+
+    @Test
+    public void bottomUpAndCroppedViewsEncodeTheirRowsTopDown() throws Exception {
+        byte[] pixels = rings(64, 48);
+        byte[] flipped = new byte[pixels.length];
+        for (int y = 0; y < 48; y++)
+            System.arraycopy(pixels, y * 64, flipped, (47 - y) * 64, 64);
+        byte[] expected = encode(ImageView.packed(pixels, 64, 48), 85);
+        assertArrayEquals(expected, encode(ImageView.of(flipped, 64, 48, -64), 85));
+
+        ImageView crop = ImageView.packed(pixels, 64, 48).crop(8, 4, 40, 32);
+        assertArrayEquals(encode(ImageView.packed(crop.pack(), 40, 32), 85), encode(crop, 85));
+    }
+
+    @Test
+    public void higherQualityIsLargerAndCloser() throws Exception {
+        byte[] pixels = rings(160, 120);
+        ImageView view = ImageView.packed(pixels, 160, 120);
+        int lastLength = 0;
+        double lastError = Double.MAX_VALUE;
+        for (int quality : new int[] { 30, 60, 90, 100 }) {
+            byte[] jpeg = encode(view, quality);
+            double error = decodeError(jpeg, pixels, 160, 120);
+            assertTrue("quality " + quality + ": " + jpeg.length + " bytes after " + lastLength, jpeg.length > lastLength);
+            assertTrue("quality " + quality + ": error " + error + " after " + lastError, error <= lastError);
+            lastLength = jpeg.length;
+            lastError = error;
+        }
+    }
+}
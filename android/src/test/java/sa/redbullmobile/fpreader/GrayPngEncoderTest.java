@@ -0,0 +1,78 @@
+package sa.redbullmobile.fpreader;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+public class GrayPngEncoderTest {
+
+    /* Noise over a gradient, so every row filter gets picked somewhere. */
+    private static byte[] pixels(int width, int height) {
+        byte[] pixels = new byte[width * height];
+        Random random = new Random(7);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                pixels[y * width + x] = (byte) ((y < height / 2) ? x + y + random.nextInt(8) : random.nextInt(256));
+        return pixels;
+    }
+
+    private static byte[] encode(ImageView image, ExecutorService stripes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GrayPngEncoder.encode(image, 500, out, stripes);
+        return out.toByteArray();
+    }
+
+    private static byte[] decode(byte[] png, int width, int height) throws Exception {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull("ImageIO could not read the PNG", decoded);
+        assertEquals(width, decoded.getWidth());
+        assertEquals(height, decoded.getHeight());
+        assertEquals(1, decoded.getRaster().getNumBands());
+        int[] samples = decoded.getRaster().getSamples(0, 0, width, height, 0, (int[]) null);
+        byte[] ret = new byte[samples.length];
+        for (int i = 0; i < samples.length; i++)
+            ret[i] = (byte) samples[i];
+        return ret;
+    }
+
+    @Test
+    public void roundTripsThroughImageIO() throws Exception {
+        byte[] pixels = pixels(123, 77);
+        assertArrayEquals(pixels, decode(encode(ImageView.packed(pixels, 123, 77), null), 123, 77));
+    }
+
+    @Test
+    public void stripedEncodeRoundTrips() throws Exception {
+        ExecutorService stripes = Executors.newFixedThreadPool(4);
+        try {
+            byte[] pixels = pixels(301, 517);
+            ImageView view = ImageView.packed(pixels, 301, 517);
+            assertArrayEquals(pixels, decode(encode(view, stripes), 301, 517));
+            // Repeated to run on deflaters that came back from the pool.
+            assertArrayEquals(pixels, decode(encode(view, stripes), 301, 517));
+        } finally {
+            stripes.shutdown();
+        }
+    }
+
+    @Test
+    public void bottomUpAndCroppedViewsRoundTrip() throws Exception {
+        byte[] pixels = pixels(90, 70);
+        byte[] flipped = new byte[pixels.length];
+        for (int y = 0; y < 70; y++)
+            System.arraycopy(pixels, y * 90, flipped, (69 - y) * 90, 90);
+        assertArrayEquals(pixels, decode(encode(ImageView.of(flipped, 90, 70, -90), null), 90, 70));
+
+        ImageView crop = ImageView.packed(pixels, 90, 70).crop(11, 5, 41, 60);
+        assertArrayEquals(crop.pack(), decode(encode(crop, null), 41, 60));
+    }
+}
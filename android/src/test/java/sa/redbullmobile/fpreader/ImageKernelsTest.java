@@ -0,0 +1,130 @@
+package sa.redbullmobile.fpreader;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class ImageKernelsTest {
+
+    /* Large enough to be split into tiles, with rows that do not divide evenly between them. */
+    private static final int WIDTH = 733;
+    private static final int HEIGHT = 517;
+
+    private interface Kernel {
+        Object run(ImageView src);
+    }
+
+    private static ImageView noise(int width, int height, int pitch) {
+        byte[] pixels = new byte[Math.abs(pitch) * height];
+        new Random(42).nextBytes(pixels);
+        return ImageView.of(pixels, width, height, pitch);
+    }
+
+    /* Runs the kernel on the calling thread and on four workers and checks they agree. */
+    private static void assertSameInParallel(String name, ImageView src, Kernel kernel) {
+        int saved = ImageKernels.getParallelism();
+        try {
+            ImageKernels.setParallelism(1);
+            Object sequential = kernel.run(src);
+            ImageKernels.setParallelism(4);
+            Object parallel = kernel.run(src);
+            if (sequential instanceof byte[])
+                assertArrayEquals(name, (byte[]) sequential, (byte[]) parallel);
+            else
+                assertArrayEquals(name, (int[]) sequential, (int[]) parallel);
+        } finally {
+            ImageKernels.setParallelism(saved);
+        }
+    }
+
+    @Test
+    public void parallelKernelsMatchSequential() {
+        assertTrue((long) WIDTH * HEIGHT >= ImageKernels.SEQUENTIAL_THRESHOLD);
+        final byte[] lut = ImageKernels.contrastLut(30, 220);
+        final double[] rotate = { Math.cos(0.2), -Math.sin(0.2), 60, Math.sin(0.2), Math.cos(0.2), -40 };
+        for (int pitch : new int[] { WIDTH, -WIDTH, WIDTH + 13 }) {
+            ImageView src = noise(WIDTH, HEIGHT, pitch);
+            String frame = " with pitch " + pitch;
+            assertSameInParallel("copy" + frame, src, new Kernel() {
+                @Override
+                public Object run(ImageView src) {
+                    return ImageKernels.copy(src, null);
+                }
+            });
+            assertSameInParallel("toArgb" + frame, src, new Kernel() {
+                @Override
+                public Object run(ImageView src) {
+                    return ImageKernels.toArgb(src, null);
+                }
+            });
+            assertSameInParallel("scale" + frame, src, new Kernel() {
+                @Override
+                public Object run(ImageView src) {
+                    return ImageKernels.scale(src, null, 301, 187);
+                }
+            });
+            assertSameInParallel("warpAffine" + frame, src, new Kernel() {
+                @Override
+                public Object run(ImageView src) {
+                    return ImageKernels.warpAffine(src, rotate, 255, null, WIDTH, HEIGHT);
+                }
+            });
+            assertSameInParallel("applyLut" + frame, src, new Kernel() {
+                @Override
+                public Object run(ImageView src) {
+                    return ImageKernels.applyLut(src, lut, null);
+                }
+            });
+            assertSameInParallel("histogram" + frame, src, new Kernel() {
+                @Override
+                public Object run(ImageView src) {
+                    return ImageKernels.histogram(src);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void copyFlipsBottomUpRows() {
+        byte[] rows = { 1, 2, 3, 4, 5, 6 };
+        assertArrayEquals(new byte[] { 5, 6, 3, 4, 1, 2 }, ImageKernels.copy(ImageView.of(rows, 2, 3, -2), null));
+        assertArrayEquals(rows, ImageKernels.copy(ImageView.of(rows, 2, 3, 2), null));
+    }
+
+    @Test
+    public void scaleAveragesTheCoveredPixels() {
+        byte[] pixels = {
+            0, 10, 100, (byte) 200,
+            20, 30, 100, (byte) 200
+        };
+        byte[] out = ImageKernels.scale(ImageView.packed(pixels, 4, 2), null, 2, 1);
+        assertArrayEquals(new byte[] { 15, (byte) 150 }, out);
+    }
+
+    @Test
+    public void reusesALargeEnoughDestination() {
+        ImageView src = noise(64, 48, 64);
+        byte[] dst = new byte[64 * 48 + 10];
+        assertSame(dst, ImageKernels.copy(src, dst));
+        assertNotSame(dst, ImageKernels.copy(src, new byte[10]));
+    }
+
+    @Test
+    public void histogramCountsEveryPixel() {
+        ImageView src = noise(WIDTH, HEIGHT, -WIDTH);
+        int[] counts = ImageKernels.histogram(src);
+        long total = 0;
+        for (int c : counts)
+            total += c;
+        assertEquals((long) WIDTH * HEIGHT, total);
+    }
+
+    @Test
+    public void warpAffineWithIdentityCopies() {
+        ImageView src = noise(40, 30, -40);
+        byte[] out = ImageKernels.warpAffine(src, new double[] { 1, 0, 0, 0, 1, 0 }, 255, null, 40, 30);
+        assertArrayEquals(ImageKernels.copy(src, null), out);
+    }
+}
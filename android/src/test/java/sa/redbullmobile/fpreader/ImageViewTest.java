@@ -0,0 +1,108 @@
+package sa.redbullmobile.fpreader;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ImageViewTest {
+
+    /* 4x3 frame whose pixel at (x, y) is 10 * y + x, stored in the given row order. */
+    private static byte[] frame(boolean bottomUp, int stride) {
+        byte[] pixels = new byte[stride * 3];
+        for (int y = 0; y < 3; y++) {
+            int row = bottomUp ? 2 - y : y;
+            for (int x = 0; x < 4; x++)
+                pixels[row * stride + x] = (byte) (10 * y + x);
+        }
+        return pixels;
+    }
+
+    @Test
+    public void positivePitchIsTopDown() {
+        ImageView view = ImageView.of(frame(false, 4), 4, 3, 4);
+        assertEquals(0, view.get(0, 0));
+        assertEquals(23, view.get(3, 2));
+        assertTrue(view.isPacked());
+    }
+
+    @Test
+    public void negativePitchIsBottomUp() {
+        ImageView view = ImageView.of(frame(true, 4), 4, 3, -4);
+        assertEquals(8, view.offset);
+        assertEquals(-4, view.stride);
+        assertEquals(0, view.get(0, 0));
+        assertEquals(23, view.get(3, 2));
+        assertFalse(view.isPacked());
+        assertArrayEquals(frame(false, 4), view.pack());
+    }
+
+    @Test
+    public void zeroPitchIsBottomUpPackedRows() {
+        ImageView view = ImageView.of(frame(true, 4), 4, 3, 0);
+        assertEquals(-4, view.stride);
+        assertEquals(12, view.get(2, 1));
+    }
+
+    @Test
+    public void paddedRowsSkipThePadding() {
+        ImageView topDown = ImageView.of(frame(false, 7), 4, 3, 7);
+        ImageView bottomUp = ImageView.of(frame(true, 7), 4, 3, -7);
+        assertFalse(topDown.isPacked());
+        assertEquals(21, topDown.get(1, 2));
+        assertEquals(21, bottomUp.get(1, 2));
+        assertArrayEquals(frame(false, 4), topDown.pack());
+        assertArrayEquals(frame(false, 4), bottomUp.pack());
+    }
+
+    @Test
+    public void cropSharesTheBuffer() {
+        byte[] pixels = frame(true, 6);
+        ImageView crop = ImageView.of(pixels, 4, 3, -6).crop(1, 1, 2, 2);
+        assertSame(pixels, crop.buffer);
+        assertEquals(11, crop.get(0, 0));
+        assertEquals(22, crop.get(1, 1));
+        assertArrayEquals(new byte[] { 11, 12, 21, 22 }, crop.pack());
+
+        ImageView nested = crop.crop(1, 0, 1, 2);
+        assertEquals(12, nested.get(0, 0));
+        assertEquals(22, nested.get(0, 1));
+    }
+
+    @Test
+    public void packReturnsAPackedBufferItself() {
+        byte[] pixels = frame(false, 4);
+        assertSame(pixels, ImageView.packed(pixels, 4, 3).pack());
+        // Packed rows at the start of a longer buffer are still copied out.
+        byte[] longer = new byte[20];
+        System.arraycopy(pixels, 0, longer, 0, 12);
+        byte[] packed = ImageView.packed(longer, 4, 3).pack();
+        assertNotSame(longer, packed);
+        assertArrayEquals(pixels, packed);
+    }
+
+    @Test
+    public void rejectsCropsOutsideTheView() {
+        ImageView view = ImageView.packed(frame(false, 4), 4, 3);
+        int[][] crops = { { -1, 0, 2, 2 }, { 0, 0, 5, 1 }, { 3, 2, 2, 1 }, { 0, 0, 0, 1 } };
+        for (int[] crop : crops) {
+            try {
+                view.crop(crop[0], crop[1], crop[2], crop[3]);
+                fail("crop " + crop[2] + "x" + crop[3] + "+" + crop[0] + "+" + crop[1] + " accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsViewsOutsideTheBuffer() {
+        byte[] pixels = new byte[12];
+        int[][] views = { { 0, 4, 4, 4 }, { 0, 4, 3, 3 }, { 4, 4, 3, -4 }, { 1, 4, 3, 4 } };
+        for (int[] view : views) {
+            try {
+                new ImageView(pixels, view[0], view[1], view[2], view[3]);
+                fail("view " + view[1] + "x" + view[2] + "+" + view[0] + " with stride " + view[3] + " accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package sa.redbullmobile.fpreader;
+
+import static org.junit.Assert.*;
+
+import com.integratedbiometrics.ibscanultimate.IBScanDevice;
+
+import org.junit.Test;
+
+public class SegmentCropTest {
+
+    private static IBScanDevice.SegmentPosition quad(int x1, int y1, int x2, int y2, int x3, int y3, int x4, int y4) {
+        return new IBScanDevice.SegmentPosition(x1, y1, x2, y2, x3, y3, x4, y4) {
+        };
+    }
+
+    private static IBScanDevice.SegmentPosition box(int left, int top, int right, int bottom) {
+        return quad(left, top, right, top, right, bottom, left, bottom);
+    }
+
+    /* Every pixel distinct enough to tell where a region was taken from. */
+    private static ImageView gradient(int width, int height) {
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                pixels[y * width + x] = (byte) (x + 3 * y);
+        return ImageView.packed(pixels, width, height);
+    }
+
+    @Test
+    public void cropsToThePaddedBoxWithoutCopying() {
+        ImageView frame = gradient(200, 150);
+        SegmentCrop crop = SegmentCrop.of(frame, new IBScanDevice.SegmentPosition[] { box(50, 40, 90, 100) }, 10, false);
+
+        assertNotNull(crop);
+        assertEquals(40, crop.x);
+        assertEquals(30, crop.y);
+        assertEquals(0, crop.angle, 0);
+        assertEquals(61, crop.region.width);
+        assertEquals(81, crop.region.height);
+        assertSame(frame.buffer, crop.region.buffer);
+        assertEquals(frame.get(40, 30), crop.region.get(0, 0));
+        assertEquals(frame.get(100, 110), crop.region.get(60, 80));
+        assertArrayEquals(new int[] { 10, 10, 41, 61 }, crop.segments[0]);
+    }
+
+    @Test
+    public void coversEverySegment() {
+        ImageView frame = gradient(200, 150);
+        IBScanDevice.SegmentPosition[] positions = { box(20, 30, 40, 80), null, box(120, 50, 150, 110) };
+        SegmentCrop crop = SegmentCrop.of(frame, positions, 0, false);
+
+        assertEquals(20, crop.x);
+        assertEquals(30, crop.y);
+        assertEquals(131, crop.region.width);
+        assertEquals(81, crop.region.height);
+        assertEquals(2, crop.segments.length);
+        assertArrayEquals(new int[] { 100, 20, 31, 61 }, crop.segments[1]);
+    }
+
+    @Test
+    public void clipsToTheFrame() {
+        ImageView frame = gradient(100, 80);
+        SegmentCrop crop = SegmentCrop.of(frame, new IBScanDevice.SegmentPosition[] { box(5, 5, 95, 75) }, 32, false);
+
+        assertEquals(0, crop.x);
+        assertEquals(0, crop.y);
+        assertEquals(100, crop.region.width);
+        assertEquals(80, crop.region.height);
+    }
+
+    @Test
+    public void readsBottomUpFramesTopDown() {
+        ImageView topDown = gradient(64, 48);
+        ImageView bottomUp = ImageView.of(flip(topDown.buffer, 64, 48), 64, 48, -64);
+        IBScanDevice.SegmentPosition[] positions = { box(10, 5, 30, 20) };
+        SegmentCrop expected = SegmentCrop.of(topDown, positions, 2, false);
+        SegmentCrop actual = SegmentCrop.of(bottomUp, positions, 2, false);
+
+        assertArrayEquals(expected.region.pack(), actual.region.pack());
+    }
+
+    @Test
+    public void returnsNullWithoutSegmentsWithArea() {
+        ImageView frame = gradient(64, 48);
+        assertNull(SegmentCrop.of(frame, null, 0, false));
+        assertNull(SegmentCrop.of(frame, new IBScanDevice.SegmentPosition[0], 0, false));
+        assertNull(SegmentCrop.of(frame, new IBScanDevice.SegmentPosition[] { null, box(10, 10, 10, 10) }, 0, true));
+    }
+
+    @Test
+    public void deskewsATiltedSegment() {
+        // A dark 40x100 bar on white, turned 10 degrees clockwise about (100, 100).
+        int width = 200;
+        int height = 200;
+        double angle = Math.toRadians(10);
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double u = cos * (x - 100) + sin * (y - 100);
+                double v = -sin * (x - 100) + cos * (y - 100);
+                pixels[y * width + x] = (byte) ((Math.abs(u) <= 20 && Math.abs(v) <= 50) ? 0 : 255);
+            }
+        }
+        int[] corners = new int[8];
+        double[][] box = { { -20, -50 }, { 20, -50 }, { 20, 50 }, { -20, 50 } };
+        for (int i = 0; i < 4; i++) {
+            corners[2 * i] = (int) Math.round(100 + cos * box[i][0] - sin * box[i][1]);
+            corners[2 * i + 1] = (int) Math.round(100 + sin * box[i][0] + cos * box[i][1]);
+        }
+        IBScanDevice.SegmentPosition[] positions = {
+            quad(corners[0], corners[1], corners[2], corners[3], corners[4], corners[5], corners[6], corners[7])
+        };
+        ImageView frame = ImageView.packed(pixels, width, height);
+
+        SegmentCrop tilted = SegmentCrop.of(frame, positions, 0, false);
+        SegmentCrop upright = SegmentCrop.of(frame, positions, 0, true);
+
+        assertEquals(10, upright.angle, 0.5);
+        assertNotSame(frame.buffer, upright.region.buffer);
+        assertTrue(upright.region.width + " wide, unrotated " + tilted.region.width, upright.region.width < tilted.region.width - 10);
+        assertTrue(Math.abs(upright.region.width - 41) <= 3);
+        assertTrue(Math.abs(upright.region.height - 101) <= 3);
+        // Upright, the bar fills the region apart from its anti-aliased rim.
+        assertTrue(upright.region.get(upright.region.width / 2, 3) < 32);
+        assertTrue(upright.region.get(3, upright.region.height / 2) < 32);
+    }
+
+    @Test
+    public void leavesSmallTiltsAlone() {
+        ImageView frame = gradient(200, 200);
+        IBScanDevice.SegmentPosition[] positions = { quad(50, 50, 150, 51, 149, 151, 49, 150) };
+        SegmentCrop crop = SegmentCrop.of(frame, positions, 0, true);
+
+        assertEquals(0, crop.angle, 0);
+        assertSame(frame.buffer, crop.region.buffer);
+    }
+
+    private static byte[] flip(byte[] pixels, int width, int height) {
+        byte[] out = new byte[pixels.length];
+        for (int y = 0; y < height; y++)
+            System.arraycopy(pixels, y * width, out, (height - 1 - y) * width, width);
+        return out;
+    }
+}
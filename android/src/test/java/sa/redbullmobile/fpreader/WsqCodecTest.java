@@ -0,0 +1,108 @@
+package sa.redbullmobile.fpreader;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+public class WsqCodecTest {
+
+    /* Concentric ridges about 8 pixels apart, close enough to a fingerprint for the quantizer. */
+    static byte[] rings(int width, int height) {
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double r = Math.hypot(x - width / 2.0, y - height / 2.0);
+                pixels[y * width + x] = (byte) (int) Math.round(128 + 96 * Math.cos(2 * Math.PI * r / 8));
+            }
+        }
+        return pixels;
+    }
+
+    static double meanAbsError(byte[] a, byte[] b) {
+        long sum = 0;
+        for (int i = 0; i < a.length; i++)
+            sum += Math.abs((a[i] & 0xff) - (b[i] & 0xff));
+        return (double) sum / a.length;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] pixels = rings(200, 160);
+        byte[] wsq = WsqCodec.encode(ImageView.packed(pixels, 200, 160), 500, WsqCodec.DEFAULT_BIT_RATE, "", null);
+        assertTrue("compressed to " + wsq.length + " bytes", wsq.length < pixels.length / 4);
+
+        WsqCodec.Image image = WsqCodec.decode(wsq);
+        assertEquals(200, image.width);
+        assertEquals(160, image.height);
+        assertEquals(500, image.ppi);
+        double error = meanAbsError(pixels, image.pixels);
+        assertTrue("mean error " + error, error < 8);
+    }
+
+    @Test
+    public void bottomUpRowsEncodeTopDown() throws Exception {
+        byte[] pixels = rings(64, 48);
+        byte[] flipped = new byte[pixels.length];
+        for (int y = 0; y < 48; y++)
+            System.arraycopy(pixels, y * 64, flipped, (47 - y) * 64, 64);
+        byte[] topDown = WsqCodec.encode(pixels, 64, 48, 64, 8, 500, WsqCodec.DEFAULT_BIT_RATE, "", null);
+        byte[] bottomUp = WsqCodec.encode(flipped, 64, 48, -64, 8, 500, WsqCodec.DEFAULT_BIT_RATE, "", null);
+        assertArrayEquals(topDown, bottomUp);
+    }
+
+    @Test
+    public void higherBitRateIsLargerAndCloser() throws Exception {
+        byte[] pixels = rings(200, 160);
+        double[] rates = { 0.35, 0.75, 1.5, 2.25 };
+        int lastLength = 0;
+        double lastError = Double.MAX_VALUE;
+        for (double rate : rates) {
+            byte[] wsq = WsqCodec.encode(ImageView.packed(pixels, 200, 160), 500, rate, "", null);
+            double error = meanAbsError(pixels, WsqCodec.decode(wsq).pixels);
+            assertTrue("rate " + rate + ": " + wsq.length + " bytes after " + lastLength, wsq.length > lastLength);
+            assertTrue("rate " + rate + ": error " + error + " after " + lastError, error <= lastError);
+            lastLength = wsq.length;
+            lastError = error;
+        }
+    }
+
+    /*
+     * The fixture was written by this encoder from rings(96, 80) at the default bit rate, so a
+     * change to the bitstream format or the decoder shows up here even if the round trip still
+     * agrees with itself.
+     */
+    @Test
+    public void decodesFixture() throws Exception {
+        InputStream in = getClass().getResourceAsStream("rings-96x80.wsq");
+        assertNotNull("fixture missing", in);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        for (int n; (n = in.read(chunk)) > 0; )
+            bytes.write(chunk, 0, n);
+        in.close();
+
+        WsqCodec.Image image = WsqCodec.decode(bytes.toByteArray());
+        assertEquals(96, image.width);
+        assertEquals(80, image.height);
+        assertEquals(500, image.ppi);
+        double error = meanAbsError(rings(96, 80), image.pixels);
+        assertTrue("mean error " + error, error < 10);
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsImagesTooSmallForTheTransform() throws Exception {
+        int[][] sizes = { { 1, 1 }, { 6, 6 }, { 7, 5 }, { 100, 1 }, { 3, 100 } };
+        for (int[] size : sizes) {
+            try {
+                WsqCodec.encode(ImageView.packed(new byte[size[0] * size[1]], size[0], size[1]), 500, WsqCodec.DEFAULT_BIT_RATE, "", null);
+                fail(size[0] + "x" + size[1] + " was encoded");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        byte[] smallest = WsqCodec.encode(ImageView.packed(rings(7, 7), 7, 7), 500, WsqCodec.DEFAULT_BIT_RATE, "", null);
+        assertEquals(7, WsqCodec.decode(smallest).width);
+    }
+}
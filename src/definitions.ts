@@ -1,5 +1,77 @@
+import type { PluginListenerHandle } from '@capacitor/core';
+
 export interface FPReaderPlugin {
   getDeviceInfo(): Promise<any>;
   requestPermission(): Promise<any>;
-  capture(): Promise<any>;
+  capture(options?: CaptureOptions): Promise<any>;
+  getCapabilities(): Promise<any>;
+  cancelCapture(options?: { id?: string }): Promise<any>;
+  getMetrics(): Promise<any>;
+  /** Configures when an idle scanner is put into power-save mode or closed, and whether it is woken ahead of the next expected capture. */
+  setIdlePolicy(options: IdlePolicy): Promise<any>;
+  /** Captures journaled on the device that have not been consumed yet, e.g. after the app was killed before a result was stored. */
+  listPendingCaptures(): Promise<any>;
+  /** Returns a journaled capture (metadata and raw 8-bit frame as Base64) and removes it from the journal. */
+  consumeCapture(options: { id: string }): Promise<any>;
+  /** Returns another format of a recent capture, built on demand from the cached raw image. Rejects once the capture has been evicted. */
+  getCaptureArtifact(options: ArtifactOptions): Promise<any>;
+  /** Downscaled JPEG preview frames while a capture is running. Preview events are only enabled on the device while a listener is registered. */
+  addListener(
+    eventName: 'previewImage',
+    listenerFunc: (preview: any) => void,
+  ): Promise<PluginListenerHandle> & PluginListenerHandle;
+  /** Fired once when the native SDK has been loaded in the background, with per-step timings. Retained for listeners added later. */
+  addListener(
+    eventName: 'sdkReady',
+    listenerFunc: (status: any) => void,
+  ): Promise<PluginListenerHandle> & PluginListenerHandle;
+}
+
+export interface CaptureOptions {
+  /** Device tuning profile applied before the capture starts. Defaults to 'balanced'. */
+  profile?: 'low-latency' | 'balanced' | 'high-quality';
+  /** Maximum number of capture attempts when the finger is missing or of poor quality. Defaults to 5. */
+  maxAttempts?: number;
+  /** Overall time budget for all attempts, in milliseconds. Defaults to 30000. */
+  retryDeadlineMs?: number;
+  /** Rejects the capture with errorCode 'timeout' and releases the device when no result arrives in time. */
+  timeoutMs?: number;
+  /** 'file' writes the WSQ and JPEG to the app cache directory and returns sourcePath/imgPath (usable with Capacitor.convertFileSrc) instead of Base64 strings. Defaults to 'base64'. */
+  resultMode?: 'base64' | 'file';
+  /** Quality of the grayscale JPEG in the result, from 1 to 100. Defaults to 100. */
+  jpegQuality?: number;
+  /** Searches the WSQ bit rate until the template is at most this many bytes. The result then carries wsqBitRate, wsqPasses and wsqTargetMet. */
+  wsqMaxBytes?: number;
+  /** Lower edge of the size window for wsqMaxBytes. Defaults to 85% of wsqMaxBytes. */
+  wsqMinBytes?: number;
+  /** Time budget for the bit rate search, in milliseconds. Defaults to 1500. */
+  wsqBudgetMs?: number;
+  /** Encodes only the padded bounding box of the finger segments the scanner reports. The result then carries crop with the box, its angle and each segment's box inside it; width and height are those of the crop. */
+  cropToSegments?: boolean;
+  /** Pixels added on every side of the crop. Defaults to 32. */
+  segmentPadding?: number;
+  /** Rotates the crop upright by the mean tilt of the segments. Defaults to false. */
+  deskewSegments?: boolean;
+  /** Journals the raw frame on the device until the result has been delivered, so it can be recovered with listPendingCaptures()/consumeCapture() if the app is killed first. Defaults to false. */
+  spool?: boolean;
+}
+
+export interface IdlePolicy {
+  /** Idle time before the scanner enters power-save mode, in milliseconds. 0 disables it. Defaults to 30000. */
+  powerSaveAfterMs?: number;
+  /** Idle time before the scanner is closed, in milliseconds. 0 disables it. Defaults to 0. */
+  closeAfterMs?: number;
+  /** How long before the predicted next capture the scanner is woken, in milliseconds. Defaults to 2000. */
+  wakeLeadMs?: number;
+  /** Wake the scanner ahead of the next capture predicted from recent capture intervals. Defaults to true. */
+  predictive?: boolean;
+}
+
+export interface ArtifactOptions {
+  /** captureId from the capture result. */
+  id: string;
+  /** Format to return; 'raw' is the 8-bit grayscale frame. */
+  format: 'raw' | 'jpeg' | 'png' | 'thumbnail' | 'wsq';
+  /** 'file' writes the artifact to the app cache directory and returns its path instead of Base64 data. Defaults to 'base64'. */
+  resultMode?: 'base64' | 'file';
 }
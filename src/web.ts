@@ -10,6 +10,34 @@ export class FPReaderWeb extends WebPlugin implements FPReaderPlugin {
     throw new Error('Plugin Not Available for Web');
   }
 
+  async cancelCapture(): Promise<any> {
+    throw new Error('Plugin Not Available for Web');
+  }
+
+  async getMetrics(): Promise<any> {
+    throw new Error('Plugin Not Available for Web');
+  }
+
+  async setIdlePolicy(): Promise<any> {
+    throw new Error('Plugin Not Available for Web');
+  }
+
+  async listPendingCaptures(): Promise<any> {
+    throw new Error('Plugin Not Available for Web');
+  }
+
+  async consumeCapture(): Promise<any> {
+    throw new Error('Plugin Not Available for Web');
+  }
+
+  async getCaptureArtifact(): Promise<any> {
+    throw new Error('Plugin Not Available for Web');
+  }
+
+  async getCapabilities(): Promise<any> {
+    throw new Error('Plugin Not Available for Web');
+  }
+
   async getDeviceInfo(): Promise<string> {
     throw new Error('Plugin Not Available for Web');
   }